@@ -30,6 +30,7 @@ import javax.xml.transform.stream.StreamSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.ovgu.cs.milter4j.util.BodyBuffer;
 import de.ovgu.cs.milter4j.util.Misc;
 
 /**
@@ -40,6 +41,9 @@ import de.ovgu.cs.milter4j.util.Misc;
  * &lt;config port="4444" host="*" shutdown="4445" workers="256"
  * 	version="false" addrcpt="false"
  * 	samples="255" samplerates="1m, 5m, 4h, 1d, 1w"
+ * 	spillsize="4m" bodymemory="64m" spooldir="/var/tmp"
+ * 	cpusampling="64" metrics="127.0.0.1:9464"
+ * 	slowmessage="5000" slowrecords="64"
  * 	&gt;
  * 	&lt;filter class="org.bla.fahsel.milter.Cool" conf="/etc/cool.conf"/&gt;
  * &lt;/config&gt;
@@ -97,6 +101,52 @@ import de.ovgu.cs.milter4j.util.Misc;
  * The number of samples (snapshots), which should be kept for each sample 
  * intervall. It should be a 2<sup>n</sup>-1 value.
  * </dd>
+ * <dt>spillsize</dt>
+ * <dd>
+ * The max. number of bytes of a reassembled mail body, which should be kept in
+ * memory. Larger bodies get spilled to a temporary file. A size is defined as 
+ * a long value, optionally followed by {@code k} (KiB), {@code m} (MiB) or 
+ * {@code g} (GiB). If omitted, {@value BodyBuffer#DEFAULT_SPILL_SIZE} bytes are 
+ * used.
+ * </dd>
+ * <dt>bodymemory</dt>
+ * <dd>
+ * The max. number of bytes all workers together may use to keep reassembled
+ * mail bodies in memory. If a worker would exceed this limit, it spills the 
+ * body to a temporary file. Same format as {@code spillsize}. If omitted, 
+ * {@value BodyBuffer#DEFAULT_MEMORY_BUDGET} bytes are used.
+ * </dd>
+ * <dt>spooldir</dt>
+ * <dd>
+ * The directory, where spilled mail bodies should be stored. If omitted, the
+ * default temporary-file directory of the JVM gets used.
+ * </dd>
+ * <dt>cpusampling</dt>
+ * <dd>
+ * Measure the CPU time and the number of bytes allocated by mail filters 
+ * for one of the given number of filter invocations per worker. {@code 1}
+ * measures each invocation, {@code 0} disables the measurement. If omitted,
+ * {@value #DEFAULT_CPU_SAMPLING} is used.
+ * </dd>
+ * <dt>metrics</dt>
+ * <dd>
+ * The {@code [host:]port}, where an embedded HTTP server should serve all
+ * statistics in the OpenMetrics text format on {@code /metrics}. If the host
+ * is omitted or is "<code>*</code>", the server binds to all interfaces of 
+ * the host. If the attribute is omitted, no HTTP server gets started.
+ * </dd>
+ * <dt>slowmessage</dt>
+ * <dd>
+ * The end-to-end latency in milliseconds, from which on a message gets
+ * logged with its per-command and per-filter timings to the logger
+ * {@value de.ovgu.cs.milter4j.jmx.SlowMessageLog#LOGGER_NAME}. If omitted
+ * or {@code 0}, messages are not tracked.
+ * </dd>
+ * <dt>slowrecords</dt>
+ * <dd>
+ * The number of slow messages to keep for inspection via JMX. If omitted,
+ * {@value #DEFAULT_SLOW_RECORDS} is used.
+ * </dd>
  * </dl>
  * The {@code filter} element may occure several times. Its attributes have the 
  * following meaning:
@@ -137,6 +187,14 @@ public class Configuration {
 	public static final String VERSION_CHANGED = "disableVersion";
 	/** property name used to notify config listeners about X-RcptTo change */
 	public static final String RCPTTO_CHANGED = "rcptto";
+	/** property name used to notify config listeners about body spill changes */
+	public static final String BODY_CHANGED = "body";
+	/** property name used to notify config listeners about CPU sampling changes */
+	public static final String SAMPLING_CHANGED = "cpusampling";
+	/** property name used to notify config listeners about metrics endpoint changes */
+	public static final String METRICS_CHANGED = "metrics";
+	/** property name used to notify config listeners about slow message log changes */
+	public static final String SLOW_CHANGED = "slowmessage";
 	/** default sample rate/hiistory size for connection statistics */
 	public static final int DEFAULT_SAMPLES = 255;
 	static final int[] DEFAULT_SAMPLE_RATES = new int[] {
@@ -144,6 +202,10 @@ public class Configuration {
 	};
 	/** default number of max. threads for the executor service beeing used */
 	public static final int DEFAULT_WORKERS = 256;
+	/** default number of filter invocations per CPU time measurement */
+	public static final int DEFAULT_CPU_SAMPLING = 64;
+	/** default number of slow messages to keep */
+	public static final int DEFAULT_SLOW_RECORDS = 64;
 	
 	private File conf;
 	private InetSocketAddress address;
@@ -155,6 +217,13 @@ public class Configuration {
 	private int maxWorkers;
 	private boolean disableVersion;
 	private boolean disableRcptTo;
+	private long spillSize = BodyBuffer.DEFAULT_SPILL_SIZE;
+	private long bodyMemory = BodyBuffer.DEFAULT_MEMORY_BUDGET;
+	private File spoolDir;
+	private int cpuSampling = DEFAULT_CPU_SAMPLING;
+	private InetSocketAddress metricsAddress;
+	private long slowThreshold;
+	private int slowRecords = DEFAULT_SLOW_RECORDS;
 
 	/**
 	 * Create a new Configuration using the given config file.
@@ -213,6 +282,28 @@ public class Configuration {
 			: new InetSocketAddress(hostname, port);
 	}
 
+	private static InetSocketAddress getMetricsAddress(String val) {
+		if (val == null || val.trim().length() == 0) {
+			return null;
+		}
+		val = val.trim();
+		int idx = val.lastIndexOf(':');
+		String hostname = idx < 0 ? null : val.substring(0, idx).trim();
+		int port = 0;
+		try {
+			port = Integer.parseInt(val.substring(idx + 1).trim(), 10);
+		} catch (Exception e) {
+			// handle later
+		}
+		if (port <= 0 || port >= 0xffff) {
+			log.warn("Invalid metrics '" + val + "' - metrics disabled");
+			return null;
+		}
+		return hostname == null || hostname.isEmpty() || hostname.equals("*") 
+			? new InetSocketAddress(port)
+			: new InetSocketAddress(hostname, port);
+	}
+
 	private static void addFilter(XMLStreamReader in, ArrayList<String> filters) 
 		throws XMLStreamException 
 	{
@@ -284,6 +375,13 @@ public class Configuration {
 		int port = DEFAULT_SHUTDOWN_PORT;
 		boolean newDisableVersion = false;
 		boolean newDisableRcptTo = false;
+		long newSpillSize = BodyBuffer.DEFAULT_SPILL_SIZE;
+		long newBodyMemory = BodyBuffer.DEFAULT_MEMORY_BUDGET;
+		File newSpoolDir = null;
+		int newCpuSampling = DEFAULT_CPU_SAMPLING;
+		InetSocketAddress newMetricsAddress = null;
+		long newSlowThreshold = 0;
+		int newSlowRecords = DEFAULT_SLOW_RECORDS;
 		try {
 			addr = getAddress(reader);
 			String aPort = reader.getAttributeValue(null, "shutdown");
@@ -314,6 +412,57 @@ public class Configuration {
 			newDisableVersion = tmp != null && tmp.equalsIgnoreCase("false");
 			tmp = reader.getAttributeValue(null, "addrcpt");
 			newDisableRcptTo = tmp != null && tmp.equalsIgnoreCase("false");
+			newSpillSize = getSize(reader.getAttributeValue(null, "spillsize"),
+				BodyBuffer.DEFAULT_SPILL_SIZE);
+			newBodyMemory = getSize(reader.getAttributeValue(null, "bodymemory"),
+				BodyBuffer.DEFAULT_MEMORY_BUDGET);
+			tmp = reader.getAttributeValue(null, "spooldir");
+			if (tmp != null && tmp.trim().length() > 0) {
+				newSpoolDir = new File(tmp.trim());
+				if (!newSpoolDir.isDirectory()) {
+					log.warn("spooldir '" + tmp + "' is not a directory - "
+						+ "using the default");
+					newSpoolDir = null;
+				}
+			}
+			tmp = reader.getAttributeValue(null, "cpusampling");
+			if (tmp != null) {
+				try {
+					newCpuSampling = Integer.parseInt(tmp.trim(), 10);
+				} catch (NumberFormatException e) {
+					log.warn("Invalid cpusampling '" + tmp + "' - using the "
+						+ "default");
+				}
+				if (newCpuSampling < 0) {
+					newCpuSampling = 0;
+				}
+			}
+			newMetricsAddress = 
+				getMetricsAddress(reader.getAttributeValue(null, "metrics"));
+			tmp = reader.getAttributeValue(null, "slowmessage");
+			if (tmp != null) {
+				try {
+					newSlowThreshold = Long.parseLong(tmp.trim(), 10);
+				} catch (NumberFormatException e) {
+					log.warn("Invalid slowmessage '" + tmp + "' - slow "
+						+ "messages are not tracked");
+				}
+				if (newSlowThreshold < 0) {
+					newSlowThreshold = 0;
+				}
+			}
+			tmp = reader.getAttributeValue(null, "slowrecords");
+			if (tmp != null) {
+				try {
+					newSlowRecords = Integer.parseInt(tmp.trim(), 10);
+				} catch (NumberFormatException e) {
+					log.warn("Invalid slowrecords '" + tmp + "' - using the "
+						+ "default");
+				}
+				if (newSlowRecords < 0) {
+					newSlowRecords = 0;
+				}
+			}
 			while (reader.hasNext()) {
 				int res = reader.next();
 				if (res == XMLStreamConstants.END_ELEMENT) {
@@ -378,6 +527,41 @@ public class Configuration {
 				pcs.firePropertyChange(RCPTTO_CHANGED, old, newDisableRcptTo);
 			}
 		}
+		if (newSpillSize != spillSize || newBodyMemory != bodyMemory
+			|| (newSpoolDir == null ? spoolDir != null 
+				: !newSpoolDir.equals(spoolDir)))
+		{
+			spillSize = newSpillSize;
+			bodyMemory = newBodyMemory;
+			spoolDir = newSpoolDir;
+			if (pcs != null) {
+				pcs.firePropertyChange(BODY_CHANGED, null, spoolDir);
+			}
+		}
+		if (newCpuSampling != cpuSampling) {
+			int old = cpuSampling;
+			cpuSampling = newCpuSampling;
+			if (pcs != null) {
+				pcs.firePropertyChange(SAMPLING_CHANGED, old, cpuSampling);
+			}
+		}
+		if (newMetricsAddress == null ? metricsAddress != null 
+			: !newMetricsAddress.equals(metricsAddress))
+		{
+			InetSocketAddress old = metricsAddress;
+			metricsAddress = newMetricsAddress;
+			if (pcs != null) {
+				pcs.firePropertyChange(METRICS_CHANGED, old, metricsAddress);
+			}
+		}
+		if (newSlowThreshold != slowThreshold || newSlowRecords != slowRecords) {
+			slowThreshold = newSlowThreshold;
+			slowRecords = newSlowRecords;
+			if (pcs != null) {
+				pcs.firePropertyChange(SLOW_CHANGED, null, 
+					Long.valueOf(slowThreshold));
+			}
+		}
 		boolean fchanged = false;
 		if  (newfilters.size() == filter.size()) {
 			for (String f : newfilters) {
@@ -401,6 +585,34 @@ public class Configuration {
 		return fchanged;
 	}
 	
+	private static long getSize(String param, long def) {
+		if (param == null) {
+			return def;
+		}
+		String tmp = param.trim().toLowerCase();
+		long factor = 1;
+		if (tmp.endsWith("k")) {
+			factor = 1024;
+		} else if (tmp.endsWith("m")) {
+			factor = 1024 * 1024;
+		} else if (tmp.endsWith("g")) {
+			factor = 1024 * 1024 * 1024;
+		}
+		if (factor != 1) {
+			tmp = tmp.substring(0, tmp.length()-1).trim();
+		}
+		try {
+			long val = Long.parseLong(tmp, 10);
+			if (val >= 0) {
+				return val * factor;
+			}
+		} catch (Exception e) {
+			// handled below
+		}
+		log.warn("Invalid size value '" + param + "' ignored");
+		return def;
+	}
+
 	private void setSampleRates(String param) {
 		if (param == null || param.length() == 0) {
 			sampleRate = DEFAULT_SAMPLE_RATES;
@@ -523,6 +735,73 @@ public class Configuration {
 		return maxWorkers;
 	}
 	
+	/**
+	 * Get the max. number of bytes of a reassembled mail body to keep in 
+	 * memory.
+	 * @return a value &gt;= 0
+	 */
+	public long getSpillSize() {
+		return spillSize;
+	}
+
+	/**
+	 * Get the max. number of bytes all workers together may use to keep 
+	 * reassembled mail bodies in memory.
+	 * @return a value &gt;= 0
+	 */
+	public long getBodyMemory() {
+		return bodyMemory;
+	}
+
+	/**
+	 * Get the directory, where spilled mail bodies should be stored.
+	 * @return <code>null</code> if the default temporary-file directory should
+	 * 		be used.
+	 */
+	public File getSpoolDir() {
+		return spoolDir;
+	}
+
+	/**
+	 * Get the number of filter invocations per worker, for which the CPU time
+	 * and allocated bytes of one invocation should be measured.
+	 * @return <code>0</code> if no measurements should be done, a value 
+	 * 		&gt; 0 otherwise.
+	 * @see #DEFAULT_CPU_SAMPLING
+	 */
+	public int getCpuSampling() {
+		return cpuSampling;
+	}
+
+	/**
+	 * Get the address, where the statistics should be served in the 
+	 * OpenMetrics text format.
+	 * @return <code>null</code> if no metrics endpoint should be started,
+	 * 		the address to bind to otherwise.
+	 */
+	public InetSocketAddress getMetricsAddress() {
+		return metricsAddress;
+	}
+
+	/**
+	 * Get the end-to-end latency, from which on a message should be logged
+	 * as slow.
+	 * @return <code>0</code> if slow messages should not be tracked, the
+	 * 		threshold in milliseconds otherwise.
+	 */
+	public long getSlowThreshold() {
+		return slowThreshold;
+	}
+
+	/**
+	 * Get the number of slow messages to keep for inspection via JMX.
+	 * @return a value &gt;= 0.
+	 * @see #DEFAULT_SLOW_RECORDS
+	 */
+	public int getSlowRecords() {
+		return slowRecords;
+	}
+
 	/**
 	 * Check, whether milter4j should automatically add a "X-Milter" header with
 	 * its value set to the version of the framework when receiving the
@@ -9,6 +9,9 @@
  */
 package de.ovgu.cs.milter4j;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
@@ -20,7 +23,10 @@ import javax.mail.internet.MimeMultipart;
 import de.ovgu.cs.milter4j.cmd.Type;
 import de.ovgu.cs.milter4j.reply.ContinuePacket;
 import de.ovgu.cs.milter4j.reply.Packet;
+import de.ovgu.cs.milter4j.util.BodyDigest;
+import de.ovgu.cs.milter4j.util.HeaderList;
 import de.ovgu.cs.milter4j.util.Mail;
+import de.ovgu.cs.milter4j.util.MimeListener;
 import de.ovgu.cs.milter4j.util.RequestDumper;
 
 /**
@@ -229,6 +235,13 @@ public abstract class MailFilter {
 	 * <p>
 	 * The filter may access the reconstructed mail in its {@link 
 	 * #doEndOfMail(List, HashMap, Mail)} method.
+	 * <p>
+	 * If any filter requests reassembling, the managing server asks the MTA
+	 * for the {@link Macro#MSG_SIZE} macro at the {@link MacroStage#ENVFROM}
+	 * stage to be able to choose the storage for the body up front.
+	 * <p>
+	 * Whether the mail actually gets reassembled, can be decided per message
+	 * via {@link #needsMail(List, HashMap)}.
 	 *   
 	 * @return	if <code>true</code> managing server reassembles the mail by
 	 * 	collecting all data packets.
@@ -236,7 +249,132 @@ public abstract class MailFilter {
 	public boolean reassembleMail() {
 		return false;
 	}
-	
+
+	/**
+	 * Tell the managing server, whether this filter needs the reassembled
+	 * mail for the current message. Gets called once per message, when all
+	 * headers have been received, and only if {@link #reassembleMail()}
+	 * returned <code>true</code>.
+	 * <p>
+	 * If no filter needs the mail, the managing server does not collect the
+	 * body chunks at all, and {@link #doEndOfMail(List, HashMap, Mail)} gets
+	 * a <code>null</code> mail. So e.g. a filter, which inspects attachments,
+	 * may return <code>false</code> for messages, whose Content-Type is not
+	 * <code>multipart/*</code>.
+	 * 
+	 * @param headers	the headers of the current message received so far.
+	 * 		Must not be modified.
+	 * @param allMacros	all macros already sent by the MTA for the current 
+	 * 		connection and message.
+	 * @return <code>true</code> (default) if the mail should be reassembled.
+	 */
+	public boolean needsMail(List<Header> headers, 
+		HashMap<String,String> allMacros) 
+	{
+		return true;
+	}
+
+	/**
+	 * Indicate, whether this filter needs the headers of a message as a 
+	 * whole, only. If so, {@link #doHeader(String, String, HashMap)} never 
+	 * gets called, and the filter should inspect the headers in 
+	 * {@link #doEndOfHeader(List, HashMap)} (i.e. it should include 
+	 * {@link Type#EOH} in its {@link #getCommands()}).
+	 * <p>
+	 * If all filters interested in headers use batch mode, the managing 
+	 * server tells the MTA, that it will not reply to single headers, which 
+	 * saves a round trip per header line.
+	 * <p>
+	 * Gets called, when the filter gets plugged into the server.
+	 * 
+	 * @return <code>false</code> (default) to get each header via 
+	 * 		{@link #doHeader(String, String, HashMap)}.
+	 */
+	public boolean wantsHeaderBatch() {
+		return false;
+	}
+
+	/**
+	 * Tell the managing server, how body data should be delivered to this 
+	 * filter.
+	 * <p>
+	 * Per default the body chunks are passed to 
+	 * {@link #doBody(byte[], HashMap)} as received from the MTA, i.e. lines 
+	 * may be split across calls. If this method returns a value &gt;= 0, the 
+	 * managing server passes line-aligned slices to 
+	 * {@link #doBody(byte[], int, int, HashMap)} instead, carrying incomplete 
+	 * lines over to the next call. If the value is &gt; 0, small chunks are
+	 * collected until at least that many bytes are available, which reduces
+	 * the number of calls. Filters using the same value share the carry-over
+	 * buffer.
+	 * <p>
+	 * Gets called, when the filter gets plugged into the server.
+	 * 
+	 * @return <code>-1</code> (default) for raw chunks, <code>0</code> for 
+	 * 		line-aligned slices, the min. slice size otherwise.
+	 */
+	public int getBodyCoalesceSize() {
+		return -1;
+	}
+
+	/**
+	 * Indicate, whether raw body chunks should be passed to 
+	 * {@link #doBody(ByteBuffer, HashMap)} as a view of the receive buffer 
+	 * instead of a copy to {@link #doBody(byte[], HashMap)}. Filters 
+	 * overriding the former should return <code>true</code>.
+	 * <p>
+	 * Gets called, when the filter gets plugged into the server.
+	 * 
+	 * @return <code>false</code> (default) to get a copy of each chunk.
+	 */
+	public boolean wantsBodyBuffer() {
+		return false;
+	}
+
+	/**
+	 * Get the listener, which should receive the MIME structure of the
+	 * current message, while the body gets streamed from the MTA.
+	 * <p>
+	 * The managing server parses the body chunks once for all filters
+	 * with a listener and reports part starts, part headers, raw part content
+	 * and part ends via the returned listener. This allows a filter e.g. to
+	 * reject a message with a forbidden attachment type before the rest of
+	 * the body has been received, and without requesting the
+	 * {@link #reassembleMail() reassembling} of the message.
+	 * <p>
+	 * The listener gets fetched when the filter gets plugged into the
+	 * server, so the same instance is used for all messages. It receives
+	 * events only, if {@link #getCommands()} contains {@link Type#BODY}.
+	 *
+	 * @return <code>null</code> (default), if the filter is not interested in
+	 * 		MIME events.
+	 */
+	public MimeListener getMimeListener() {
+		return null;
+	}
+
+	/**
+	 * Get the digests of the message body, this filter needs.
+	 * <p>
+	 * Instead of hashing the reassembled message at the end of the message,
+	 * the managing server updates the returned digests incrementally, while
+	 * the body chunks arrive. Digests with the same algorithm and 
+	 * canonicalization get computed only once for all filters. The results
+	 * are available via {@link BodyDigest#getValue()} in 
+	 * {@link #doEndOfMail(List, HashMap, Mail)}.
+	 * <p>
+	 * The digests get fetched when the filter gets plugged into the
+	 * server, so the same instances are used for all messages. They get
+	 * computed only, if {@link #getCommands()} contains {@link Type#BODY} 
+	 * and {@link Type#BODYEOB}.
+	 *
+	 * @return <code>null</code> (default), if the filter needs no body 
+	 * 		digests.
+	 */
+	public Collection<BodyDigest> getBodyDigests() {
+		return null;
+	}
+
 	// command handling
 
 	/**
@@ -316,7 +454,8 @@ public abstract class MailFilter {
 	 * list nor to change any entries in it, since shared by other filters as 
 	 * well.
 	 * <p>
-	 * Only called, if {@link #getCommands()} contains {@link Type#HEADER}.
+	 * Only called, if {@link #getCommands()} contains {@link Type#HEADER} and
+	 * {@link #wantsHeaderBatch()} returns <code>false</code>.
 	 * <p>
 	 * Type: message-oriented
 	 * 
@@ -442,6 +581,71 @@ public abstract class MailFilter {
 		return new ContinuePacket();
 	}
 
+	/**
+	 * Handle one piece of body chunk received from the MTA, presented as a
+	 * read-only view of the receive buffer of the managing server, i.e. 
+	 * without copying it into an array first.
+	 * <p>
+	 * If {@link #wantsBodyBuffer()} returns <code>true</code>, the managing 
+	 * server calls this method instead of 
+	 * {@link #doBody(byte[], HashMap)}. The view is valid during this call,
+	 * only. Its position and limit may be changed freely, since each filter
+	 * gets its own view.
+	 * <p>
+	 * Only called, if {@link #getCommands()} contains {@link Type#BODY} and
+	 * {@link #getBodyCoalesceSize()} returns a value &lt; 0.
+	 * <p>
+	 * Type: message-oriented
+	 * 
+	 * @param chunk		raw data received. It might be a part or the whole 
+	 * 		mail body, depending on its length.
+	 * @param allMacros	all macros already sent by the MTA for the current 
+	 * 		connection and message. 
+	 * @return the answer to this packet. Per default the result of
+	 * 		{@link #doBody(byte[], HashMap)} with a copy of the remaining 
+	 * 		bytes of the view.
+	 */
+	public Packet doBody(ByteBuffer chunk, HashMap<String,String> allMacros) {
+		byte[] b = new byte[chunk.remaining()];
+		chunk.duplicate().get(b);
+		return doBody(b, allMacros);
+	}
+
+	/**
+	 * Handle a slice of the body, if the filter requested line-aligned 
+	 * delivery via {@link #getBodyCoalesceSize()}. The slice always ends 
+	 * with a line feed, except the last slice of the body and pieces of 
+	 * lines, which are longer than 
+	 * {@link de.ovgu.cs.milter4j.util.BodyAligner#getMaxLineLength()}.
+	 * <p>
+	 * The slice usually refers directly to the chunk received from the MTA
+	 * or to an internal buffer of the managing server, so it is valid during
+	 * this call, only, and must not be modified. 
+	 * <p>
+	 * Only called, if {@link #getCommands()} contains {@link Type#BODY}. The
+	 * last slice may be delivered right before 
+	 * {@link #doEndOfMail(List, HashMap, Mail)}.
+	 * <p>
+	 * Type: message-oriented
+	 * 
+	 * @param data	buffer, which contains the slice
+	 * @param off	offset of the first byte of the slice
+	 * @param len	length of the slice
+	 * @param allMacros	all macros already sent by the MTA for the current 
+	 * 		connection and message. 
+	 * @return the answer to this packet. Per default the result of 
+	 * 		{@link #doBody(byte[], HashMap)} with a copy of the slice (if not
+	 * 		the whole buffer).
+	 */
+	public Packet doBody(byte[] data, int off, int len,
+		HashMap<String,String> allMacros)
+	{
+		if (off == 0 && len == data.length) {
+			return doBody(data, allMacros);
+		}
+		return doBody(Arrays.copyOfRange(data, off, off + len), allMacros);
+	}
+
 	/**
 	 * Handle the end of header packet received from MTA.
 	 * A filter is not allowed to change the given lists nor to change any 
@@ -454,6 +658,11 @@ public abstract class MailFilter {
 	 * @param headers the list of headers sent by the mail client and
 	 * 		added by other mail filters. It does not contain the headers added
 	 * 		by the MTA itself. Also other filter may still add new ones.
+	 * 		The list is a {@link HeaderList}, which provides indexed lookups
+	 * 		by header name. Its entries are 
+	 * 		{@link de.ovgu.cs.milter4j.util.HeaderArena.RawHeader}s, which 
+	 * 		provide the RFC 2047 decoded values as well and must not be 
+	 * 		used after the current message has been processed.
 	 * @param allMacros	all macros already sent by the MTA for the current 
 	 * 		connection and message. 
 	 * 
@@ -479,7 +688,9 @@ public abstract class MailFilter {
 	 * <p>
 	 * If mail gets reconstructed, {@link Mail#getContent()} usually returns a 
 	 * String, if it is a simple text message, and {@link MimeMultipart} if it 
-	 * contains multiple MIME parts.
+	 * contains multiple MIME parts. Filters, which just need the MIME structure
+	 * or a single part, should prefer the much cheaper 
+	 * {@link Mail#getAllParts()}.
 	 * <p>
 	 * Only called, if {@link #getCommands()} contains {@link Type#BODYEOB}.
 	 * <p>
@@ -492,7 +703,9 @@ public abstract class MailFilter {
 	 * @param allMacros	all macros already sent by the MTA for the current 
 	 * 		connection and message. 
 	 * @param message the complete message. Might be <code>null</code> if not 
-	 * 		requested.
+	 * 		requested. Its content is backed by buffers of the managing server,
+	 * 		which get reused for the next message. So a filter must not use it
+	 * 		after this method has returned.
 	 * 
 	 * @return a list of answers to this packet. Per default <code>null</code>.
 	 * @see MimeMultipart
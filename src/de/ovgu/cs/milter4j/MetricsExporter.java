@@ -0,0 +1,367 @@
+/**
+ * $Id$
+ *
+ * Copyright (c) 2005-2007 Jens Elkner.
+ * All Rights Reserved.
+ *
+ * This software is the proprietary information of Jens Elkner.
+ * Use is subject to license terms.
+ */
+package de.ovgu.cs.milter4j;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import de.ovgu.cs.milter4j.cmd.Type;
+import de.ovgu.cs.milter4j.jmx.FilterStats;
+import de.ovgu.cs.milter4j.jmx.LatencyHistogram;
+
+/**
+ * An embedded HTTP endpoint, which serves the connection, latency, filter
+ * and executor statistics in the OpenMetrics text format on
+ * <code>/metrics</code>, e.g. to be scraped by Prometheus.
+ * <p>
+ * Requests get handled one after another by the dispatcher thread of the
+ * HTTP server, so the text gets rendered into a buffer, which is reused for
+ * all scrapes. The values are read directly from the live counters and
+ * histograms, i.e. no JMX open data gets created. Filter counters, which are
+ * still <code>0</code>, are omitted to keep scrapes small.
+ *
+ * @author 	Jens Elkner
+ * @version	$Revision$
+ */
+public class MetricsExporter implements HttpHandler {
+	private static final Logger log = LoggerFactory
+		.getLogger(MetricsExporter.class);
+
+	/** the path, where the metrics are served */
+	public static final String PATH = "/metrics";
+	private static final String CONTENT_TYPE =
+		"application/openmetrics-text; version=1.0.0; charset=utf-8";
+	private static final String PREFIX = "milter4j_";
+
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+	private static final String[] QUANTILE_NAMES = {
+		"0.5", "0.9", "0.99", "0.999"
+	};
+	private static final Type[] CMDS = Type.values();
+	private static final de.ovgu.cs.milter4j.reply.Type[] REPLIES =
+		de.ovgu.cs.milter4j.reply.Type.values();
+
+	private StatsCollector stats;
+	private ThreadPoolExecutor executor;
+	private HttpServer server;
+
+	// render state, reused for all scrapes
+	private final StringBuilder sb = new StringBuilder(16 * 1024);
+	private final long[] q = new long[QUANTILES.length];
+	private byte[] buf = new byte[16 * 1024];
+
+	/**
+	 * Create a new exporter.
+	 * @param stats		the statistics to export
+	 * @param executor	the executor running the workers. If <code>null</code>,
+	 * 		no executor statistics get exported.
+	 */
+	public MetricsExporter(StatsCollector stats, ThreadPoolExecutor executor) {
+		if (stats == null) {
+			throw new IllegalArgumentException("null stats not allowed");
+		}
+		this.stats = stats;
+		this.executor = executor;
+	}
+
+	/**
+	 * Start serving the metrics on the given address.
+	 * @param address	the address to bind to
+	 * @throws IOException if the server socket could not be created
+	 */
+	public void start(InetSocketAddress address) throws IOException {
+		stop();
+		HttpServer s = HttpServer.create(address, 4);
+		s.createContext(PATH, this);
+		// null: requests get handled by the dispatcher thread, one by one
+		s.setExecutor(null);
+		s.start();
+		server = s;
+		log.info("Serving metrics on " + address + PATH);
+	}
+
+	/**
+	 * Stop serving the metrics. Does nothing, if not started.
+	 */
+	public void stop() {
+		if (server != null) {
+			server.stop(0);
+			server = null;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void handle(HttpExchange ex) throws IOException {
+		try {
+			String method = ex.getRequestMethod();
+			boolean head = method.equals("HEAD");
+			if (!head && !method.equals("GET")) {
+				ex.getResponseHeaders().set("Allow", "GET, HEAD");
+				ex.sendResponseHeaders(405, -1);
+				return;
+			}
+			int len;
+			try {
+				len = render();
+			} catch (Exception e) {
+				log.warn(e.getLocalizedMessage());
+				if (log.isDebugEnabled()) {
+					log.debug("handle", e);
+				}
+				ex.sendResponseHeaders(500, -1);
+				return;
+			}
+			ex.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			if (head) {
+				ex.sendResponseHeaders(200, -1);
+				return;
+			}
+			ex.sendResponseHeaders(200, len);
+			OutputStream out = ex.getResponseBody();
+			out.write(buf, 0, len);
+			out.flush();
+		} finally {
+			ex.close();
+		}
+	}
+
+	/**
+	 * Render all metrics into the internal buffer.
+	 * @return the number of bytes rendered.
+	 */
+	int render() {
+		sb.setLength(0);
+		family("connections", "counter", null,
+			"Number of MTA connections accepted since start");
+		name("connections_total").append(' ').append(stats.getConnections())
+			.append('\n');
+		family("start_time_seconds", "gauge", null,
+			"Start time of the server since the epoch");
+		name("start_time_seconds").append(' ');
+		fixed(stats.getStartTime().getTime(), 3).append('\n');
+
+		summary("session_duration_seconds",
+			"Duration of MTA connections", stats.getSessionLatency());
+		summary("message_duration_seconds",
+			"End-to-end latency of messages from MAIL FROM until end of "
+			+ "message or abort", stats.getMessageLatency());
+
+		family("filter_replies", "counter", null,
+			"Replies of mail filters by command");
+		for (FilterStats f : stats.getFilterStats()) {
+			for (int i=0; i < CMDS.length; i++) {
+				for (int k=0; k < REPLIES.length; k++) {
+					long v = f.getCount(CMDS[i], REPLIES[k]);
+					if (v == 0) {
+						continue;
+					}
+					name("filter_replies_total");
+					labels(f.getName(), CMDS[i]).append(",reply=\"")
+						.append(REPLIES[k].name()).append("\"} ").append(v)
+						.append('\n');
+				}
+			}
+		}
+		family("filter_duration_seconds", "summary", "seconds",
+			"Time mail filters took to handle a command");
+		for (FilterStats f : stats.getFilterStats()) {
+			for (int i=0; i < CMDS.length; i++) {
+				long n = f.getLatency(CMDS[i]).getPercentiles(QUANTILES, q);
+				if (n == 0) {
+					continue;
+				}
+				for (int k=0; k < q.length; k++) {
+					name("filter_duration_seconds");
+					labels(f.getName(), CMDS[i]).append(",quantile=\"")
+						.append(QUANTILE_NAMES[k]).append("\"} ");
+					fixed(q[k], 6).append('\n');
+				}
+				name("filter_duration_seconds_count");
+				labels(f.getName(), CMDS[i]).append("} ").append(n)
+					.append('\n');
+			}
+		}
+		family("filter_usage_samples", "counter", null,
+			"Number of mail filter invocations, whose resource usage has been "
+			+ "measured");
+		for (FilterStats f : stats.getFilterStats()) {
+			for (int i=0; i < CMDS.length; i++) {
+				long v = f.getSamples(CMDS[i]);
+				if (v != 0) {
+					name("filter_usage_samples_total");
+					labels(f.getName(), CMDS[i]).append("} ").append(v)
+						.append('\n');
+				}
+			}
+		}
+		family("filter_cpu_seconds", "counter", "seconds",
+			"CPU time used by the measured mail filter invocations");
+		for (FilterStats f : stats.getFilterStats()) {
+			for (int i=0; i < CMDS.length; i++) {
+				long v = f.getCpuTime(CMDS[i]);
+				if (v != 0) {
+					name("filter_cpu_seconds_total");
+					labels(f.getName(), CMDS[i]).append("} ");
+					fixed(v, 9).append('\n');
+				}
+			}
+		}
+		family("filter_allocated_bytes", "counter", "bytes",
+			"Bytes allocated by the measured mail filter invocations");
+		for (FilterStats f : stats.getFilterStats()) {
+			for (int i=0; i < CMDS.length; i++) {
+				long v = f.getAllocatedBytes(CMDS[i]);
+				if (v != 0) {
+					name("filter_allocated_bytes_total");
+					labels(f.getName(), CMDS[i]).append("} ").append(v)
+						.append('\n');
+				}
+			}
+		}
+
+		if (executor != null) {
+			gauge("executor_active_threads",
+				"Number of threads actively executing workers",
+				executor.getActiveCount());
+			gauge("executor_pool_threads",
+				"Current number of threads in the pool",
+				executor.getPoolSize());
+			gauge("executor_largest_pool_threads",
+				"Largest number of threads, which have ever been in the pool",
+				executor.getLargestPoolSize());
+			gauge("executor_core_pool_threads",
+				"Core number of threads", executor.getCorePoolSize());
+			gauge("executor_max_pool_threads",
+				"Max. number of threads", executor.getMaximumPoolSize());
+			family("executor_tasks", "counter", null,
+				"Number of tasks scheduled for execution (approximation)");
+			name("executor_tasks_total").append(' ')
+				.append(executor.getTaskCount()).append('\n');
+			family("executor_completed_tasks", "counter", null,
+				"Number of tasks completed (approximation)");
+			name("executor_completed_tasks_total").append(' ')
+				.append(executor.getCompletedTaskCount()).append('\n');
+		}
+		sb.append("# EOF\n");
+		return encode();
+	}
+
+	private StringBuilder name(String name) {
+		return sb.append(PREFIX).append(name);
+	}
+
+	private void family(String name, String type, String unit, String help) {
+		sb.append("# TYPE ").append(PREFIX).append(name).append(' ')
+			.append(type).append('\n');
+		if (unit != null) {
+			sb.append("# UNIT ").append(PREFIX).append(name).append(' ')
+				.append(unit).append('\n');
+		}
+		sb.append("# HELP ").append(PREFIX).append(name).append(' ')
+			.append(help).append(".\n");
+	}
+
+	private void gauge(String name, String help, long value) {
+		family(name, "gauge", null, help);
+		name(name).append(' ').append(value).append('\n');
+	}
+
+	private void summary(String name, String help, LatencyHistogram h) {
+		family(name, "summary", "seconds", help);
+		long n = h.getPercentiles(QUANTILES, q);
+		if (n != 0) {
+			for (int k=0; k < q.length; k++) {
+				name(name).append("{quantile=\"").append(QUANTILE_NAMES[k])
+					.append("\"} ");
+				fixed(q[k], 6).append('\n');
+			}
+		}
+		name(name).append("_count ").append(n).append('\n');
+	}
+
+	// opens the label set, the caller has to close it
+	private StringBuilder labels(String filter, Type cmd) {
+		sb.append("{filter=\"");
+		for (int i=0; i < filter.length(); i++) {
+			char c = filter.charAt(i);
+			if (c == '\\' || c == '"') {
+				sb.append('\\').append(c);
+			} else if (c == '\n') {
+				sb.append("\\n");
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append("\",command=\"").append(cmd.name()).append('"');
+	}
+
+	// appends value / 10^scale without creating any objects
+	private StringBuilder fixed(long value, int scale) {
+		if (value < 0) {
+			sb.append('-');
+			value = -value;
+		}
+		long div = 1;
+		for (int i=scale; i > 0; i--) {
+			div *= 10;
+		}
+		sb.append(value / div).append('.');
+		long frac = value % div;
+		for (div /= 10; div > frac && div > 1; div /= 10) {
+			sb.append('0');
+		}
+		return sb.append(frac);
+	}
+
+	// UTF-8 encodes the rendered text into the reused byte buffer
+	private int encode() {
+		int n = sb.length();
+		if (buf.length < n * 3) {
+			buf = new byte[Math.max(n * 3, buf.length * 2)];
+		}
+		int len = 0;
+		for (int i=0; i < n; i++) {
+			char c = sb.charAt(i);
+			if (c < 0x80) {
+				buf[len++] = (byte) c;
+			} else if (c < 0x800) {
+				buf[len++] = (byte) (0xC0 | (c >> 6));
+				buf[len++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < n
+				&& Character.isLowSurrogate(sb.charAt(i + 1)))
+			{
+				int cp = Character.toCodePoint(c, sb.charAt(++i));
+				buf[len++] = (byte) (0xF0 | (cp >> 18));
+				buf[len++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				buf[len++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				buf[len++] = (byte) (0x80 | (cp & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				buf[len++] = (byte) '?';
+			} else {
+				buf[len++] = (byte) (0xE0 | (c >> 12));
+				buf[len++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buf[len++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		return len;
+	}
+}
@@ -20,19 +20,28 @@ import java.nio.ByteBuffer;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanNotificationInfo;
 import javax.management.MBeanServer;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
 import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 import javax.management.openmbean.TabularData;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.ovgu.cs.milter4j.jmx.WorkerState;
+import de.ovgu.cs.milter4j.util.BodyBuffer;
 import de.ovgu.cs.milter4j.util.FutureTaskExecutor;
 
 /**
@@ -46,7 +55,7 @@ import de.ovgu.cs.milter4j.util.FutureTaskExecutor;
  * @version	$Revision$
  */
 public class Server extends Thread
-	implements PropertyChangeListener, ServerMBean
+	implements PropertyChangeListener, ServerMBean, NotificationEmitter
 {
 	static final Logger log = LoggerFactory
 		.getLogger(Server.class);
@@ -64,6 +73,7 @@ public class Server extends Thread
 	private ArrayList<MailFilter> filters;
 	private ArrayList<Worker> workers;
 	private StatsCollector stats;
+	private MetricsExporter metrics;
 	Thread shutdownListener;
 	private int workerOffset = 0;
 	
@@ -88,9 +98,17 @@ public class Server extends Thread
 	public Server(String configFile) {
 		cfg = new Configuration(configFile);
 		cfg.add(this);
+		BodyBuffer.configure(cfg.getSpillSize(), cfg.getBodyMemory(), 
+			cfg.getSpoolDir());
 		executor = new FutureTaskExecutor(3, cfg.getMaxWorkers(), 
 			5L, TimeUnit.MINUTES, new SynchronousQueue<Runnable>());
 		stats = new StatsCollector(cfg.getSampleRates(), cfg.getSamples());
+		stats.setCpuSampling(cfg.getCpuSampling());
+		stats.getSlowLog().configure(cfg.getSlowThreshold(), 
+			cfg.getSlowRecords());
+		stats.setNotificationSource(getMBeanName(true));
+		metrics = new MetricsExporter(stats, executor);
+		configureMetrics();
 		MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
 		try {
 			mbs.registerMBean(executor, getMBeanName(false));
@@ -393,11 +411,32 @@ public class Server extends Thread
 		shutdownListener.start();
 	}
 	
+	private void configureMetrics() {
+		metrics.stop();
+		InetSocketAddress addr = cfg.getMetricsAddress();
+		if (addr == null) {
+			return;
+		}
+		try {
+			metrics.start(addr);
+		} catch (IOException e) {
+			log.warn("metrics endpoint " + addr + ": " 
+				+ e.getLocalizedMessage());
+			if (log.isDebugEnabled()) {
+				log.debug("configureMetrics", e);
+			}
+		}
+	}
+
 	/**
 	 * Handle the property change request for socket and filter changes.
 	 * @param evt {@inheritDoc}
 	 * @see Configuration#FILTER_CHANGED
 	 * @see Configuration#SOCKET_CHANGED
+	 * @see Configuration#BODY_CHANGED
+	 * @see Configuration#SAMPLING_CHANGED
+	 * @see Configuration#METRICS_CHANGED
+	 * @see Configuration#SLOW_CHANGED
 	 */
 	@Override
 	public void propertyChange(PropertyChangeEvent evt) {
@@ -415,6 +454,16 @@ public class Server extends Thread
 			versionChanged = true;
 		} else if (tmp.equals(Configuration.RCPTTO_CHANGED)) {
 			rcptToChanged = true;
+		} else if (tmp.equals(Configuration.BODY_CHANGED)) {
+			BodyBuffer.configure(cfg.getSpillSize(), cfg.getBodyMemory(), 
+				cfg.getSpoolDir());
+		} else if (tmp.equals(Configuration.SAMPLING_CHANGED)) {
+			stats.setCpuSampling(cfg.getCpuSampling());
+		} else if (tmp.equals(Configuration.METRICS_CHANGED)) {
+			configureMetrics();
+		} else if (tmp.equals(Configuration.SLOW_CHANGED)) {
+			stats.getSlowLog().configure(cfg.getSlowThreshold(), 
+				cfg.getSlowRecords());
 		}
 	}
 
@@ -426,6 +475,52 @@ public class Server extends Thread
 		return workers == null ? 0 : workers.size();
 	}
 
+	private WorkerState[] getWorkerStateList() {
+		Worker[] list;
+		lock.lock();
+		try {
+			list = workers == null 
+				? new Worker[0] 
+				: workers.toArray(new Worker[workers.size()]);
+		} finally {
+			lock.unlock();
+		}
+		WorkerState[] states = new WorkerState[list.length];
+		for (int i=0; i < list.length; i++) {
+			states[i] = list[i].getState();
+		}
+		return states;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public TabularData getWorkerStates() {
+		return WorkerState.toTabularData(getWorkerStateList());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompositeData[] getTopSessions(int n) {
+		WorkerState[] states = getWorkerStateList();
+		Arrays.sort(states, WorkerState.BY_AGE);
+		int count = 0;
+		while (count < states.length && count < n && states[count].isBusy()) {
+			count++;
+		}
+		ArrayList<CompositeData> res = new ArrayList<CompositeData>(count);
+		for (int i=0; i < count; i++) {
+			CompositeData cd = states[i].toCompositeData();
+			if (cd != null) {
+				res.add(cd);
+			}
+		}
+		return res.toArray(new CompositeData[res.size()]);
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -469,6 +564,79 @@ public class Server extends Thread
 		return stats.getHistory(idx, relative);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String[] getMetricNames() {
+		return stats.getMetricNames();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public TabularData getHistory(String metric, int idx, boolean relative) {
+		return stats.getHistory(metric, idx, relative);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompositeData getChanges(String prefix, long since) {
+		return stats.getChanges(prefix, since);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getSampleSequence() {
+		return stats.getSampleSequence();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void addNotificationListener(NotificationListener listener,
+		NotificationFilter filter, Object handback)
+	{
+		stats.getNotifier().addNotificationListener(listener, filter, 
+			handback);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void removeNotificationListener(NotificationListener listener)
+		throws ListenerNotFoundException
+	{
+		stats.getNotifier().removeNotificationListener(listener);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void removeNotificationListener(NotificationListener listener,
+		NotificationFilter filter, Object handback)
+		throws ListenerNotFoundException
+	{
+		stats.getNotifier().removeNotificationListener(listener, filter, 
+			handback);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public MBeanNotificationInfo[] getNotificationInfo() {
+		return stats.getNotifier().getNotificationInfo();
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -477,6 +645,46 @@ public class Server extends Thread
 		return stats.getConnections();
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public TabularData getRates() {
+		return stats.getRates();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public TabularData getLatencies() {
+		return stats.getLatencies();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void resetLatencies() {
+		stats.resetLatencies();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public TabularData getSlowMessages() {
+		return stats.getSlowLog().getRecords();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void resetSlowMessages() {
+		stats.getSlowLog().clear();
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -509,6 +717,9 @@ public class Server extends Thread
 			}
 		}
 		cfg.remove(this);
+		if (metrics != null) {
+			metrics.stop();
+		}
 		executor.shutdown();
 		if (filters != null) {
 			filters.clear();
@@ -11,6 +11,7 @@ package de.ovgu.cs.milter4j;
 
 import java.util.Date;
 
+import javax.management.openmbean.CompositeData;
 import javax.management.openmbean.TabularData;
 
 import de.ovgu.cs.milter4j.StatsCollector;
@@ -29,6 +30,25 @@ public interface ServerMBean {
 	 */
 	public int getWorkers();
 
+	/**
+	 * Get what each pooled worker is currently doing, i.e. the MTA 
+	 * connected, the command and filter currently handled, the time spent
+	 * in the current state as well as the number of messages and bytes
+	 * received on the current connection.
+	 * @return a table with one row per worker.
+	 * @see de.ovgu.cs.milter4j.jmx.WorkerState
+	 */
+	public TabularData getWorkerStates();
+
+	/**
+	 * Get the state of the workers with the oldest MTA connections, e.g.
+	 * to spot stuck filters or slow MTAs.
+	 * @param n	max. number of sessions to return
+	 * @return the states of the busy workers, oldest session first.
+	 * @see #getWorkerStates()
+	 */
+	public CompositeData[] getTopSessions(int n);
+
 	/**
 	 * Get a list of all configured filters
 	 * @return a possible empty list
@@ -68,6 +88,54 @@ public interface ServerMBean {
 	 */
 	public TabularData getHistory(int idx, boolean relative);
 
+	/**
+	 * Get the names of all metrics, for which a history is available.
+	 * @return a possibly empty list
+	 */
+	public String[] getMetricNames();
+
+	/**
+	 * Get the history collection of the given metric as time;value pair.
+	 * 
+	 * @param metric	the name of the metric
+	 * @param idx	the idx of the collection to retrieve
+	 * @param relative if <code>true</code> return the difference to the
+	 * 		previous sample instead of the sampled value.
+	 * @return <code>null</code> if not available, the collection otherwise.
+	 * 
+	 * @see #getMetricNames()
+	 * @see StatsCollector#getHistory(String, int, boolean)
+	 */
+	public TabularData getHistory(String metric, int idx, boolean relative);
+
+	/**
+	 * Get the last sampled values of the metrics with the given name prefix,
+	 * which have changed since the given history sample. Together with the
+	 * {@link StatsCollector#SAMPLE_NOTIFICATION}s emitted by this MBean 
+	 * for each new sample, clients are able to keep their view up to date
+	 * without polling unchanged values.
+	 * 
+	 * @param prefix	name prefix of the metrics, e.g. 
+	 * 		<var>filter</var><code>.</code> for all counters and latency 
+	 * 		percentiles of a filter. <code>null</code> for all metrics.
+	 * @param since	the sequence number returned by the previous call, 
+	 * 		<code>0</code> to get all metrics. If the returned sequence number
+	 * 		is less than this one, the server has been restarted.
+	 * @return <code>null</code> if no history is collected, the composite
+	 * 		<code>Seq</code>, <code>Time</code> and <code>Changes</code> 
+	 * 		(a Name;Value table) otherwise.
+	 * 
+	 * @see #getMetricNames()
+	 * @see StatsCollector#getChanges(String, long)
+	 */
+	public CompositeData getChanges(String prefix, long since);
+
+	/**
+	 * Get the sequence number of the last history sample.
+	 * @return <code>0</code> if no sample has been taken, yet.
+	 */
+	public long getSampleSequence();
+
 	/**
 	 * Get the version of this product.
 	 * @return a multi-lined, human-readable version info
@@ -79,6 +147,42 @@ public interface ServerMBean {
 	 */
 	public long getConnections();
 
+	/**
+	 * Get the moving average rates of connections, messages and bytes
+	 * received from MTAs.
+	 * @return a table with the count and the mean, 1, 5 and 15 minute rates
+	 * 		per second.
+	 * @see StatsCollector#getRates()
+	 */
+	public TabularData getRates();
+
+	/**
+	 * Get the end-to-end latencies of sessions (MTA connections) and 
+	 * messages.
+	 * @return a table with the count, p50, p90, p99, p999 and max. latency
+	 * 		in microseconds.
+	 * @see StatsCollector#getLatencies()
+	 */
+	public TabularData getLatencies();
+
+	/**
+	 * Drop all session, message and filter latencies recorded so far.
+	 */
+	public void resetLatencies();
+
+	/**
+	 * Get the last messages, whose end-to-end latency exceeded the 
+	 * configured threshold, with the time spent per command and per filter.
+	 * @return a possibly empty table.
+	 * @see Configuration#getSlowThreshold()
+	 */
+	public TabularData getSlowMessages();
+
+	/**
+	 * Drop all slow message records kept so far.
+	 */
+	public void resetSlowMessages();
+
 	/**
 	 * Shutdown the server gracefully
 	 */
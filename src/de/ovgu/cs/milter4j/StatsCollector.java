@@ -9,31 +9,31 @@
  */
 package de.ovgu.cs.milter4j;
 
-import java.util.ArrayDeque;
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
+import javax.management.MBeanNotificationInfo;
 import javax.management.MBeanServer;
+import javax.management.Notification;
+import javax.management.NotificationBroadcasterSupport;
 import javax.management.openmbean.CompositeData;
-import javax.management.openmbean.CompositeDataSupport;
-import javax.management.openmbean.CompositeType;
-import javax.management.openmbean.OpenDataException;
-import javax.management.openmbean.OpenType;
-import javax.management.openmbean.SimpleType;
 import javax.management.openmbean.TabularData;
-import javax.management.openmbean.TabularDataSupport;
-import javax.management.openmbean.TabularType;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.ovgu.cs.milter4j.cmd.Type;
 import de.ovgu.cs.milter4j.jmx.FilterStats;
+import de.ovgu.cs.milter4j.jmx.HistoryStore;
+import de.ovgu.cs.milter4j.jmx.LatencyHistogram;
+import de.ovgu.cs.milter4j.jmx.RateMeter;
+import de.ovgu.cs.milter4j.jmx.SlowMessageLog;
+import de.ovgu.cs.milter4j.jmx.ThreadMeter;
 
 /**
  * MailFilter stats collector.
@@ -44,65 +44,53 @@ import de.ovgu.cs.milter4j.jmx.FilterStats;
 public class StatsCollector {
 	private static final Logger log = LoggerFactory
 		.getLogger(StatsCollector.class);
-	private HashMap<String, FilterStats> stats;
+	private ConcurrentHashMap<String, FilterStats> stats;
 	
-	private final ReentrantLock lock = new ReentrantLock();
-	private ArrayList<ArrayDeque<Long>> history;
-	private ArrayList<ArrayDeque<Long>> lastTime;
+	private HistoryStore history;
 	private long[] intervall;
 	
 	private long startTime;
-	private int connections;
+	private final LongAdder connections = new LongAdder();
+	private final LongAdder messages = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final RateMeter[] rates;
+	private static final String[] RATE_NAMES = { 
+		"Connections", "Messages", "Bytes" 
+	};
+	private final LatencyHistogram sessionLatency = new LatencyHistogram();
+	private final LatencyHistogram messageLatency = new LatencyHistogram();
+	private volatile int cpuSampling;
+	private final SlowMessageLog slowLog = new SlowMessageLog();
 	private Timer timer;
 	private TimerTask timerTask;
+	private TimerTask rateTask;
 	private int limit;
+	private final NotificationBroadcasterSupport notifier;
+	private volatile Object source;
 	
-	private static String[] HIST_NAMES = new String[] { 
-		"Time", 
-		"Connections"
-	};
-	private static String[] HIST_DESC = new String[] {
-		"Time in milliseconds since 01.01.1970 0:00 UTC", 
-		"Number of Connections established since application start" 
-	};
-	private static OpenType<?>[] HIST_TYPES = new OpenType[] { 
-		SimpleType.DATE, 
-		SimpleType.LONG
-	};
-	private static CompositeType HIST_TYPE;
-	private static TabularType HIST_TABLE_TYPE;
-	
-	static {
-		try {
-			HIST_TYPE = new CompositeType(
-				"HistoryEntry",
-				"A time,value pair for connection history",
-				HIST_NAMES, HIST_DESC, HIST_TYPES);
-			HIST_TABLE_TYPE = new TabularType("History", "a history table", 
-				HIST_TYPE, new String[] { HIST_NAMES[0] });
-		} catch (Exception e) {
-			log.warn(e.getLocalizedMessage());
-			if (log.isDebugEnabled()) {
-				log.debug("enclosing_method", e);
-			}
-		}
-	}
+	/** name of the connection counter metric */
+	public static final String CONNECTIONS = "Connections";
+	private static final String CONNECTIONS_DESC = 
+		"Number of Connections established since application start";
+
+	/** type of the notification sent, when a history sample has been taken */
+	public static final String SAMPLE_NOTIFICATION = "milter4j.history.sample";
 	
 	/**
 	 * Default constructor.
 	 * <p>
 	 * If you care about memory - roughly the allocation rules for history:
-	 * {@code <var>collectionTimes.length</var> x <var>samples</var> x 4 x 4 x4} 
-	 * whereby <var>sample</var> gets rounded to the next power of two value
-	 * minus 1, if it doesn't already represent a 2<sup>n</sup> value. 
+	 * {@code <var>collectionTimes.length</var> x <var>samples</var> x 8} 
+	 * bytes for the sample times plus the same amount for each metric, which 
+	 * has been not <code>0</code> at least once. <var>sample</var> gets 
+	 * rounded to the next power of two value minus 1, if it doesn't already 
+	 * represent a 2<sup>n</sup> value. 
 	 * 
 	 * @param collectionTimes history collection intervalls wrt. connections
 	 * @param samples	hint, how much samples to keep for each intervall 
 	 * 		(should be 2<sup>n</sup>-1)
 	 */
 	public StatsCollector(int[] collectionTimes, int samples) {
-		// no API to retrieve the internal capacity of deque. But since element
-		// pointers are allocated anyway, we use samples just as a hint
 		limit = samples < 8 
 			? 7 
 			: (samples < Integer.MAX_VALUE ? samples : Integer.MAX_VALUE-1);
@@ -111,8 +99,24 @@ public class StatsCollector {
 		limit |= (limit >>>  4);
 		limit |= (limit >>>  8);
 		limit |= (limit >>> 16);
-		stats = new HashMap<String, FilterStats>();
+		stats = new ConcurrentHashMap<String, FilterStats>();
+		notifier = new NotificationBroadcasterSupport(
+			new MBeanNotificationInfo(new String[] { SAMPLE_NOTIFICATION },
+				Notification.class.getName(), 
+				"A history sample has been taken. The sequence number of the "
+				+ "notification is the one of the sample."));
 		startTime = System.currentTimeMillis();
+		LongAdder[] counters = { connections, messages, bytes };
+		rates = new RateMeter[counters.length];
+		for (int i=0; i < counters.length; i++) {
+			final LongAdder c = counters[i];
+			rates[i] = new RateMeter(new HistoryStore.Gauge() {
+				@Override
+				public long getValue() {
+					return c.sum();
+				}
+			});
+		}
 		if (collectionTimes != null) {
 			Arrays.sort(collectionTimes);
 			int count = 0;
@@ -127,54 +131,86 @@ public class StatsCollector {
 				collectionTimes = new int[] { Integer.MAX_VALUE };
 			}	
 			intervall = new long[intervalls];
-			history = new ArrayList<ArrayDeque<Long>>(intervalls);
-			lastTime = new ArrayList<ArrayDeque<Long>>(intervalls);
-			Long now = new Long(System.currentTimeMillis());
-			Long zero = Long.valueOf(0);
 			for (int i=0; i < intervalls; i++, count++) {
-				intervall[i] = collectionTimes[count] * 1000;
-				ArrayDeque<Long> q = new ArrayDeque<Long>(limit);
-				history.add(q);
-				q.push(zero);
-				ArrayDeque<Long> q2 = new ArrayDeque<Long>(limit);
-				lastTime.add(q2);
-				q2.push(now);
+				intervall[i] = collectionTimes[count] * 1000L;
 			}
+			history = new HistoryStore(intervall, limit);
+			registerHistory();
+			history.sample(startTime, true);
+		}
+		timer = new Timer("HistoryCollector");
+		if (history != null) {
 			timerTask = new TimerTask() {
 				@Override
 				public void run() {
 					doStats(false);
 				}
 			};
-			timer = new Timer("HistoryCollector");
 			timer.schedule(timerTask, 0, intervall[0]);
 		}
+		rateTask = new TimerTask() {
+			@Override
+			public void run() {
+				tickRates();
+			}
+		};
+		long tick = RateMeter.TICK_SECONDS * 1000L;
+		timer.scheduleAtFixedRate(rateTask, tick, tick);
+	}
+
+	void tickRates() {
+		for (int i=rates.length-1; i >= 0; i--) {
+			rates[i].tick();
+		}
+		for (FilterStats s : stats.values()) {
+			s.tickRates();
+		}
 	}
 	
+	private void registerHistory() {
+		history.register(CONNECTIONS, new HistoryStore.Gauge() {
+			@Override
+			public long getValue() {
+				return connections.sum();
+			}
+		});
+		String[] names = { "Session", "Message" };
+		LatencyHistogram[] h = { sessionLatency, messageLatency };
+		for (int i=0; i < names.length; i++) {
+			history.register(names[i] + ".Count", h[i].getCountGauge());
+			history.register(names[i] + ".P50", h[i].getGauge(0.5));
+			history.register(names[i] + ".P99", h[i].getGauge(0.99));
+			history.register(names[i] + ".Max", h[i].getGauge(1));
+		}
+	}
+
 	void doStats(boolean all) {
+		if (history == null) {
+			return;
+		}
 		long now = System.currentTimeMillis();
-		Long cons = new Long(connections);
-		Long nowL = new Long(now);
-		// always need to update at least two queues at a time in sync
-		lock.lock();
-		try {
-			for (int i=0; i < lastTime.size(); i++) {
-				ArrayDeque<Long> tq = lastTime.get(i);
-				if (!all && now - tq.peekFirst().longValue() < intervall[i]) {
-					break;
-				}
-				ArrayDeque<Long> hq = history.get(i);
-				if (hq.size() == limit) {
-					hq.pollLast();
-					tq.pollLast();
-				}
-				hq.addFirst(cons);
-				tq.addFirst(nowL);
-			}
-		} finally {
-			lock.unlock();
+		if (history.sample(now, all) && source != null) {
+			notifier.sendNotification(new Notification(SAMPLE_NOTIFICATION, 
+				source, history.getSequence(), now, "history sample taken"));
 		}
-		
+	}
+
+	/**
+	 * Get the emitter of the {@link #SAMPLE_NOTIFICATION}s.
+	 * @return always the same instance.
+	 */
+	NotificationBroadcasterSupport getNotifier() {
+		return notifier;
+	}
+
+	/**
+	 * Set the source of the {@link #SAMPLE_NOTIFICATION}s. Since 
+	 * notifications may get sent to remote clients, it should be the object
+	 * name of the MBean emitting them.
+	 * @param source	<code>null</code> to stop sending notifications
+	 */
+	void setNotificationSource(Object source) {
+		this.source = source;
 	}
 	
 	/**
@@ -183,16 +219,19 @@ public class StatsCollector {
 	 * limit has been reached.
 	 */
 	public void shutdown() {
-		timerTask.cancel();
+		if (timerTask != null) {
+			timerTask.cancel();
+		}
+		rateTask.cancel();
 		timer.cancel();
 		doStats(true);
 	}
 	
 	/**
-	 * Increment the counter for connections.
+	 * Increment the counter for connections (thread-safe).
 	 */
 	public void addConnection() {
-		connections++;
+		connections.increment();
 	}
 	
 	/**
@@ -200,9 +239,29 @@ public class StatsCollector {
 	 * @return	number of connections
 	 */
 	public long getConnections() {
-		return connections;
+		return connections.sum();
 	}
 	
+	/**
+	 * Add the given number of bytes to the counter of bytes received from 
+	 * MTAs (thread-safe).
+	 * @param n	number of bytes received
+	 */
+	public void addBytes(long n) {
+		bytes.add(n);
+	}
+
+	/**
+	 * Get the moving average rates of connections, messages and bytes 
+	 * received.
+	 * @return a table with the rows <code>Connections</code>, 
+	 * 		<code>Messages</code> and <code>Bytes</code>.
+	 * @see RateMeter#toCompositeData(String)
+	 */
+	public TabularData getRates() {
+		return RateMeter.toTabularData(RATE_NAMES, rates);
+	}
+
 	/**
 	 * Get the connection history values for the given intervall
 	 * @param idx the index of the history collection to return, <code>0</code> 
@@ -215,44 +274,87 @@ public class StatsCollector {
 	 * 		related collection otherwise.
 	 */
 	public TabularData getHistory(int idx, boolean relative) {
-		if (idx < 0 || idx >= intervall.length) {
-			return null;
-		}
-		Long[] h = null;
-		Long[] t = null;
-		lock.lock();
-		try {
-			int size = history.get(idx).size();
-			h = history.get(idx).toArray(new Long[size]);
-			t = lastTime.get(idx).toArray(new Long[size]);
-		} finally {
-			lock.unlock();
-		}
-		TabularData data = new TabularDataSupport(HIST_TABLE_TYPE);
-		CompositeData[] cd = new CompositeData[h.length];
-		long prev = 0;
-		for (int i=h.length-1; i >= 0; i--) {
-			Object[] vals = new Object[2];
-			vals[0] = new Date(t[i].longValue());
-			if (relative) {
-				vals[1] = Long.valueOf(h[i].longValue()-prev);
-				prev = h[i].longValue();
-			} else {
-				vals[1] = h[i];
-			}
-			try {
-				cd[i] = new CompositeDataSupport(HIST_TYPE, HIST_NAMES, vals);
-			} catch (OpenDataException e) {
-				log.warn(e.getLocalizedMessage());
-				if (log.isDebugEnabled()) {
-					log.debug("method()", e);
-				}
-			}
-		}
-		data.putAll(cd);
-		return data;
+		return history == null 
+			? null 
+			: history.getHistory(CONNECTIONS, idx, relative, CONNECTIONS, 
+				CONNECTIONS_DESC);
+	}
+
+	/**
+	 * Get the history values of the given metric for the given intervall.
+	 * @param metric	name of the metric
+	 * @param idx the index of the history collection to return, <code>0</code> 
+	 * 		is corresponds to the collection associated with the first aka 
+	 * 		smallest intervall. 
+	 * @param relative	if <code>true</code>, return the difference to the
+	 * 		previous sample (e.g. for counters) instead of the sampled value.
+	 * @return	<code>null</code> if <var>idx</var> is out of range or the
+	 * 		metric is unknown, the related collection otherwise.
+	 * @see #getMetricNames()
+	 */
+	public TabularData getHistory(String metric, int idx, boolean relative) {
+		return history == null 
+			? null 
+			: history.getHistory(metric, idx, relative, "Value", metric);
+	}
+
+	/**
+	 * Get the values of all metrics with the given name prefix, which have 
+	 * been changed since the history sample with the given sequence number.
+	 * @param prefix	name prefix of the metrics, e.g. the name of a filter
+	 * 		followed by a dot. <code>null</code> for all metrics.
+	 * @param since	sequence number of the last sample seen, <code>0</code>
+	 * 		to get all metrics
+	 * @return <code>null</code> if no history gets collected, the changes
+	 * 		otherwise.
+	 * @see HistoryStore#getChanges(String, long)
+	 */
+	public CompositeData getChanges(String prefix, long since) {
+		return history == null ? null : history.getChanges(prefix, since);
+	}
+
+	/**
+	 * Get the sequence number of the last history sample.
+	 * @return <code>0</code> if no sample has been taken, yet.
+	 */
+	public long getSampleSequence() {
+		return history == null ? 0 : history.getSequence();
+	}
+
+	/**
+	 * Get the names of all metrics with a history.
+	 * @return a possibly empty array.
+	 */
+	public String[] getMetricNames() {
+		return history == null ? new String[0] : history.getNames();
 	}
 	
+	/**
+	 * Get the statistic sets of all mail filters currently in use.
+	 * @return a possibly empty collection, which reflects concurrent changes.
+	 */
+	Collection<FilterStats> getFilterStats() {
+		return stats.values();
+	}
+
+	/**
+	 * Get the histogram of MTA connection durations.
+	 * @return the live histogram.
+	 * @see #recordSession(long)
+	 */
+	LatencyHistogram getSessionLatency() {
+		return sessionLatency;
+	}
+
+	/**
+	 * Get the histogram of end-to-end message latencies.
+	 * @return the live histogram.
+	 * @see #recordMessage(long)
+	 */
+	LatencyHistogram getMessageLatency() {
+		return messageLatency;
+	}
+
 	/**
 	 * Get a list of all sample rates currently in action
 	 * @return all sample rates in milliseconds
@@ -283,6 +385,9 @@ public class StatsCollector {
 		}
 		FilterStats s = new FilterStats(displayName);
 		stats.put(displayName, s);
+		if (history != null) {
+			s.registerHistory(history);
+		}
 		if (server != null) {
 			try {
 				server.registerMBean(s, s.getDefaultName());
@@ -304,6 +409,9 @@ public class StatsCollector {
 	 */
 	public void remove(String displayName, MBeanServer server) {
 		FilterStats f = stats.remove(displayName);
+		if (f != null && history != null) {
+			f.unregisterHistory(history);
+		}
 		if (f != null && server != null) {
 			try {
 				server.unregisterMBean(f.getDefaultName());
@@ -344,7 +452,106 @@ public class StatsCollector {
 	{
 		FilterStats s = stats.get(displayName);
 		if (s != null) {
-			s.increment(cmd, reply);
+			s.add(cmd, reply);
+		}
+	}
+
+	/**
+	 * Record the time a mail filter took to handle a command.
+	 * @param displayName	the display name of the mail filter
+	 * @param cmd		the command handled
+	 * @param nanos		the time taken in nanoseconds
+	 */
+	public void recordLatency(String displayName, Type cmd, long nanos) {
+		FilterStats s = stats.get(displayName);
+		if (s != null) {
+			s.record(cmd, nanos);
+		}
+	}
+
+	/**
+	 * Record the resources used by a single invocation of a mail filter.
+	 * @param displayName	the display name of the mail filter
+	 * @param cmd		the command handled
+	 * @param cpuNanos	CPU time used in nanoseconds, &lt; 0 if unknown
+	 * @param bytes		number of bytes allocated, &lt; 0 if unknown
+	 */
+	public void recordUsage(String displayName, Type cmd, long cpuNanos, 
+		long bytes) 
+	{
+		FilterStats s = stats.get(displayName);
+		if (s != null) {
+			s.recordUsage(cmd, cpuNanos, bytes);
+		}
+	}
+
+	/**
+	 * Set the number of filter invocations per worker, for which the 
+	 * resource usage of one invocation should be measured.
+	 * @param n		<code>0</code> to disable measurements
+	 */
+	public void setCpuSampling(int n) {
+		cpuSampling = n < 0 || !ThreadMeter.isSupported() ? 0 : n;
+	}
+
+	/**
+	 * Get the number of filter invocations per worker, for which the 
+	 * resource usage of one invocation should be measured.
+	 * @return <code>0</code> if disabled.
+	 */
+	public int getCpuSampling() {
+		return cpuSampling;
+	}
+
+	/**
+	 * Get the log of messages, whose end-to-end latency exceeded the 
+	 * configured threshold.
+	 * @return always the same instance.
+	 */
+	public SlowMessageLog getSlowLog() {
+		return slowLog;
+	}
+
+	/**
+	 * Record the duration of a MTA connection, i.e. from accepting the 
+	 * connection until it gets closed.
+	 * @param nanos	the duration in nanoseconds
+	 */
+	public void recordSession(long nanos) {
+		sessionLatency.record(nanos);
+	}
+
+	/**
+	 * Record the end-to-end latency of a message, i.e. from receiving the
+	 * MAIL FROM command until the end-of-message or abort command has been 
+	 * handled.
+	 * @param nanos	the latency in nanoseconds
+	 */
+	public void recordMessage(long nanos) {
+		messages.increment();
+		messageLatency.record(nanos);
+	}
+
+	/**
+	 * Get the latency percentiles of sessions and messages.
+	 * @return a table with the rows <code>Session</code> and 
+	 * 		<code>Message</code>.
+	 * @see LatencyHistogram#toCompositeData(String)
+	 */
+	public TabularData getLatencies() {
+		return LatencyHistogram.toTabularData(
+			new String[] { "Session", "Message" },
+			new LatencyHistogram[] { sessionLatency, messageLatency });
+	}
+
+	/**
+	 * Drop the session, message and all filter latencies recorded so far.
+	 */
+	public void resetLatencies() {
+		sessionLatency.reset();
+		messageLatency.reset();
+		for (FilterStats s : stats.values()) {
+			s.resetLatencies();
 		}
 	}
 }
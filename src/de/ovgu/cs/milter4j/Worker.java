@@ -9,13 +9,16 @@
  */
 package de.ovgu.cs.milter4j;
 
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
@@ -33,20 +36,33 @@ import org.slf4j.LoggerFactory;
 
 import de.ovgu.cs.milter4j.cmd.BodyPacket;
 import de.ovgu.cs.milter4j.cmd.ConnectPacket;
-import de.ovgu.cs.milter4j.cmd.HeaderPacket;
 import de.ovgu.cs.milter4j.cmd.HeloPacket;
 import de.ovgu.cs.milter4j.cmd.MacroPacket;
 import de.ovgu.cs.milter4j.cmd.MailFromPacket;
 import de.ovgu.cs.milter4j.cmd.RecipientToPacket;
 import de.ovgu.cs.milter4j.cmd.Type;
 import de.ovgu.cs.milter4j.cmd.UnknownCmdPacket;
+import de.ovgu.cs.milter4j.jfr.EventRecorder;
+import de.ovgu.cs.milter4j.jfr.Jfr;
+import de.ovgu.cs.milter4j.jmx.MessageTiming;
+import de.ovgu.cs.milter4j.jmx.ThreadMeter;
+import de.ovgu.cs.milter4j.jmx.WorkerState;
 import de.ovgu.cs.milter4j.reply.AcceptPacket;
 import de.ovgu.cs.milter4j.reply.AddHeaderPacket;
 import de.ovgu.cs.milter4j.reply.ContinuePacket;
 import de.ovgu.cs.milter4j.reply.NegotiationPacket;
 import de.ovgu.cs.milter4j.reply.Packet;
 import de.ovgu.cs.milter4j.reply.SkipPacket;
+import de.ovgu.cs.milter4j.util.BodyAligner;
+import de.ovgu.cs.milter4j.util.BodyBuffer;
+import de.ovgu.cs.milter4j.util.BodyDigest;
+import de.ovgu.cs.milter4j.util.BodyDigester;
+import de.ovgu.cs.milter4j.util.ContentCache;
+import de.ovgu.cs.milter4j.util.HeaderArena;
+import de.ovgu.cs.milter4j.util.HeaderList;
 import de.ovgu.cs.milter4j.util.Mail;
+import de.ovgu.cs.milter4j.util.MimeListener;
+import de.ovgu.cs.milter4j.util.MimeStreamParser;
 import de.ovgu.cs.milter4j.util.NullFilter;
 
 /**
@@ -90,6 +106,12 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 	private String name;
 	private StatsCollector stats;
 	private static final String GLOB_STAT_NAME = "NullFilter";
+	private static final String MSG_SIZE = Macro.MSG_SIZE.toString();
+	/** sendmail's default for {@code Milter.macros.envfrom} */
+	private static final String[] DEFAULT_ENVFROM_MACROS = { "i",
+		"{auth_type}", "{auth_authen}", "{auth_ssf}", "{auth_author}", 
+		"{mail_mailer}", "{mail_host}", "{mail_addr}" 
+	};
 	
 	// stuff to manage filters
 	ArrayList<MailFilter> filters;
@@ -102,8 +124,55 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 	private EnumSet<Type> cmds2handle;	
 	private EnumSet<Modification> mods2handle;
 	private boolean mtaShouldSentRejected;
+	// filters, which get all headers at once at EOH
+	private HashSet<MailFilter> headerBatch;
+	// true if no filter needs single headers
+	private boolean headerBatchOnly;
+	// true if the MTA has been told, that headers are not answered
+	private boolean noHeaderReply;
 	private HashSet<MailFilter> assembleMessage4;
-	private ByteArrayOutputStream body;
+	// filters, which need the reassembled current message
+	private HashSet<MailFilter> assembleNow = new HashSet<MailFilter>();
+	private boolean assembleDecided;
+	private BodyBuffer body = new BodyBuffer();
+	private ContentCache contentCache = new ContentCache();
+	private ArrayList<MailFilter> mimeFilters;
+	private MimeListener[] mimeListeners;
+	private Packet[] mimeResults;
+	private boolean[] mimeDone;
+	private MimeStreamParser mimeParser;
+	// filters, which want line-aligned body slices, and their aligners
+	private HashMap<MailFilter,BodyAligner> aligners;
+	private BodyAligner[] alignerList;
+	// filters, which take body chunks as ByteBuffer
+	private HashSet<MailFilter> bufferFilters;
+	// filters, which registered body digests
+	private HashSet<MailFilter> digestFilters;
+	private BodyDigester digester = new BodyDigester();
+	// resource usage sampling: calls per filter (index as in timedFilters)
+	private int[] callCount = new int[0];
+	private boolean sampling;
+	private long cpuStart;
+	private long allocStart;
+	// flight recorder events in progress, null if disabled
+	private static final EventRecorder jfr = Jfr.getRecorder();
+	private Object callEvent;
+	private MailFilter callFilter;
+	private Object messageEvent;
+	private long messageBytes;
+	private String messageQueueId;
+	private de.ovgu.cs.milter4j.reply.Type verdict;
+	// per-message timings for the slow message log
+	private MessageTiming timing = new MessageTiming();
+	private MailFilter[] timedFilters = new MailFilter[0];
+	// live state for introspection, written by the worker thread only
+	private volatile String peer;
+	private volatile long connectTime;
+	private volatile Type currentCmd;
+	private volatile String currentFilter;
+	private volatile long stateSince;
+	private volatile int messages;
+	private volatile long bytesReceived;
 	private static final ByteBuffer NULL_BUFFER = ByteBuffer.allocate(0);
 	private ByteBuffer header = ByteBuffer.allocateDirect(5);
 	private ByteBuffer data;
@@ -113,7 +182,8 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 		new HashMap<String,String>();
 	private HashMap<String,String> connectionMacros = 
 		new HashMap<String,String>();
-	ArrayList<Header> headers = new ArrayList<Header>();
+	HeaderList headers = new HeaderList();
+	private HeaderArena headerArena = new HeaderArena();
 	ArrayList<Packet> toSend = new ArrayList<Packet>();
 	HashMap<MacroStage,HashSet<String>> macros2negotiate;
 	private ReentrantLock configLock;
@@ -193,7 +263,16 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 			try { this.channel.close(); } catch (IOException e) { /* ignore */ }
 		}
 		this.channel = channel;
-		if (channel != null) {
+		currentCmd = null;
+		currentFilter = null;
+		messages = 0;
+		bytesReceived = 0;
+		if (channel == null) {
+			connectTime = 0;
+			peer = null;
+		} else {
+			peer = String.valueOf(channel.socket().getRemoteSocketAddress());
+			connectTime = stateSince = System.nanoTime();
 			try {
 				channel.socket().setSoTimeout(10*60*1000); // make sure, we get it back
 			} catch (SocketException e) {
@@ -212,10 +291,27 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 		try {
 			this.filters = filters;
 			this.filters.trimToSize();
+			timedFilters = filters.toArray(new MailFilter[filters.size()]);
+			String[] names = new String[timedFilters.length];
+			for (int i=0; i < names.length; i++) {
+				names[i] = timedFilters[i].getStatName();
+			}
+			timing.setFilters(names);
+			callCount = new int[timedFilters.length];
 			cmds2handle = EnumSet.noneOf(Type.class);
 			mods2handle = EnumSet.of(Modification.ADDHDRS);
 			mtaShouldSentRejected = false;
+			headerBatch = new HashSet<MailFilter>();
+			headerBatchOnly = true;
 			assembleMessage4 = new HashSet<MailFilter>();
+			mimeFilters = new ArrayList<MailFilter>();
+			ArrayList<MimeListener> ml = new ArrayList<MimeListener>();
+			aligners = new HashMap<MailFilter,BodyAligner>();
+			bufferFilters = new HashSet<MailFilter>();
+			digestFilters = new HashSet<MailFilter>();
+			digester = new BodyDigester();
+			HashMap<Integer,BodyAligner> bySize = 
+				new HashMap<Integer,BodyAligner>();
 			macros2negotiate = new HashMap<MacroStage, HashSet<String>>(7);
 			MacroStage[] stages = MacroStage.values();
 			for (int i=stages.length-1; i >= 0; i--) {
@@ -231,11 +327,47 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 					mods2handle.addAll(m);
 				}
 				mtaShouldSentRejected |= f.wantsRejectedRecipients();
+				if (f.wantsHeaderBatch()) {
+					headerBatch.add(f);
+				} else if (t != null && t.contains(Type.HEADER)) {
+					headerBatchOnly = false;
+				}
 				if (f.reassembleMail() && t != null && t.contains(Type.BODY) 
 					&& t.contains(Type.BODYEOB)) 
 				{
 					assembleMessage4.add(f);
 				}
+				int size = f.getBodyCoalesceSize();
+				if (size >= 0 && t != null && t.contains(Type.BODY)) {
+					BodyAligner a = bySize.get(Integer.valueOf(size));
+					if (a == null) {
+						a = new BodyAligner(size);
+						bySize.put(Integer.valueOf(size), a);
+					}
+					aligners.put(f, a);
+				}
+				if (f.wantsBodyBuffer()) {
+					bufferFilters.add(f);
+				}
+				MimeListener l = f.getMimeListener();
+				if (l != null && t != null && t.contains(Type.BODY)) {
+					mimeFilters.add(f);
+					ml.add(l);
+				}
+				Collection<BodyDigest> d = f.getBodyDigests();
+				if (d != null && t != null && t.contains(Type.BODY) 
+					&& t.contains(Type.BODYEOB)) 
+				{
+					for (BodyDigest bd : d) {
+						try {
+							digester.register(bd);
+							digestFilters.add(f);
+						} catch (NoSuchAlgorithmException e) {
+							log.warn(f.getName() + ": " + e.getLocalizedMessage());
+							log.debug("reconfigure", e);
+						}
+					}
+				}
 				for (int i=stages.length-1; i >= 0; i--) {
 					Set<String> s = f.getRequiredMacros(stages[i]);
 					if (s != null) {
@@ -243,6 +375,21 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 					}
 				}
 			}
+			if (!assembleMessage4.isEmpty()) {
+				// Since requesting a macro suppresses the standard macros of
+				// the stage, ask for them as well
+				HashSet<String> s = macros2negotiate.get(MacroStage.ENVFROM);
+				if (s.isEmpty()) {
+					Collections.addAll(s, DEFAULT_ENVFROM_MACROS);
+				}
+				s.add(MSG_SIZE);
+			}
+			alignerList = bySize.values().toArray(new BodyAligner[bySize.size()]);
+			mimeListeners = ml.toArray(new MimeListener[ml.size()]);
+			mimeResults = new Packet[mimeListeners.length];
+			mimeDone = new boolean[mimeListeners.length];
+			mimeParser = mimeListeners.length == 0 
+				? null : new MimeStreamParser(new MimeDispatcher());
 			NegotiationPacket p = new NegotiationPacket(null);
 			// let the package normalize and fetch the normalized map
 			for (int i=stages.length-1; i >= 0; i--) {
@@ -254,6 +401,155 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 		}
 	}
 
+	/**
+	 * Ask all filters, which want reassembled mails, whether they need the
+	 * current one. If nobody does, the body buffer gets released.
+	 */
+	private void decideAssembly() {
+		assembleDecided = true;
+		assembleNow.clear();
+		if (assembleMessage4.isEmpty()) {
+			return;
+		}
+		for (MailFilter f : filters) {
+			if (!assembleMessage4.contains(f) || acceptList.contains(f)) {
+				continue;
+			}
+			try {
+				if (f.needsMail(headers, allMacros)) {
+					assembleNow.add(f);
+				}
+			} catch (Exception e) {
+				assembleNow.add(f);
+				log.warn(f.getName() + ": " + e.getLocalizedMessage());
+				log.debug("decideAssembly", e);
+			}
+		}
+		if (assembleNow.isEmpty()) {
+			// release reserved memory or spill file
+			body.clear();
+		}
+	}
+
+	/**
+	 * Drop all state of the current message, which is not needed anymore
+	 * after the end of its body - no matter, whether it got rejected or not.
+	 */
+	private void endMessage() {
+		resetAligners();
+		if (mimeParser != null) {
+			mimeParser.reset();
+			Arrays.fill(mimeResults, null);
+		}
+		digester.reset();
+		body.clear();
+		contentCache.clear();
+		assembleNow.clear();
+		assembleDecided = false;
+	}
+
+	private void resetAligners() {
+		for (int i=alignerList.length-1; i >= 0; i--) {
+			alignerList[i].reset();
+		}
+	}
+
+	/**
+	 * Feed the given chunk to all aligners used by at least one of the given
+	 * filters.
+	 * @param todo	filters to call
+	 * @param chunk	the body chunk received
+	 * @return the number of slices available per aligner
+	 */
+	private HashMap<BodyAligner,Integer> align(List<MailFilter> todo, 
+		byte[] chunk) 
+	{
+		HashMap<BodyAligner,Integer> slices = null;
+		for (MailFilter f : todo) {
+			BodyAligner a = aligners.get(f);
+			if (a == null) {
+				continue;
+			}
+			if (slices == null) {
+				slices = new HashMap<BodyAligner,Integer>(4);
+			} else if (slices.containsKey(a)) {
+				continue;
+			}
+			slices.put(a, Integer.valueOf(chunk == null 
+				? a.flush() : a.feed(chunk, 0, chunk.length)));
+		}
+		return slices;
+	}
+
+	/**
+	 * Pass the current slices of the given aligner to the given filter.
+	 * @param f		filter to call
+	 * @param a		the aligner of the filter
+	 * @param n		number of slices available
+	 * @return <code>true</code> if the final decision has been made and no
+	 * 		further filter invocations should occure.
+	 * @throws IOException on I/O error
+	 */
+	private boolean doSlices(MailFilter f, BodyAligner a, int n) 
+		throws IOException 
+	{
+		if (n == 0) {
+			handleResult(f, Type.BODY, (Packet) null);
+			return false;
+		}
+		for (int i=0; i < n; i++) {
+			long start = startCall(f);
+			Packet p = f.doBody(a.getData(i), a.getOffset(i), a.getLength(i),
+				allMacros);
+			took(f, Type.BODY, start);
+			if (handleResult(f, Type.BODY, p)) {
+				return true;
+			}
+			if (skipList.contains(f) || acceptList.contains(f)) {
+				break;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Prepare the body buffer for the message size announced by the client.
+	 * @param size	the value of the {@link Macro#MSG_SIZE} macro. Might be 
+	 * 		<code>null</code>.
+	 */
+	private void prepareBody(String size) {
+		if (size == null || size.isEmpty()) {
+			return;
+		}
+		try {
+			body.prepare(Long.parseLong(size.trim(), 10));
+		} catch (NumberFormatException e) {
+			log.debug("Invalid message size '{}' ignored", size);
+		}
+	}
+
+	/**
+	 * Get a snapshot of what this worker is currently doing (thread-safe).
+	 * @return a new snapshot.
+	 */
+	public WorkerState getState() {
+		long now = System.nanoTime();
+		long start = connectTime;
+		if (start == 0) {
+			return new WorkerState(name, WorkerState.IDLE, null, null, null, 
+				0, 0, 0, 0);
+		}
+		Type cmd = currentCmd;
+		String filter = currentFilter;
+		String state = filter != null 
+			? WorkerState.FILTER 
+			: (cmd != null ? WorkerState.COMMAND : WorkerState.READING);
+		return new WorkerState(name, state, peer, 
+			cmd == null ? null : cmd.name(), filter,
+			(now - stateSince) / 1000000L, (now - start) / 1000000L,
+			messages, bytesReceived);
+	}
+
 	/**
 	 * Shutdown this worker.
 	 */
@@ -267,7 +563,13 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 			cmds2handle.clear();
 			mods2handle.clear();
 			mtaShouldSentRejected = false;
+			headerBatch.clear();
 			assembleMessage4.clear();
+			mimeFilters.clear();
+			mimeParser = null;
+			aligners.clear();
+			bufferFilters.clear();
+			digestFilters.clear();
 			if (macros2negotiate != null) {
 				macros2negotiate.clear();
 			}
@@ -277,14 +579,56 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 		}
 	}
 
+	@SuppressWarnings("fallthrough")
 	private void send(Packet p, Type cmd) throws IOException {
 		if (channel != null && channel.isOpen()) {
 			log.debug("Sending packet {}", p);
 			if (p.getType() != de.ovgu.cs.milter4j.reply.Type.CONTINUE && stats != null) {
 				stats.increment(GLOB_STAT_NAME, cmd, p.getType());
 			}
+			switch (p.getType()) {
+				case REJECT:
+				case REPLYCODE:
+				case TEMPFAIL:
+					if (cmd == Type.RCPT) {
+						// affects this recipient, only
+						break;
+					}
+					// fall through
+				case ACCEPT:
+				case DISCARD:
+					verdict = p.getType();
+					break;
+				default:
+					// not a decision
+			}
 			p.send(channel);
+		} else {
+			close(p);
+		}
+	}
+
+	/**
+	 * Release the given packet, if it holds resources.
+	 * @param p	packet to release
+	 */
+	private static void close(Packet p) {
+		if (p instanceof Closeable) {
+			try { ((Closeable) p).close(); } catch (IOException e) { 
+				/* ignore */ 
+			}
+		}
+	}
+
+	/**
+	 * Release and remove all packets, which are queued to be sent at the end
+	 * of the message.
+	 */
+	private void dropQueued() {
+		for (Packet p : toSend) {
+			close(p);
 		}
+		toSend.clear();
 	}
 
 	/**
@@ -340,6 +684,12 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 		if (mtaShouldSentRejected) {
 			skip |= Option.RCPT_REJ.getCode();
 		}
+		// headers are still needed for EOH/EOM, but need no answer
+		int nr = Type.HEADER.getNoReplyFlag();
+		noHeaderReply = headerBatchOnly && (proto & nr) != 0;
+		if (noHeaderReply) {
+			skip |= nr;
+		}
 		// for transparence reasons we never set HDR_LEADSPC
 		int version = p.getVersion();
 		if (version < 2 || version > VERSION) {
@@ -363,7 +713,8 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 		for (MailFilter mf : filters) {
 			if (mf.getCommands().contains(cmd)) {
 				if (!acceptList.contains(mf)
-					&& (cmd != Type.BODY || !skipList.contains(mf))) 
+					&& (cmd != Type.BODY || !skipList.contains(mf))
+					&& (cmd != Type.HEADER || !headerBatch.contains(mf))) 
 				{
 					f.add(mf);
 				}
@@ -389,7 +740,9 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 			if (filters.size() > 0) {
 				for (MailFilter f : filters) {
 					try {
+						long start = startCall(f);
 						f.doAbort();
+						took(f, Type.ABORT, start);
 					} catch (Exception e) {
 						log.warn(f.getName() + ": " + e.getLocalizedMessage());
 						log.debug("cleanup()", e);
@@ -400,7 +753,9 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 			if (filters.size() > 0) {
 				for (MailFilter f : filters) {
 					try {
+						long start = startCall(f);
 						f.doQuit();
+						took(f, Type.QUIT, start);
 					} catch (Exception e) {
 						log.warn(f.getName() + ": " + e.getLocalizedMessage());
 						log.debug("cleanup()", e);
@@ -414,17 +769,126 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 			log.debug("channel closed");
 			channel = null;
 		}
-		toSend.clear();
+		dropQueued();
 		lastMacros.clear();
 		headers.clear();
+		headerArena.clear();
 		acceptList.clear();
 		skipList.clear();
-		body = null;
+		body.clear();
+		contentCache.clear();
+		digester.reset();
+		assembleNow.clear();
+		assembleDecided = false;
+		resetAligners();
+		if (mimeParser != null) {
+			mimeParser.reset();
+			Arrays.fill(mimeResults, null);
+		}
 		data = null;
 		header.clear();
 		log.debug("{} done.", this);
 	}
 
+	/**
+	 * Prepare the measurement of a filter invocation. If the invocation has
+	 * been choosen as sample, the CPU time and allocation counters of the 
+	 * current thread get recorded as well.
+	 * @param f		the filter to call
+	 * @return {@link System#nanoTime()} before the filter gets called
+	 */
+	private long startCall(MailFilter f) {
+		// the previous call may have thrown an exception
+		sampling = false;
+		commitCall();
+		callEvent = jfr.beginFilterCall();
+		int n = stats == null ? 0 : stats.getCpuSampling();
+		// count per filter, otherwise the sample may hit always the same one
+		int idx = n > 0 ? indexOf(f) : -1;
+		if (idx >= 0 && ++callCount[idx] >= n) {
+			callCount[idx] = 0;
+			sampling = true;
+			cpuStart = ThreadMeter.getCpuTime();
+			allocStart = ThreadMeter.getAllocatedBytes();
+		}
+		currentFilter = f.getStatName();
+		long now = System.nanoTime();
+		stateSince = now;
+		return now;
+	}
+
+	/**
+	 * Get the index of the given filter in the list of filters of this worker.
+	 * @param f	filter to lookup
+	 * @return <code>-1</code> if not found, the index otherwise.
+	 */
+	private int indexOf(MailFilter f) {
+		for (int i=timedFilters.length-1; i >= 0; i--) {
+			if (timedFilters[i] == f) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Record the time the given filter took to handle a command, and its
+	 * resource usage, if the invocation is a sample.
+	 * @param f		the filter called
+	 * @param cmd	the command handled
+	 * @param start	the value returned by {@link #startCall(MailFilter)}
+	 */
+	private void took(MailFilter f, Type cmd, long start) {
+		long end = System.nanoTime();
+		currentFilter = null;
+		stateSince = end;
+		if (timing.isActive()) {
+			timing.filter(indexOf(f), end - start);
+		}
+		if (callEvent != null) {
+			jfr.endFilterCall(callEvent, f.getStatName(), cmd.name());
+			callFilter = f;
+		}
+		if (stats == null) {
+			sampling = false;
+			return;
+		}
+		stats.recordLatency(f.getStatName(), cmd, end - start);
+		if (sampling) {
+			sampling = false;
+			long cpu = cpuStart < 0 ? -1 : ThreadMeter.getCpuTime() - cpuStart;
+			long bytes = allocStart < 0 
+				? -1 : ThreadMeter.getAllocatedBytes() - allocStart;
+			stats.recordUsage(f.getStatName(), cmd, cpu, bytes);
+		}
+	}
+
+	/**
+	 * Commit the pending filter call event, if any. Calls, which threw an
+	 * exception, get dropped.
+	 * @param res	the answer packets of the call. If there is a 
+	 * 		none-<code>null</code> one, the type of the first one gets used as
+	 * 		reply.
+	 */
+	private void commitCall(Packet... res) {
+		if (callEvent == null) {
+			return;
+		}
+		if (callFilter != null) {
+			de.ovgu.cs.milter4j.reply.Type reply = 
+				de.ovgu.cs.milter4j.reply.Type.CONTINUE;
+			for (Packet p : res) {
+				if (p != null) {
+					reply = p.getType();
+					break;
+				}
+			}
+			jfr.commitFilterCall(callEvent, reply.name());
+		}
+		callEvent = null;
+		callFilter = null;
+	}
+
 	/**
 	 * Handle the results of a filter call
 	 * @param filter	the filter, which produced the given packets
@@ -438,6 +902,9 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 	private boolean handleResult(MailFilter filter, Type cmd, Packet... res) 
 		throws IOException 
 	{
+		if (callEvent != null && callFilter == filter) {
+			commitCall(res);
+		}
 		Packet result = null;
 		boolean stop = false;
 		for (Packet p : res) {
@@ -460,7 +927,7 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 					case DISCARD:
 					case REPLYCODE:
 						result = p;
-						toSend.clear();
+						dropQueued();
 						stop = true;
 						break;
 					case SKIP:
@@ -519,6 +986,115 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 		return stop;
 	}
 
+	/**
+	 * Handle the packets returned by MIME listeners since the last call.
+	 * @return <code>true</code> if the final decision has been made and no
+	 * 		further filter invocations should occure.
+	 * @throws IOException on I/O error
+	 */
+	private boolean handleMimeResults() throws IOException {
+		for (int i=0; i < mimeResults.length; i++) {
+			Packet p = mimeResults[i];
+			if (p != null) {
+				mimeResults[i] = null;
+				if (handleResult(mimeFilters.get(i), packageType, p)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Passes the events of the MIME parser to the listeners of all filters,
+	 * which are still interested in the body of the current message and
+	 * have not made a decision yet.
+	 */
+	private class MimeDispatcher implements MimeListener {
+		private static final int START = 0;
+		private static final int HEADER = 1;
+		private static final int CONTENT = 2;
+		private static final int END = 3;
+
+		MimeDispatcher() {
+			// nothing to do
+		}
+
+		private void dispatch(int event, int depth, String name, String value,
+			byte[] b, int off, int len)
+		{
+			for (int i=0; i < mimeListeners.length; i++) {
+				MailFilter f = mimeFilters.get(i);
+				if (mimeDone[i] || acceptList.contains(f) 
+					|| skipList.contains(f)) 
+				{
+					continue;
+				}
+				Packet p = null;
+				try {
+					switch (event) {
+						case START:
+							p = mimeListeners[i].startPart(depth);
+							break;
+						case HEADER:
+							p = mimeListeners[i].header(depth, name, value);
+							break;
+						case CONTENT:
+							p = mimeListeners[i].content(depth, b, off, len);
+							break;
+						default:
+							p = mimeListeners[i].endPart(depth);
+					}
+				} catch (Exception e) {
+					log.warn(f.getName() + ": " + e.getLocalizedMessage());
+					log.debug("dispatch", e);
+				}
+				if (p != null 
+					&& p.getType() != de.ovgu.cs.milter4j.reply.Type.CONTINUE) 
+				{
+					mimeDone[i] = true;
+					mimeResults[i] = p;
+				}
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public Packet startPart(int depth) {
+			dispatch(START, depth, null, null, null, 0, 0);
+			return null;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public Packet header(int depth, String name, String value) {
+			dispatch(HEADER, depth, name, value, null, 0, 0);
+			return null;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public Packet content(int depth, byte[] data, int off, int len) {
+			dispatch(CONTENT, depth, null, null, data, off, len);
+			return null;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public Packet endPart(int depth) {
+			dispatch(END, depth, null, null, null, 0, 0);
+			return null;
+		}
+	}
+
 	/**
 	 * Handle Packets
 	 * @param cmd	the command name
@@ -540,7 +1116,9 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 						try {
 							stats.increment(f.getStatName(), cmd, 
 								de.ovgu.cs.milter4j.reply.Type.CONTINUE);
+							long start = startCall(f);
 							f.doMacros(allMacros, mp.getMacros());
+							took(f, cmd, start);
 						} catch (Exception e) {
 							log.warn(f.getName() + ": " + e.getLocalizedMessage());
 							log.debug("handlePaket", e);
@@ -556,9 +1134,11 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 					final ConnectPacket cp = new ConnectPacket(data);
 					for (MailFilter f : todo) {
 						try {
+							long start = startCall(f);
 							Packet p = f.doConnect(cp.getHostname(), 
 								cp.getAddressFamily(), cp.getPort(), cp.getInfo(),
 								allMacros);
+							took(f, cmd, start);
 							if (handleResult(f, packageType, p)) {
 								return false;
 							}
@@ -576,7 +1156,9 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 					final HeloPacket lp = new HeloPacket(data);
 					for (MailFilter f : todo) {
 						try {
+							long start = startCall(f);
 							Packet p = f.doHelo(lp.getDomain(), allMacros);
+							took(f, cmd, start);
 							if (handleResult(f, packageType, p)) {
 								return false;
 							}
@@ -589,12 +1171,17 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 				send(new ContinuePacket(), cmd);
 				break;
 			case MAIL:
+				if (!assembleMessage4.isEmpty()) {
+					prepareBody(lastMacros.get(MSG_SIZE));
+				}
 				lastMacros.clear();
 				final MailFromPacket fp = new MailFromPacket(data);
 				if (todo.size() > 0) {
 					for (MailFilter f : todo) {
 						try {
+							long start = startCall(f);
 							Packet p = f.doMailFrom(fp.getFrom(), allMacros);
+							took(f, cmd, start);
 							if (handleResult(f, packageType, p)) {
 								return false;
 							}
@@ -612,8 +1199,10 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 				if (todo.size() > 0) {
 					for (MailFilter f : todo) {
 						try {
+							long start = startCall(f);
 							Packet p = 
 								f.doRecipientTo(tp.getRecipient(), allMacros);
+							took(f, cmd, start);
 							if (handleResult(f, packageType, p)) {
 								return false;
 							}
@@ -637,7 +1226,9 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 				if (todo.size() > 0) {
 					for (MailFilter f : todo) {
 						try {
+							long start = startCall(f);
 							Packet p = f.doData(allMacros);
+							took(f, cmd, start);
 							if (handleResult(f, packageType, p)) {
 								return false;
 							}
@@ -651,13 +1242,15 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 				break;
 			case HEADER:
 				lastMacros.clear();
-				HeaderPacket hp = new HeaderPacket(data);
-				headers.add(new Header(hp.getName(), hp.getValue()));
+				final Header hp = headerArena.add(data);
+				headers.add(hp);
 				if (todo.size() > 0) {
 					for (MailFilter f : todo) {
 						try {
+							long start = startCall(f);
 							Packet p = f.doHeader(hp.getName(), hp.getValue(), 
 								allMacros);
+							took(f, cmd, start);
 							if (handleResult(f, packageType, p)) {
 								return false;
 							}
@@ -667,14 +1260,19 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 						}
 					}
 				}
-				send(new ContinuePacket(), cmd);
+				if (!noHeaderReply) {
+					send(new ContinuePacket(), cmd);
+				}
 				break;
 			case EOH:
 				lastMacros.clear();
+				decideAssembly();
 				if (todo.size() > 0) {
 					for (MailFilter f : todo) {
 						try {
+							long start = startCall(f);
 							Packet p = f.doEndOfHeader(headers, allMacros);
+							took(f, cmd, start);
 							if (handleResult(f, packageType, p)) {
 								return false;
 							}
@@ -689,24 +1287,55 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 			case BODY:
 				lastMacros.clear();
 				final BodyPacket bp = new BodyPacket(data);
+				if (!assembleDecided) {
+					// MTA didn't send EOH
+					decideAssembly();
+				}
+				if (!digestFilters.isEmpty()) {
+					if (Collections.disjoint(todo, digestFilters)) {
+						// nobody is interested in the rest of the body
+						digester.invalidate();
+					} else {
+						byte[] chunk = bp.getChunk();
+						digester.update(chunk, 0, chunk.length);
+					}
+				}
 				if (todo.size() > 0) {
 					// don't re-assemble, if nobody needs it
-					if (!(assembleMessage4.isEmpty() 
-						|| Collections.disjoint(todo, assembleMessage4))) 
+					if (!(assembleNow.isEmpty() 
+						|| Collections.disjoint(todo, assembleNow))) 
 					{
-						if (body == null) {
-							body = new ByteArrayOutputStream(4096);
+						body.append(bp.getChunk());
+					}
+					if (mimeParser != null 
+						&& !Collections.disjoint(todo, mimeFilters)) 
+					{
+						if (!mimeParser.isStarted()) {
+							Arrays.fill(mimeDone, false);
+							mimeParser.start(headers);
 						}
-						try {
-							body.write(bp.getChunk());
-						} catch (IOException e) {
-							log.warn(e.getLocalizedMessage());
-							log.debug("handlePaket", e);
+						byte[] chunk = bp.getChunk();
+						mimeParser.feed(chunk, 0, chunk.length);
+						if (handleMimeResults()) {
+							return false;
 						}
 					}
+					HashMap<BodyAligner,Integer> slices = 
+						align(todo, bp.getChunk());
 					for (MailFilter f : todo) {
 						try {
-							Packet p = f.doBody(bp.getChunk(), allMacros);
+							BodyAligner a = aligners.get(f);
+							if (a != null) {
+								if (doSlices(f, a, slices.get(a).intValue())) {
+									return false;
+								}
+								continue;
+							}
+							long start = startCall(f);
+							Packet p = bufferFilters.contains(f) 
+								? f.doBody(bp.getBuffer(), allMacros)
+								: f.doBody(bp.getChunk(), allMacros);
+							took(f, cmd, start);
 							if (handleResult(f, packageType, p)) {
 								return false;
 							}
@@ -720,53 +1349,101 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 				break;
 			case BODYEOB:
 				lastMacros.clear();
-				boolean quarantined = false;
-				if (addVersion) {
-					send(new AddHeaderPacket("X-Milter", version), cmd);
-				}
-				if (addRecipient) {
-					send(new AddHeaderPacket("X-RcptTo", 
-						allMacros.get("{rcpt_addr}")), cmd);
-				}
-				if (toSend != null && !toSend.isEmpty()) {
-					for (Packet p : toSend) {
-						if (p.getType() == de.ovgu.cs.milter4j.reply.Type.QUARANTINE)
-						{
-							if (quarantined) {
+				try {
+					boolean quarantined = false;
+					if (!aligners.isEmpty()) {
+						// deliver the remaining incomplete lines
+						ArrayList<MailFilter> rest = needTask(Type.BODY);
+						HashMap<BodyAligner,Integer> slices = align(rest, null);
+						for (MailFilter f : rest) {
+							BodyAligner a = aligners.get(f);
+							if (a == null) {
 								continue;
 							}
-							quarantined = true;
+							int n = slices.get(a).intValue();
+							try {
+								if (n > 0 && doSlices(f, a, n)) {
+									return false;
+								}
+							} catch (Exception e) {
+								log.warn(f.getName() + ": " + e.getLocalizedMessage());
+								log.debug("handlePaket", e);
+							}
 						}
-						send(p, cmd);
 					}
-					toSend.clear();
-				}
-				if (todo.size() > 0) {
-					Mail msg = null;
-					if (!(assembleMessage4.isEmpty() || body == null
-						|| Collections.disjoint(todo, assembleMessage4))) 
-					{
-						msg = new Mail(headers, body.toByteArray());
-						body = null;
+					if (mimeParser != null && mimeParser.isStarted()) {
+						mimeParser.finish();
+						if (handleMimeResults()) {
+							return false;
+						}
 					}
-					for (MailFilter f : todo) {
-						try {
-							List<Packet> p = f.doEndOfMail(headers, allMacros, msg);
-							if (p != null) {
-								if (handleResult(f, packageType, 
-									p.toArray(new Packet[p.size()]))) 
-								{
-									return false;
+					if (addVersion) {
+						send(new AddHeaderPacket("X-Milter", version), cmd);
+					}
+					if (addRecipient) {
+						send(new AddHeaderPacket("X-RcptTo", 
+							allMacros.get("{rcpt_addr}")), cmd);
+					}
+					if (toSend != null && !toSend.isEmpty()) {
+						for (Packet p : toSend) {
+							if (p.getType() == de.ovgu.cs.milter4j.reply.Type.QUARANTINE)
+							{
+								if (quarantined) {
+									close(p);
+									continue;
 								}
-							} else {
-								stats.increment(f.getStatName(), packageType,
-									de.ovgu.cs.milter4j.reply.Type.CONTINUE);
+								quarantined = true;
 							}
-						} catch (Exception e) {
-							log.warn(f.getName() + ": " + e.getLocalizedMessage());
-							log.debug("handlePaket", e);
+							send(p, cmd);
 						}
+						toSend.clear();
 					}
+					if (!digestFilters.isEmpty()) {
+						if (skipList.containsAll(digestFilters)) {
+							// MTA may have skipped the rest of the body
+							digester.invalidate();
+						}
+						digester.finish();
+					}
+					if (todo.size() > 0) {
+						Mail msg = null;
+						if (!(assembleNow.isEmpty() || body.size() == 0
+							|| Collections.disjoint(todo, assembleNow))) 
+						{
+							try {
+								msg = new Mail(headers, body, contentCache);
+							} catch (IOException e) {
+								log.warn(e.getLocalizedMessage());
+								log.debug("handlePaket", e);
+							}
+						}
+						for (MailFilter f : todo) {
+							try {
+								long start = startCall(f);
+								List<Packet> p = 
+									f.doEndOfMail(headers, allMacros, msg);
+								took(f, cmd, start);
+								if (p != null) {
+									if (handleResult(f, packageType, 
+										p.toArray(new Packet[p.size()]))) 
+									{
+										return false;
+									}
+								} else {
+									stats.increment(f.getStatName(), packageType,
+										de.ovgu.cs.milter4j.reply.Type.CONTINUE);
+								}
+							} catch (Exception e) {
+								log.warn(f.getName() + ": " 
+									+ e.getLocalizedMessage());
+								log.debug("handlePaket", e);
+							}
+						}
+					}
+				} finally {
+					// the mail is backed by the buffer and cache, and a
+					// rejected message must not leak into the next one
+					endMessage();
 				}
 				send(new ContinuePacket(), cmd);
 				break;
@@ -776,7 +1453,9 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 					final UnknownCmdPacket up = new UnknownCmdPacket(data);
 					for (MailFilter f : todo) {
 						try {
+							long start = startCall(f);
 							Packet p = f.doBadCommand(up.getCmd(), allMacros);
+							took(f, cmd, start);
 							if (handleResult(f, packageType, p)) {
 								return false;
 							}
@@ -899,6 +1578,39 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 		return name;
 	}
 
+	/**
+	 * Get the final decision for the current message.
+	 * @param cmd	the command, which terminated the message
+	 * @return the name of the last decisive reply sent to the MTA, 
+	 * 		<code>ABORT</code> if there is none and the MTA aborted, 
+	 * 		<code>CONTINUE</code> otherwise.
+	 */
+	private String getVerdict(Type cmd) {
+		return verdict != null
+			? verdict.name()
+			: (cmd == Type.ABORT ? "ABORT" 
+				: de.ovgu.cs.milter4j.reply.Type.CONTINUE.name());
+	}
+
+	/**
+	 * Account the given packet to the current message event and commit the
+	 * event, if the packet terminates the message.
+	 * @param cmd	the command just handled
+	 * @param size	the data size of the command packet
+	 */
+	private void commitMessage(Type cmd, int size) {
+		messageBytes += size;
+		String qid = allMacros.get("i");
+		if (qid != null) {
+			messageQueueId = qid;
+		}
+		if (cmd == Type.BODYEOB || cmd == Type.ABORT) {
+			jfr.commitMessage(messageEvent, messageQueueId, messageBytes, 
+				getVerdict(cmd));
+			messageEvent = null;
+		}
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -908,15 +1620,73 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 		if (channel == null) {
 			return null;
 		}
+		long sessionStart = System.nanoTime();
+		long messageStart = 0;
 		while(!last) {
 			try {
 				while(channel.isOpen() && !readPacket()) {
 					// try again
 				}
+				Type cmd = packageType;
+				if (cmd == Type.MAIL) {
+					messageStart = System.nanoTime();
+					verdict = null;
+					messageEvent = jfr.beginMessage();
+					messageBytes = 0;
+					messageQueueId = null;
+					if (stats != null && stats.getSlowLog().isEnabled()) {
+						timing.start();
+					} else {
+						timing.stop();
+					}
+				}
+				int size = data == null ? 0 : data.limit();
+				bytesReceived += 5 + size;
+				if (stats != null) {
+					stats.addBytes(5 + size);
+				}
+				if (cmd == Type.MAIL) {
+					messages++;
+				}
+				currentCmd = cmd;
+				long cmdStart = System.nanoTime();
+				stateSince = cmdStart;
+				Object ce = jfr.beginCommand();
 				last = channel != null
 					&& channel.isOpen() && data != null
 					? handlePaket(packageType, data) 
 					: true;
+				commitCall();
+				currentCmd = null;
+				currentFilter = null;
+				long cmdEnd = System.nanoTime();
+				stateSince = cmdEnd;
+				if (timing.isActive()) {
+					timing.command(cmd, size, cmdEnd - cmdStart);
+					if (timing.getQueueId() == null) {
+						timing.setQueueId(allMacros.get("i"));
+					}
+				}
+				if (ce != null) {
+					jfr.commitCommand(ce, cmd.name(), size);
+				}
+				if (messageEvent != null) {
+					commitMessage(cmd, size);
+				}
+				if (messageStart != 0 
+					&& (cmd == Type.BODYEOB || cmd == Type.ABORT)) 
+				{
+					long elapsed = System.nanoTime() - messageStart;
+					if (stats != null) {
+						stats.recordMessage(elapsed);
+						if (timing.isActive()) {
+							stats.getSlowLog().check(timing, elapsed, peer, 
+								getVerdict(cmd));
+						}
+					}
+					timing.stop();
+					messageStart = 0;
+				}
 			} catch (AsynchronousCloseException e1) {
 				// that's ok - may occure, if shutdown gets called
 			} catch (Exception e) {
@@ -929,6 +1699,15 @@ public class Worker implements Comparable<Worker>, Callable<Object> {
 			}
 		}
 		cleanup(false);
+		commitCall();
+		messageEvent = null;
+		connectTime = 0;
+		peer = null;
+		currentCmd = null;
+		currentFilter = null;
+		if (stats != null) {
+			stats.recordSession(System.nanoTime() - sessionStart);
+		}
 		log.debug("{} task finished", this);
 		return null;
 	}
@@ -16,6 +16,11 @@ import de.ovgu.cs.milter4j.util.Misc;
 /**
  * Sends the body to a filter
  * <p>
+ * The packet does not copy the received data: {@link #getBuffer()} returns
+ * read-only views of the receive buffer, {@link #getChunk()} its backing
+ * array, if the buffer covers the whole array (which is the case for the
+ * per-packet buffers used by the {@link de.ovgu.cs.milter4j.Worker}).
+ * <p>
  * message-oriented
  *  
  * @author 	Jens Elkner
@@ -24,28 +29,54 @@ import de.ovgu.cs.milter4j.util.Misc;
 public class BodyPacket
 	extends Command
 {
+	ByteBuffer data;
 	byte[] chunk;
 
 	/**
 	 * Create the packet
-	 * @param data	raw data received.
+	 * @param data	raw data received. The packet takes over the buffer, so
+	 * 		it must not be modified anymore.
 	 */
 	public BodyPacket(ByteBuffer data) {
 		super(Type.BODY);
-		int count = data.remaining();
-		if (count != 0) {
-			chunk = new byte[count];
-			data.get(chunk);
-		} else {
-			chunk = Misc.ZERO_DATA;
-		}
+		this.data = data.slice();
 	}
 
 	/**
 	 * Get the chunk of body received.
-	 * @return the chunk, which might be the whole body.
+	 * @return the chunk, which might be the whole body. Must not be modified.
 	 */
 	public byte[] getChunk() {
+		if (chunk == null) {
+			int count = data.remaining();
+			if (count == 0) {
+				chunk = Misc.ZERO_DATA;
+			} else if (data.hasArray() && data.arrayOffset() == 0 
+				&& data.array().length == count) 
+			{
+				chunk = data.array();
+			} else {
+				chunk = new byte[count];
+				data.duplicate().get(chunk);
+			}
+		}
 		return chunk;
 	}
+
+	/**
+	 * Get a read-only view of the chunk of body received. Each call returns
+	 * a new view, so that readers do not influence each other.
+	 * @return the chunk, which might be the whole body.
+	 */
+	public ByteBuffer getBuffer() {
+		return data.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Get the size of the chunk of body received.
+	 * @return number of bytes received.
+	 */
+	public int size() {
+		return data.remaining();
+	}
 }
@@ -71,6 +71,7 @@ public enum Type {
 	 */
 	Type(char cmd, int skipflag, int replyflag) {
 		this.val = (byte) (0x0FF & cmd);
+		this.reply = replyflag;
 	}
 	
 	/**
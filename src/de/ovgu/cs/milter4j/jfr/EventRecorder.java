@@ -0,0 +1,81 @@
+/**
+ * $Id$
+ *
+ * Copyright (c) 2005-2007 Jens Elkner.
+ * All Rights Reserved.
+ *
+ * This software is the proprietary information of Jens Elkner.
+ * Use is subject to license terms.
+ */
+package de.ovgu.cs.milter4j.jfr;
+
+/**
+ * Emitter of milter4j's flight recorder events.
+ * <p>
+ * Events are passed around as opaque handles, so that users of this
+ * interface do not link against <code>jdk.jfr</code>. A <code>begin</code>
+ * method returns <code>null</code> if the event is disabled, and all other
+ * methods accept <code>null</code> handles and do nothing in this case.
+ * <p>
+ * Implementations are thread-safe, handles are not.
+ *
+ * @see Jfr#getRecorder()
+ * @author 	Jens Elkner
+ * @version	$Revision$
+ */
+public interface EventRecorder {
+
+	/**
+	 * Start the event for handling a milter command.
+	 * @return <code>null</code> if disabled, the event handle otherwise.
+	 */
+	public Object beginCommand();
+
+	/**
+	 * Finish and commit the given command event.
+	 * @param event	the handle returned by {@link #beginCommand()}
+	 * @param command	name of the command
+	 * @param size	size of the packet data
+	 */
+	public void commitCommand(Object event, String command, int size);
+
+	/**
+	 * Start the event for a single invocation of a mail filter callback.
+	 * @return <code>null</code> if disabled, the event handle otherwise.
+	 */
+	public Object beginFilterCall();
+
+	/**
+	 * Finish the given filter call event, but do not commit it yet (the
+	 * reply may not be known yet).
+	 * @param event	the handle returned by {@link #beginFilterCall()}
+	 * @param filter	statistics name of the filter
+	 * @param command	name of the command, which triggered the call
+	 */
+	public void endFilterCall(Object event, String filter, String command);
+
+	/**
+	 * Commit the given filter call event.
+	 * @param event	the handle returned by {@link #beginFilterCall()}
+	 * @param reply	type of the first reply of the filter,
+	 * 		<code>CONTINUE</code> if it did not reply
+	 */
+	public void commitFilterCall(Object event, String reply);
+
+	/**
+	 * Start the event for a message.
+	 * @return <code>null</code> if disabled, the event handle otherwise.
+	 */
+	public Object beginMessage();
+
+	/**
+	 * Finish and commit the given message event.
+	 * @param event	the handle returned by {@link #beginMessage()}
+	 * @param queueId	the value of the queue id macro <code>i</code>,
+	 * 		might be <code>null</code>
+	 * @param bytes	data size of all packets received for the message
+	 * @param verdict	the final decision sent to the MTA
+	 */
+	public void commitMessage(Object event, String queueId, long bytes,
+		String verdict);
+}
@@ -0,0 +1,109 @@
+/**
+ * $Id$
+ *
+ * Copyright (c) 2005-2007 Jens Elkner.
+ * All Rights Reserved.
+ *
+ * This software is the proprietary information of Jens Elkner.
+ * Use is subject to license terms.
+ */
+package de.ovgu.cs.milter4j.jfr;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Access to milter4j's flight recorder events.
+ * <p>
+ * All events are disabled by default. They can be enabled via a custom
+ * <code>.jfc</code> file or e.g.
+ * {@code jcmd <pid> JFR.start settings=milter4j.jfc}, with
+ * <code>milter4j.Command#enabled=true</code>,
+ * <code>milter4j.FilterCall#enabled=true</code> and/or
+ * <code>milter4j.Message#enabled=true</code>. As long as an event is
+ * disabled, its check costs a field read, only, and no event object gets
+ * created.
+ * <p>
+ * The events themselves live in {@link #IMPL_PACKAGE}, which is the only
+ * code linking against <code>jdk.jfr</code>. It gets loaded reflectively,
+ * so on JVMs without <code>jdk.jfr</code> (or if the package has not been
+ * built) a recorder, which does nothing, is used instead.
+ *
+ * @author 	Jens Elkner
+ * @version	$Revision$
+ */
+public final class Jfr {
+	private static final Logger log = LoggerFactory.getLogger(Jfr.class);
+
+	/** the package containing the JFR based implementation */
+	public static final String IMPL_PACKAGE = "de.ovgu.cs.milter4j.jfr.impl";
+
+	private static final EventRecorder recorder;
+
+	static {
+		EventRecorder r = null;
+		try {
+			Class.forName("jdk.jfr.EventType");
+			r = (EventRecorder) Class.forName(IMPL_PACKAGE + ".JfrRecorder")
+				.getConstructor().newInstance();
+		} catch (Throwable e) {
+			log.debug("static", e);
+		}
+		recorder = r == null ? new NoRecorder() : r;
+	}
+
+	private static final class NoRecorder implements EventRecorder {
+		NoRecorder() {
+			// nothing to do
+		}
+
+		@Override
+		public Object beginCommand() {
+			return null;
+		}
+
+		@Override
+		public void commitCommand(Object event, String command, int size) {
+			// disabled
+		}
+
+		@Override
+		public Object beginFilterCall() {
+			return null;
+		}
+
+		@Override
+		public void endFilterCall(Object event, String filter, String command) {
+			// disabled
+		}
+
+		@Override
+		public void commitFilterCall(Object event, String reply) {
+			// disabled
+		}
+
+		@Override
+		public Object beginMessage() {
+			return null;
+		}
+
+		@Override
+		public void commitMessage(Object event, String queueId, long bytes,
+			String verdict)
+		{
+			// disabled
+		}
+	}
+
+	private Jfr() {
+		// static methods only
+	}
+
+	/**
+	 * Get the event recorder to use.
+	 * @return always the same instance.
+	 */
+	public static EventRecorder getRecorder() {
+		return recorder;
+	}
+}
@@ -0,0 +1,45 @@
+/**
+ * $Id$
+ *
+ * Copyright (c) 2005-2007 Jens Elkner.
+ * All Rights Reserved.
+ *
+ * This software is the proprietary information of Jens Elkner.
+ * Use is subject to license terms.
+ */
+package de.ovgu.cs.milter4j.jfr.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for handling a single milter command received from
+ * the MTA, i.e. running all filters interested in it and sending the
+ * replies. Reading the packet from the socket is not included.
+ * <p>
+ * Disabled by default.
+ *
+ * @author 	Jens Elkner
+ * @version	$Revision$
+ */
+@Name("milter4j.Command")
+@Label("Milter Command")
+@Description("Handling of a milter command received from the MTA")
+@Category("milter4j")
+@Enabled(false)
+@StackTrace(false)
+public class CommandEvent extends jdk.jfr.Event {
+	/** name of the command */
+	@Label("Command")
+	public String command;
+
+	/** size of the packet data */
+	@Label("Size")
+	@DataAmount
+	public int size;
+}
@@ -0,0 +1,47 @@
+/**
+ * $Id$
+ *
+ * Copyright (c) 2005-2007 Jens Elkner.
+ * All Rights Reserved.
+ *
+ * This software is the proprietary information of Jens Elkner.
+ * Use is subject to license terms.
+ */
+package de.ovgu.cs.milter4j.jfr.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for a single invocation of a mail filter callback.
+ * Invocations, which throw an exception, are not recorded.
+ * <p>
+ * Disabled by default.
+ *
+ * @author 	Jens Elkner
+ * @version	$Revision$
+ */
+@Name("milter4j.FilterCall")
+@Label("Mail Filter Call")
+@Description("Invocation of a mail filter callback")
+@Category("milter4j")
+@Enabled(false)
+@StackTrace(false)
+public class FilterCallEvent extends jdk.jfr.Event {
+	/** statistics name of the filter */
+	@Label("Filter")
+	public String filter;
+
+	/** name of the command, which triggered the call */
+	@Label("Command")
+	public String command;
+
+	/** type of the first reply of the filter, <code>CONTINUE</code> if it 
+	 * did not reply */
+	@Label("Reply")
+	public String reply;
+}
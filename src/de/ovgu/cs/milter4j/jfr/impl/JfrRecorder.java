@@ -0,0 +1,136 @@
+/**
+ * $Id$
+ *
+ * Copyright (c) 2005-2007 Jens Elkner.
+ * All Rights Reserved.
+ *
+ * This software is the proprietary information of Jens Elkner.
+ * Use is subject to license terms.
+ */
+package de.ovgu.cs.milter4j.jfr.impl;
+
+import jdk.jfr.EventType;
+
+import de.ovgu.cs.milter4j.jfr.EventRecorder;
+
+/**
+ * Event recorder based on <code>jdk.jfr</code>. Gets instantiated
+ * reflectively by {@link de.ovgu.cs.milter4j.jfr.Jfr}, only.
+ *
+ * @author 	Jens Elkner
+ * @version	$Revision$
+ */
+public class JfrRecorder implements EventRecorder {
+	private final EventType commandType =
+		EventType.getEventType(CommandEvent.class);
+	private final EventType filterCallType =
+		EventType.getEventType(FilterCallEvent.class);
+	private final EventType messageType =
+		EventType.getEventType(MessageEvent.class);
+
+	/**
+	 * Create a new recorder.
+	 */
+	public JfrRecorder() {
+		// nothing to do
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Object beginCommand() {
+		if (!commandType.isEnabled()) {
+			return null;
+		}
+		CommandEvent e = new CommandEvent();
+		e.begin();
+		return e;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void commitCommand(Object event, String command, int size) {
+		if (event == null) {
+			return;
+		}
+		CommandEvent e = (CommandEvent) event;
+		e.end();
+		e.command = command;
+		e.size = size;
+		e.commit();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Object beginFilterCall() {
+		if (!filterCallType.isEnabled()) {
+			return null;
+		}
+		FilterCallEvent e = new FilterCallEvent();
+		e.begin();
+		return e;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void endFilterCall(Object event, String filter, String command) {
+		if (event == null) {
+			return;
+		}
+		FilterCallEvent e = (FilterCallEvent) event;
+		e.end();
+		e.filter = filter;
+		e.command = command;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void commitFilterCall(Object event, String reply) {
+		if (event == null) {
+			return;
+		}
+		FilterCallEvent e = (FilterCallEvent) event;
+		e.reply = reply;
+		e.commit();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Object beginMessage() {
+		if (!messageType.isEnabled()) {
+			return null;
+		}
+		MessageEvent e = new MessageEvent();
+		e.begin();
+		return e;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void commitMessage(Object event, String queueId, long bytes,
+		String verdict)
+	{
+		if (event == null) {
+			return;
+		}
+		MessageEvent e = (MessageEvent) event;
+		e.end();
+		e.queueId = queueId;
+		e.bytes = bytes;
+		e.verdict = verdict;
+		e.commit();
+	}
+}
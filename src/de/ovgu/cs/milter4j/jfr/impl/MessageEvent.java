@@ -0,0 +1,49 @@
+/**
+ * $Id$
+ *
+ * Copyright (c) 2005-2007 Jens Elkner.
+ * All Rights Reserved.
+ *
+ * This software is the proprietary information of Jens Elkner.
+ * Use is subject to license terms.
+ */
+package de.ovgu.cs.milter4j.jfr.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for a message, i.e. from receiving the MAIL FROM
+ * command until the end-of-message or abort command has been handled.
+ * <p>
+ * Disabled by default.
+ *
+ * @author 	Jens Elkner
+ * @version	$Revision$
+ */
+@Name("milter4j.Message")
+@Label("Message")
+@Description("A message from MAIL FROM until end of message or abort")
+@Category("milter4j")
+@Enabled(false)
+@StackTrace(false)
+public class MessageEvent extends jdk.jfr.Event {
+	/** the value of the queue id macro <code>i</code>, if sent by the MTA */
+	@Label("Queue ID")
+	public String queueId;
+
+	/** data size of all packets received for the message */
+	@Label("Bytes")
+	@DataAmount
+	public long bytes;
+
+	/** the final decision sent to the MTA, <code>CONTINUE</code> if none
+	 * of the filters made one, <code>ABORT</code> if the MTA aborted */
+	@Label("Verdict")
+	public String verdict;
+}
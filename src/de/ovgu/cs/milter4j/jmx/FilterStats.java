@@ -9,7 +9,7 @@
  */
 package de.ovgu.cs.milter4j.jmx;
 
-import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.management.ObjectName;
 import javax.management.openmbean.CompositeData;
@@ -31,8 +31,18 @@ import de.ovgu.cs.milter4j.cmd.Type;
  * Class to collect statistics about mail filters.
  * <p>
  * It's a matrix of {@link de.ovgu.cs.milter4j.cmd.Type#values()} x
- * {@link de.ovgu.cs.milter4j.reply.Type#values()} of atomic Integers (so
- * ~ 1.2 KB of data).
+ * {@link de.ovgu.cs.milter4j.reply.Type#values()} of 64-bit counters.
+ * <p>
+ * Each cell is a {@link LongAdder}, i.e. under contention it gets striped
+ * into cache-line padded cells per thread group, so that workers 
+ * incrementing the same counter do not serialize on a single CAS location.
+ * The stripes get summed up on read, only. 
+ * <p>
+ * Furthermore for each command a {@link LatencyHistogram} records, how long
+ * the filter took to handle it, and for a sample of invocations the CPU time
+ * and the number of bytes allocated by the filter get accumulated. For each
+ * reply type a {@link RateMeter} provides the current reply rates over all
+ * commands.
  * 
  * @author 	Jens Elkner
  * @version	$Revision$
@@ -41,7 +51,12 @@ public class FilterStats implements FilterStatsMBean {
 	private static final Logger log = LoggerFactory
 		.getLogger(FilterStats.class);
 	
-	private AtomicIntegerArray[] stats;
+	private LongAdder[][] stats;
+	private LatencyHistogram[] latency;
+	private LongAdder[] samples;
+	private LongAdder[] cpuTime;
+	private LongAdder[] allocated;
+	private RateMeter[] rates;
 	private String name;
 	
 	private static TabularType FILTER_CMD_TYPE;
@@ -52,6 +67,25 @@ public class FilterStats implements FilterStatsMBean {
 	
 	private static String[] CMD_NAMES;
 
+	private static final String[] USAGE_NAMES = new String[] {
+		"Command", "Samples", "CpuTime", "AllocatedBytes", "AvgCpuTime", 
+		"AvgAllocatedBytes"
+	};
+	private static final String[] USAGE_DESC = new String[] {
+		"The name of the command, for which the given usage applies",
+		"Number of invocations measured",
+		"CPU time of all invocations measured in microseconds",
+		"Bytes allocated by all invocations measured",
+		"Average CPU time per invocation in microseconds",
+		"Average number of bytes allocated per invocation"
+	};
+	private static final OpenType<?>[] USAGE_TYPES = new OpenType<?>[] {
+		SimpleType.STRING, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG,
+		SimpleType.LONG, SimpleType.LONG
+	};
+	private static CompositeType USAGE_TYPE;
+	private static TabularType USAGE_TABLE_TYPE;
+
 	static {
 		// rows layout
 		de.ovgu.cs.milter4j.reply.Type[] values = 
@@ -65,7 +99,7 @@ public class FilterStats implements FilterStatsMBean {
 		for (int i=0; i < values.length; i++) {
 			RES_NAMES[i+1] = values[i].name();
 			RES_DESC[i+1] = "" + (char) values[i].getCode();
-			RES_TYPES[i+1] = SimpleType.INTEGER;
+			RES_TYPES[i+1] = SimpleType.LONG;
 		}
 		try {
 			FILTER_RES_TYPE = new CompositeType("FilterResult", 
@@ -90,6 +124,20 @@ public class FilterStats implements FilterStatsMBean {
 			}
 		}
 		
+		try {
+			USAGE_TYPE = new CompositeType("FilterUsage", 
+				"Sampled resource usage of a mail filter", 
+				USAGE_NAMES, USAGE_DESC, USAGE_TYPES);
+			USAGE_TABLE_TYPE = new TabularType("FilterUsages",
+				"Sampled resource usage of a mail filter wrt. the command",
+				USAGE_TYPE, new String[] { USAGE_NAMES[0] });
+		} catch (OpenDataException e) {
+			log.warn(e.getLocalizedMessage());
+			if (log.isDebugEnabled()) {
+				log.debug("static", e);
+			}
+		}
+		
 		Type[] cmds = Type.values();
 		CMD_NAMES = new String[cmds.length];
 		for (int i=0; i < cmds.length; i++) {
@@ -110,9 +158,35 @@ public class FilterStats implements FilterStatsMBean {
 		Type[] cmds = Type.values();
 		de.ovgu.cs.milter4j.reply.Type[] replies = 
 			de.ovgu.cs.milter4j.reply.Type.values();
-		stats = new AtomicIntegerArray[cmds.length];
+		stats = new LongAdder[cmds.length][replies.length];
+		for (int i=cmds.length-1; i >= 0; i--) {
+			for (int k=replies.length-1; k >= 0; k--) {
+				stats[i][k] = new LongAdder();
+			}
+		}
+		latency = new LatencyHistogram[cmds.length];
+		samples = new LongAdder[cmds.length];
+		cpuTime = new LongAdder[cmds.length];
+		allocated = new LongAdder[cmds.length];
 		for (int i=cmds.length-1; i >= 0; i--) {
-			stats[i] = new AtomicIntegerArray(replies.length);
+			latency[i] = new LatencyHistogram();
+			samples[i] = new LongAdder();
+			cpuTime[i] = new LongAdder();
+			allocated[i] = new LongAdder();
+		}
+		rates = new RateMeter[replies.length];
+		for (int k=replies.length-1; k >= 0; k--) {
+			final int col = k;
+			rates[k] = new RateMeter(new HistoryStore.Gauge() {
+				@Override
+				public long getValue() {
+					long sum = 0;
+					for (int i=stats.length-1; i >= 0; i--) {
+						sum += stats[i][col].sum();
+					}
+					return sum;
+				}
+			});
 		}
 	}
 	
@@ -139,6 +213,7 @@ public class FilterStats implements FilterStatsMBean {
 	 * 					count
 	 * @param result	the result count (aka column) to increment
 	 * @return the new value of the specified destination (aka cell).
+	 * @see #add(Type, de.ovgu.cs.milter4j.reply.Type)
 	 */
 	public int increment(Type cmd, de.ovgu.cs.milter4j.reply.Type result) {
 		if (cmd == null) {
@@ -147,7 +222,234 @@ public class FilterStats implements FilterStatsMBean {
 		if (result == null) {
 			result = de.ovgu.cs.milter4j.reply.Type.CONTINUE;
 		}
-		return stats[cmd.ordinal()].incrementAndGet(result.ordinal());
+		LongAdder cell = stats[cmd.ordinal()][result.ordinal()];
+		cell.increment();
+		return (int) cell.sum();
+	}
+
+	/**
+	 * Increment the result count for the given command (thread-safe). Unlike
+	 * {@link #increment(Type, de.ovgu.cs.milter4j.reply.Type)} it does not 
+	 * sum up the stripes of the counter, and thus should be preferred, if 
+	 * the new value is not needed.
+	 * 
+	 * @param cmd		the command (aka row), for which to increment the result
+	 * 					count
+	 * @param result	the result count (aka column) to increment
+	 */
+	public void add(Type cmd, de.ovgu.cs.milter4j.reply.Type result) {
+		if (cmd == null) {
+			return;
+		}
+		if (result == null) {
+			result = de.ovgu.cs.milter4j.reply.Type.CONTINUE;
+		}
+		stats[cmd.ordinal()][result.ordinal()].increment();
+	}
+
+	/**
+	 * Get the current result count for the given command.
+	 * 
+	 * @param cmd		the command (aka row)
+	 * @param result	the result (aka column)
+	 * @return the sum of all stripes of the specified cell. Not an atomic 
+	 * 		snapshot wrt. concurrent updates.
+	 */
+	public long getCount(Type cmd, de.ovgu.cs.milter4j.reply.Type result) {
+		return stats[cmd.ordinal()][result.ordinal()].sum();
+	}
+
+	/**
+	 * Get the latency histogram of the given command.
+	 * @param cmd	the command
+	 * @return the live histogram.
+	 */
+	public LatencyHistogram getLatency(Type cmd) {
+		return latency[cmd.ordinal()];
+	}
+
+	/**
+	 * Get the number of invocations, whose resource usage has been measured.
+	 * @param cmd	the command
+	 * @return the number of samples taken.
+	 */
+	public long getSamples(Type cmd) {
+		return samples[cmd.ordinal()].sum();
+	}
+
+	/**
+	 * Get the CPU time used by all measured invocations.
+	 * @param cmd	the command
+	 * @return the CPU time in nanoseconds.
+	 */
+	public long getCpuTime(Type cmd) {
+		return cpuTime[cmd.ordinal()].sum();
+	}
+
+	/**
+	 * Get the number of bytes allocated by all measured invocations.
+	 * @param cmd	the command
+	 * @return the number of bytes.
+	 */
+	public long getAllocatedBytes(Type cmd) {
+		return allocated[cmd.ordinal()].sum();
+	}
+
+	private static class CellGauge implements HistoryStore.Gauge {
+		private LongAdder cell;
+
+		CellGauge(LongAdder cell) {
+			this.cell = cell;
+		}
+
+		@Override
+		public long getValue() {
+			return cell.sum();
+		}
+	}
+
+	/**
+	 * Register all result counters as well as the 50th and 99th latency 
+	 * percentile of each command with the given history store. The metric
+	 * names are <var>filter</var><code>.</code><var>command</var><code>.</code>
+	 * <var>result</var> resp. <var>filter</var><code>.</code><var>command</var>
+	 * <code>.P50</code> and <var>filter</var><code>.</code><var>command</var>
+	 * <code>.P99</code>.
+	 * 
+	 * @param store	where to register the metrics
+	 * @see #unregisterHistory(HistoryStore)
+	 */
+	public void registerHistory(HistoryStore store) {
+		String[] replies = new String[RES_NAMES.length-1];
+		System.arraycopy(RES_NAMES, 1, replies, 0, replies.length);
+		for (int i=0; i < stats.length; i++) {
+			String prefix = name + "." + CMD_NAMES[i] + ".";
+			for (int k=0; k < replies.length; k++) {
+				store.register(prefix + replies[k], new CellGauge(stats[i][k]));
+			}
+			store.register(prefix + "P50", latency[i].getGauge(0.5));
+			store.register(prefix + "P99", latency[i].getGauge(0.99));
+		}
+	}
+
+	/**
+	 * Remove all metrics of this filter from the given history store.
+	 * @param store	where the metrics have been registered
+	 */
+	public void unregisterHistory(HistoryStore store) {
+		store.unregister(name + ".");
+	}
+
+	/**
+	 * Record the time the filter took to handle the given command 
+	 * (thread-safe).
+	 * 
+	 * @param cmd	the command handled
+	 * @param nanos	the time taken in nanoseconds
+	 */
+	public void record(Type cmd, long nanos) {
+		if (cmd != null) {
+			latency[cmd.ordinal()].record(nanos);
+		}
+	}
+
+	/**
+	 * Record the resources used by a single invocation of the filter 
+	 * (thread-safe).
+	 * 
+	 * @param cmd	the command handled
+	 * @param cpuNanos	CPU time used in nanoseconds. Ignored if &lt; 0.
+	 * @param bytes	number of bytes allocated. Ignored if &lt; 0.
+	 */
+	public void recordUsage(Type cmd, long cpuNanos, long bytes) {
+		if (cmd == null) {
+			return;
+		}
+		int i = cmd.ordinal();
+		samples[i].increment();
+		if (cpuNanos > 0) {
+			cpuTime[i].add(cpuNanos);
+		}
+		if (bytes > 0) {
+			allocated[i].add(bytes);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public TabularData getUsage() {
+		TabularData data = new TabularDataSupport(USAGE_TABLE_TYPE);
+		for (int i=0; i < samples.length; i++) {
+			long n = samples[i].sum();
+			long cpu = cpuTime[i].sum() / 1000;
+			long bytes = allocated[i].sum();
+			Object[] vals = new Object[] { CMD_NAMES[i], Long.valueOf(n),
+				Long.valueOf(cpu), Long.valueOf(bytes), 
+				Long.valueOf(n == 0 ? 0 : cpu / n), 
+				Long.valueOf(n == 0 ? 0 : bytes / n)
+			};
+			try {
+				data.put(new CompositeDataSupport(USAGE_TYPE, USAGE_NAMES, vals));
+			} catch (OpenDataException e) {
+				log.warn(e.getLocalizedMessage());
+				if (log.isDebugEnabled()) {
+					log.debug("getUsage", e);
+				}
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void resetUsage() {
+		for (int i=samples.length-1; i >= 0; i--) {
+			samples[i].reset();
+			cpuTime[i].reset();
+			allocated[i].reset();
+		}
+	}
+
+	/**
+	 * Update the reply rates.
+	 * @see RateMeter#tick()
+	 */
+	public void tickRates() {
+		for (int i=rates.length-1; i >= 0; i--) {
+			rates[i].tick();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public TabularData getRates() {
+		String[] replies = new String[RES_NAMES.length-1];
+		System.arraycopy(RES_NAMES, 1, replies, 0, replies.length);
+		return RateMeter.toTabularData(replies, rates);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public TabularData getLatencies() {
+		return LatencyHistogram.toTabularData(CMD_NAMES, latency);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void resetLatencies() {
+		for (int i=latency.length-1; i >= 0; i--) {
+			latency[i].reset();
+		}
 	}
 
 	/**
@@ -158,11 +460,11 @@ public class FilterStats implements FilterStatsMBean {
 		TabularData data = new TabularDataSupport(FILTER_CMD_TYPE);
 		CompositeData[] cd = new CompositeData[stats.length];
 		for (int i=0; i < stats.length; i++) {
-			AtomicIntegerArray line = stats[i];
-			Object[] vals = new Object[line.length()+1];
+			LongAdder[] line = stats[i];
+			Object[] vals = new Object[line.length+1];
 			vals[0] = CMD_NAMES[i];
-			for (int k=0; k < line.length(); k++) {
-				vals[k+1] = Integer.valueOf(line.get(k));
+			for (int k=0; k < line.length; k++) {
+				vals[k+1] = Long.valueOf(line[k].sum());
 			}
 			try {
 				cd[i] = 
@@ -26,6 +26,9 @@ import java.util.logging.Logger;
 
 import javax.management.JMX;
 import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationFilterSupport;
+import javax.management.NotificationListener;
 import javax.management.ObjectName;
 import javax.management.openmbean.CompositeData;
 import javax.management.openmbean.CompositeType;
@@ -49,9 +52,15 @@ import javax.swing.border.EmptyBorder;
 import javax.swing.table.DefaultTableModel;
 
 import de.ovgu.cs.milter4j.ServerMBean;
+import de.ovgu.cs.milter4j.StatsCollector;
 
 /**
  * An extension to JConsole to display tabular data of simple types correctly.
+ * <p>
+ * The stats table of the selected filter gets loaded completely only, if 
+ * the selection changes or the update button gets pressed. Afterwards the
+ * panel listens for the history sample notifications of the server and 
+ * fetches the counters changed since the last sample seen, only.
  * 
  * @author Jens Elkner
  * @version $Revision$
@@ -71,6 +80,11 @@ public class FilterStatsConsole
 	JScrollPane statsPane;
 	JTable statsTable;
 	boolean ignoreUpdates;
+	// the following get accessed by the event dispatch thread, only
+	String statsFilter;
+	long statsSeq;
+	boolean deltaRunning;
+	private NotificationListener sampleListener;
 
 	/**
 	 * Create a new JPanel, which displays stats.
@@ -106,6 +120,17 @@ public class FilterStatsConsole
 		add(top, BorderLayout.NORTH);
 		add(statsPane, BorderLayout.CENTER);
 		add(statsUpdateButton, BorderLayout.SOUTH);
+		sampleListener = new NotificationListener() {
+			@Override
+			public void handleNotification(Notification n, Object handback) {
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						updateStatsDelta();
+					}
+				});
+			}
+		};
 	}
 
 	void updateFilterCombo() {
@@ -180,6 +205,8 @@ public class FilterStatsConsole
 		SwingWorker<DefaultTableModel, Object> w = 
 			new SwingWorker<DefaultTableModel, Object>() 
 		{
+			private long seq;
+
 			@Override
 			protected DefaultTableModel doInBackground() {
 				FilterStatsMBean bean = null;
@@ -196,6 +223,8 @@ public class FilterStatsConsole
 					}
 					return null;
 				}
+				// changes after this sample get fetched with the next delta
+				seq = sbean.getSampleSequence();
 				TabularData td = bean.getStats();
 				TabularType tt = td.getTabularType();
 				List<String> idxNames = tt.getIndexNames();
@@ -270,6 +299,8 @@ public class FilterStatsConsole
 				if (dtm == null) {
 					return;
 				}
+				statsFilter = o.toString();
+				statsSeq = seq;
 				if (statsTable == null) {
 					statsTable = new JTable(dtm);
 					statsTable.setAutoCreateRowSorter(true);
@@ -286,6 +317,94 @@ public class FilterStatsConsole
 		w.execute();
 	}
 
+	/**
+	 * Update the cells of the stats table, which have been changed since the
+	 * last update. Does nothing, if there is no table yet or an update is
+	 * already in progress. Must be called by the event dispatch thread.
+	 */
+	void updateStatsDelta() {
+		if (statsTable == null || statsFilter == null || deltaRunning) {
+			return;
+		}
+		final String filter = statsFilter;
+		final long since = statsSeq;
+		deltaRunning = true;
+		SwingWorker<CompositeData, Object> w = 
+			new SwingWorker<CompositeData, Object>() 
+		{
+			@Override
+			protected CompositeData doInBackground() {
+				return sbean.getChanges(filter + ".", since);
+			}
+
+			@Override
+			protected void done() {
+				deltaRunning = false;
+				CompositeData delta = null;
+				try {
+					delta = get();
+				} catch (Exception e) {
+					log.severe(e.getLocalizedMessage());
+					if (log.isLoggable(Level.FINE)) {
+						log.log(Level.FINE, "done", e);
+					}
+				}
+				if (delta == null || !filter.equals(statsFilter)) {
+					return;
+				}
+				long seq = ((Long) delta.get("Seq")).longValue();
+				if (seq < since) {
+					// server restarted
+					updateStatsTable();
+					return;
+				}
+				applyDelta(filter.length() + 1, 
+					(TabularData) delta.get("Changes"));
+				statsSeq = seq;
+			}
+		};
+		w.execute();
+	}
+
+	/**
+	 * Set the changed values in the stats table. Metrics, which are not 
+	 * counters of the table (e.g. latency percentiles) are ignored.
+	 * @param skip	length of the metric name prefix (filter name and dot)
+	 * @param changes	the changed Name;Value pairs
+	 */
+	void applyDelta(int skip, TabularData changes) {
+		if (changes.isEmpty() 
+			|| !(statsTable.getModel() instanceof DefaultTableModel)) 
+		{
+			return;
+		}
+		DefaultTableModel dtm = (DefaultTableModel) statsTable.getModel();
+		int rows = dtm.getRowCount();
+		for (Object o : changes.values()) {
+			CompositeData cd = (CompositeData) o;
+			String name = (String) cd.get("Name");
+			// <filter>.<command>.<reply>
+			int dot = name.indexOf('.', skip);
+			if (dot < 0) {
+				continue;
+			}
+			int col = dtm.findColumn(name.substring(dot + 1));
+			if (col <= 0) {
+				continue;
+			}
+			String cmd = name.substring(skip, dot);
+			for (int i=0; i < rows; i++) {
+				if (cmd.equals(dtm.getValueAt(i, 0))) {
+					Object val = cd.get("Value");
+					if (!val.equals(dtm.getValueAt(i, col))) {
+						dtm.setValueAt(val, i, col);
+					}
+					break;
+				}
+			}
+		}
+	}
+
 	/**
 	 * Set the MBeanServerConnection object for communicating with the target VM
 	 * 
@@ -294,9 +413,14 @@ public class FilterStatsConsole
 	 */
 	public void setMBeanServerConnection(MBeanServerConnection mbs) {
 		server = mbs;
+		// might be another server instance: resync all values
+		statsSeq = 0;
 		try {
 			ObjectName name = new ObjectName("Milter4J:type=Server");
 			sbean = JMX.newMBeanProxy(server, name, ServerMBean.class, false);
+			NotificationFilterSupport nf = new NotificationFilterSupport();
+			nf.enableType(StatsCollector.SAMPLE_NOTIFICATION);
+			server.addNotificationListener(name, sampleListener, nf, null);
 		} catch (Exception e) {
 			log.severe(e.getLocalizedMessage());
 			if (log.isLoggable(Level.FINE)) {
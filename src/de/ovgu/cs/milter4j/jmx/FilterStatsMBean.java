@@ -25,6 +25,42 @@ public interface FilterStatsMBean {
 	 */
 	public TabularData getStats();
 
+	/**
+	 * Get the moving average rates of the replies of the filter over all
+	 * commands.
+	 * @return a table with the count and the mean, 1, 5 and 15 minute rates
+	 * 		in replies per second for each reply type, indexed by the reply 
+	 * 		type name.
+	 */
+	public TabularData getRates();
+
+	/**
+	 * Get the latency percentiles of the filter per command.
+	 * @return a table with the count, p50, p90, p99, p999 and max. latency
+	 * 		in microseconds for each command, indexed by the command name.
+	 */
+	public TabularData getLatencies();
+
+	/**
+	 * Drop all latencies recorded so far.
+	 */
+	public void resetLatencies();
+
+	/**
+	 * Get the resource usage of the filter per command. Only a sample of
+	 * the invocations gets measured (see the <code>cpusampling</code> 
+	 * attribute of the configuration).
+	 * @return a table with the number of invocations measured, their total
+	 * 		CPU time in microseconds and bytes allocated, and the averages per
+	 * 		invocation, indexed by the command name.
+	 */
+	public TabularData getUsage();
+
+	/**
+	 * Drop all resource usage recorded so far.
+	 */
+	public void resetUsage();
+
 	/**
 	 * Get the name of the filter.
 	 * @return the filter's display name
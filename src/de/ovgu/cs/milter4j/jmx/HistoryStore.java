@@ -0,0 +1,418 @@
+/**
+ * $Id$
+ *
+ * Copyright (c) 2005-2007 Jens Elkner.
+ * All Rights Reserved.
+ *
+ * This software is the proprietary information of Jens Elkner.
+ * Use is subject to license terms.
+ */
+package de.ovgu.cs.milter4j.jmx;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A fixed size, multi-resolution round-robin store for the history of
+ * arbitrary metrics.
+ * <p>
+ * For each sample rate the store keeps a ring of sample times and for each
+ * metric a ring of values, all backed by primitive <code>long[]</code>s. The
+ * value ring of a metric gets allocated, when the metric reports a value
+ * other than <code>0</code> for the first time, so metrics, which never
+ * change (e.g. the counters of replies a filter never sends), do not occupy
+ * any history memory. Otherwise a metric needs
+ * {@code <var>rates</var> x <var>samples</var> x 8} bytes.
+ * <p>
+ * Metrics can be registered and removed at any time. The history of a metric
+ * starts with the first sample taken after its registration.
+ * <p>
+ * Each sample gets a sequence number and for each metric the sequence
+ * number of the sample, in which its value changed the last time, gets
+ * recorded. So a client can ask for the metrics changed since the last
+ * sample it has seen (see {@link #getChanges(String, long)}) instead of
+ * polling all values again and again.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author 	Jens Elkner
+ * @version	$Revision$
+ */
+public class HistoryStore {
+	private static final Logger log = LoggerFactory
+		.getLogger(HistoryStore.class);
+
+	/**
+	 * The source of a metric value.
+	 */
+	public static interface Gauge {
+		/**
+		 * Get the current value of the metric.
+		 * @return the current value.
+		 */
+		public long getValue();
+	}
+
+	private static class Metric {
+		Gauge gauge;
+		// [rate][sample], null until the first value != 0
+		long[][] rings;
+		// number of samples taken since registration per rate
+		int[] filled;
+		// last sampled value and sequence number of the sample it changed
+		long value;
+		long changed;
+
+		Metric(Gauge gauge, int rates) {
+			this.gauge = gauge;
+			filled = new int[rates];
+		}
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final long[] intervall;
+	private final int capacity;
+	private final long[][] times;
+	private final int[] head;
+	private final int[] size;
+	private final LinkedHashMap<String,Metric> metrics =
+		new LinkedHashMap<String,Metric>();
+	private Metric[] list = new Metric[0];
+	private long seq;
+	private long seqTime;
+
+	private static final String[] CHANGE_NAMES = new String[] {
+		"Name", "Value"
+	};
+	private static final String[] DELTA_NAMES = new String[] {
+		"Seq", "Time", "Changes"
+	};
+	private static CompositeType CHANGE_TYPE;
+	private static TabularType CHANGES_TYPE;
+	private static CompositeType DELTA_TYPE;
+
+	static {
+		try {
+			CHANGE_TYPE = new CompositeType("Change",
+				"The value of a metric, which has been changed", CHANGE_NAMES,
+				new String[] { "The name of the metric", 
+					"The last sampled value" },
+				new OpenType<?>[] { SimpleType.STRING, SimpleType.LONG });
+			CHANGES_TYPE = new TabularType("Changes",
+				"Metrics changed by name", CHANGE_TYPE,
+				new String[] { CHANGE_NAMES[0] });
+			DELTA_TYPE = new CompositeType("Delta",
+				"Metrics changed since a given sample", DELTA_NAMES,
+				new String[] {
+					"Sequence number of the last sample",
+					"Time, when the last sample has been taken",
+					"The metrics changed"
+				},
+				new OpenType<?>[] { SimpleType.LONG, SimpleType.DATE, 
+					CHANGES_TYPE });
+		} catch (OpenDataException e) {
+			log.warn(e.getLocalizedMessage());
+			if (log.isDebugEnabled()) {
+				log.debug("static", e);
+			}
+		}
+	}
+
+	/**
+	 * Create a new store.
+	 * @param intervall	sample rates in milliseconds in ascending order
+	 * @param capacity	number of samples to keep per rate
+	 */
+	public HistoryStore(long[] intervall, int capacity) {
+		this.intervall = intervall.clone();
+		this.capacity = capacity;
+		times = new long[intervall.length][capacity];
+		head = new int[intervall.length];
+		size = new int[intervall.length];
+	}
+
+	/**
+	 * Register a metric. An already registered metric with the same name
+	 * gets replaced, i.e. its history is lost. The metric counts as changed
+	 * with the next sample.
+	 * @param name	unique name of the metric
+	 * @param gauge	where to obtain the metric value from
+	 */
+	public void register(String name, Gauge gauge) {
+		lock.lock();
+		try {
+			Metric m = new Metric(gauge, intervall.length);
+			m.changed = seq + 1;
+			metrics.put(name, m);
+			list = metrics.values().toArray(new Metric[metrics.size()]);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove all metrics, whose name starts with the given prefix.
+	 * @param prefix	name prefix of the metrics to remove
+	 */
+	public void unregister(String prefix) {
+		lock.lock();
+		try {
+			Iterator<Map.Entry<String,Metric>> i =
+				metrics.entrySet().iterator();
+			while (i.hasNext()) {
+				if (i.next().getKey().startsWith(prefix)) {
+					i.remove();
+				}
+			}
+			list = metrics.values().toArray(new Metric[metrics.size()]);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the names of all registered metrics.
+	 * @return the names in registration order.
+	 */
+	public String[] getNames() {
+		lock.lock();
+		try {
+			return metrics.keySet().toArray(new String[metrics.size()]);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Take a sample of all metrics for each sample rate, whose intervall has
+	 * been elapsed.
+	 * @param now	the sample time in milliseconds since the epoch
+	 * @param all	if <code>true</code>, take a sample for all rates, no
+	 * 		matter whether their intervall has been elapsed.
+	 * @return <code>true</code> if a sample has been taken, i.e. the 
+	 * 		sequence number has been incremented.
+	 */
+	public boolean sample(long now, boolean all) {
+		lock.lock();
+		try {
+			long[] vals = null;
+			for (int i=0; i < intervall.length; i++) {
+				if (!all && size[i] > 0 && now - times[i][last(i)] < intervall[i]) {
+					break;
+				}
+				if (vals == null) {
+					vals = new long[list.length];
+					for (int k=list.length-1; k >= 0; k--) {
+						try {
+							vals[k] = list[k].gauge.getValue();
+						} catch (Exception e) {
+							log.warn(e.getLocalizedMessage());
+							log.debug("sample", e);
+						}
+					}
+					seq++;
+					seqTime = now;
+					for (int k=list.length-1; k >= 0; k--) {
+						Metric m = list[k];
+						if (m.value != vals[k]) {
+							m.value = vals[k];
+							m.changed = seq;
+						}
+					}
+				}
+				int pos = head[i];
+				times[i][pos] = now;
+				for (int k=list.length-1; k >= 0; k--) {
+					Metric m = list[k];
+					if (m.rings == null) {
+						if (vals[k] == 0) {
+							m.filled[i]++;
+							continue;
+						}
+						m.rings = new long[intervall.length][capacity];
+					}
+					m.rings[i][pos] = vals[k];
+					m.filled[i]++;
+				}
+				head[i] = (pos + 1) % capacity;
+				if (size[i] < capacity) {
+					size[i]++;
+				}
+			}
+			return vals != null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the sequence number of the last sample taken.
+	 * @return <code>0</code> if no sample has been taken yet.
+	 */
+	public long getSequence() {
+		lock.lock();
+		try {
+			return seq;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the last sampled values of all metrics with the given name prefix,
+	 * which have been changed since the sample with the given sequence 
+	 * number. Metrics registered after that sample count as changed, too.
+	 * <p>
+	 * A client should pass the sequence number returned by the previous 
+	 * call, and <code>0</code> to get all metrics. If the returned sequence
+	 * number is less than the one passed, the store has been recreated 
+	 * (e.g. by a restart) and the client should drop all values it knows.
+	 * 
+	 * @param prefix	name prefix of the metrics to check, <code>null</code>
+	 * 		or an empty string for all
+	 * @param since	sequence number of the last sample seen by the client
+	 * @return the sequence number and time of the last sample and a table of
+	 * 		the changed metrics, indexed by name.
+	 */
+	public CompositeData getChanges(String prefix, long since) {
+		if (prefix == null) {
+			prefix = "";
+		}
+		ArrayList<CompositeData> changes = new ArrayList<CompositeData>();
+		long last;
+		long lastTime;
+		lock.lock();
+		try {
+			last = seq;
+			lastTime = seqTime;
+			if (since > last) {
+				since = 0;
+			}
+			for (Map.Entry<String,Metric> e : metrics.entrySet()) {
+				Metric m = e.getValue();
+				if (m.changed <= since || !e.getKey().startsWith(prefix)) {
+					continue;
+				}
+				try {
+					changes.add(new CompositeDataSupport(CHANGE_TYPE, 
+						CHANGE_NAMES, 
+						new Object[] { e.getKey(), Long.valueOf(m.value) }));
+				} catch (OpenDataException x) {
+					log.warn(x.getLocalizedMessage());
+					log.debug("getChanges", x);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		TabularData data = new TabularDataSupport(CHANGES_TYPE);
+		data.putAll(changes.toArray(new CompositeData[changes.size()]));
+		try {
+			return new CompositeDataSupport(DELTA_TYPE, DELTA_NAMES, 
+				new Object[] { Long.valueOf(last), new Date(lastTime), data });
+		} catch (OpenDataException e) {
+			log.warn(e.getLocalizedMessage());
+			log.debug("getChanges", e);
+		}
+		return null;
+	}
+
+	private int last(int idx) {
+		return (head[idx] + capacity - 1) % capacity;
+	}
+
+	/**
+	 * Get the history of the given metric as time;value pairs.
+	 * @param name	name of the metric
+	 * @param idx	the index of the sample rate, <code>0</code> corresponds to
+	 * 		the smallest one.
+	 * @param relative	if <code>true</code>, return the difference to the
+	 * 		previous sample instead of the sampled value.
+	 * @param column	name of the value column
+	 * @param desc		description of the value column
+	 * @return <code>null</code> if <var>idx</var> is out of range or the
+	 * 		metric is unknown, the history otherwise.
+	 */
+	public TabularData getHistory(String name, int idx, boolean relative,
+		String column, String desc)
+	{
+		if (idx < 0 || idx >= intervall.length) {
+			return null;
+		}
+		long[] t;
+		long[] v;
+		lock.lock();
+		try {
+			Metric m = metrics.get(name);
+			if (m == null) {
+				return null;
+			}
+			int n = Math.min(size[idx], m.filled[idx]);
+			t = new long[n];
+			v = new long[n];
+			// oldest first
+			int pos = (head[idx] + capacity - n) % capacity;
+			for (int i=0; i < n; i++) {
+				t[i] = times[idx][pos];
+				v[i] = m.rings == null ? 0 : m.rings[idx][pos];
+				pos = (pos + 1) % capacity;
+			}
+		} finally {
+			lock.unlock();
+		}
+		CompositeType type;
+		TabularData data;
+		try {
+			type = new CompositeType("HistoryEntry",
+				"A time,value pair for " + name + " history",
+				new String[] { "Time", column },
+				new String[] {
+					"Time in milliseconds since 01.01.1970 0:00 UTC", desc },
+				new OpenType<?>[] { SimpleType.DATE, SimpleType.LONG });
+			data = new TabularDataSupport(new TabularType("History",
+				"a history table", type, new String[] { "Time" }));
+		} catch (OpenDataException e) {
+			log.warn(e.getLocalizedMessage());
+			log.debug("getHistory", e);
+			return null;
+		}
+		ArrayList<CompositeDataSupport> cd =
+			new ArrayList<CompositeDataSupport>(t.length);
+		long prev = 0;
+		for (int i=0; i < t.length; i++) {
+			if (i + 1 < t.length && t[i+1] == t[i]) {
+				// e.g. shutdown right after a regular sample: keep the last
+				continue;
+			}
+			Object[] vals = new Object[] { new Date(t[i]),
+				Long.valueOf(relative ? v[i] - prev : v[i]) };
+			prev = v[i];
+			try {
+				cd.add(new CompositeDataSupport(type,
+					new String[] { "Time", column }, vals));
+			} catch (OpenDataException e) {
+				log.warn(e.getLocalizedMessage());
+				log.debug("getHistory", e);
+			}
+		}
+		data.putAll(cd.toArray(new CompositeDataSupport[cd.size()]));
+		return data;
+	}
+}
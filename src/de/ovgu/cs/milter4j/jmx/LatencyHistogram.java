@@ -0,0 +1,317 @@
+/**
+ * $Id$
+ *
+ * Copyright (c) 2005-2007 Jens Elkner.
+ * All Rights Reserved.
+ *
+ * This software is the proprietary information of Jens Elkner.
+ * Use is subject to license terms.
+ */
+package de.ovgu.cs.milter4j.jmx;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A lock-free, fixed size latency histogram.
+ * <p>
+ * Latencies get recorded with microsecond resolution into log-linear
+ * buckets: each power of two range is split into 16 linear sub-buckets, so
+ * the relative error of a reported value is less than 6.25%. Values
+ * &gt;= 2<sup>32</sup> &micro;s (~71 min) end up in the last bucket.
+ * Thus a histogram always occupies ~3.8 KB.
+ * <p>
+ * Reported percentiles are the highest value of the bucket, which contains
+ * the requested rank (but never more than the max. value recorded).
+ * Since buckets get read one by one, a report is not an atomic snapshot
+ * wrt. concurrent updates.
+ *
+ * @author 	Jens Elkner
+ * @version	$Revision$
+ */
+public class LatencyHistogram {
+	private static final Logger log = LoggerFactory
+		.getLogger(LatencyHistogram.class);
+
+	private static final int SUB_BITS = 4;
+	private static final int SUB = 1 << SUB_BITS;
+	private static final int MAX_EXP = 32;
+	private static final long MAX_VALUE = (1L << MAX_EXP) - 1;
+	private static final int BUCKETS = (MAX_EXP - SUB_BITS + 1) * SUB;
+
+	private static final double[] PERCENTILES = {
+		0.5, 0.9, 0.99, 0.999
+	};
+	private static final String[] ROW_NAMES = new String[] {
+		"Name", "Count", "P50", "P90", "P99", "P999", "Max"
+	};
+	private static final String[] ROW_DESC = new String[] {
+		"What has been measured",
+		"Number of latencies recorded",
+		"50th percentile in microseconds",
+		"90th percentile in microseconds",
+		"99th percentile in microseconds",
+		"99.9th percentile in microseconds",
+		"Max. latency in microseconds"
+	};
+	private static final OpenType<?>[] ROW_TYPES = new OpenType<?>[] {
+		SimpleType.STRING, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG,
+		SimpleType.LONG, SimpleType.LONG, SimpleType.LONG
+	};
+	private static CompositeType ROW_TYPE;
+	private static TabularType TABLE_TYPE;
+
+	static {
+		try {
+			ROW_TYPE = new CompositeType("Latency",
+				"Latency percentiles", ROW_NAMES, ROW_DESC, ROW_TYPES);
+			TABLE_TYPE = new TabularType("Latencies",
+				"Latency percentiles by name", ROW_TYPE,
+				new String[] { ROW_NAMES[0] });
+		} catch (OpenDataException e) {
+			log.warn(e.getLocalizedMessage());
+			if (log.isDebugEnabled()) {
+				log.debug("static", e);
+			}
+		}
+	}
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Create a new, empty histogram.
+	 */
+	public LatencyHistogram() {
+		// nothing to do
+	}
+
+	private static int index(long v) {
+		if (v < SUB) {
+			return (int) v;
+		}
+		if (v > MAX_VALUE) {
+			v = MAX_VALUE;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+		return ((shift + 1) << SUB_BITS) + (int) ((v >>> shift) & (SUB - 1));
+	}
+
+	private static long highestValue(int idx) {
+		if (idx < SUB) {
+			return idx;
+		}
+		int shift = (idx >>> SUB_BITS) - 1;
+		long lower = (long) (SUB + (idx & (SUB - 1))) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	/**
+	 * Record the given latency (thread-safe).
+	 * @param nanos	latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		long v = nanos < 0 ? 0 : nanos / 1000;
+		counts.incrementAndGet(index(v));
+		long m;
+		while (v > (m = max.get()) && !max.compareAndSet(m, v)) {
+			// retry
+		}
+	}
+
+	/**
+	 * Drop all recorded values.
+	 */
+	public void reset() {
+		for (int i=BUCKETS-1; i >= 0; i--) {
+			counts.set(i, 0);
+		}
+		max.set(0);
+	}
+
+	/**
+	 * Get the number of values recorded.
+	 * @return the sum of all buckets.
+	 */
+	public long getCount() {
+		long total = 0;
+		for (int i=BUCKETS-1; i >= 0; i--) {
+			total += counts.get(i);
+		}
+		return total;
+	}
+
+	/**
+	 * Get the max. value recorded.
+	 * @return the max. latency in microseconds.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Get the value at the given percentile.
+	 * @param p	percentile in the range of 0..1, e.g. <code>0.99</code>
+	 * @return <code>0</code> if nothing has been recorded, the latency in
+	 * 		microseconds otherwise.
+	 */
+	public long getPercentile(double p) {
+		long[] snap = new long[BUCKETS];
+		long total = snapshot(snap);
+		return percentile(snap, total, p, max.get());
+	}
+
+	/**
+	 * Get the values at the given percentiles without allocating any memory,
+	 * e.g. for frequent scrapes. The buckets get read twice, so concurrent
+	 * updates may skew the result slightly.
+	 * @param ps	percentiles in the range of 0..1 in ascending order
+	 * @param result	where to store the latency in microseconds for each
+	 * 		percentile. Must have at least as many elements as <var>ps</var>.
+	 * @return the number of values recorded. If <code>0</code>,
+	 * 		<var>result</var> is left untouched.
+	 */
+	public long getPercentiles(double[] ps, long[] result) {
+		long total = getCount();
+		if (total == 0) {
+			return 0;
+		}
+		long m = max.get();
+		int k = 0;
+		long seen = 0;
+		for (int i=0; i < BUCKETS && k < ps.length; i++) {
+			seen += counts.get(i);
+			while (k < ps.length) {
+				long rank = (long) Math.ceil(ps[k] * total);
+				if (seen < (rank < 1 ? 1 : rank)) {
+					break;
+				}
+				result[k++] = Math.min(highestValue(i), m);
+			}
+		}
+		for (; k < ps.length; k++) {
+			result[k] = m;
+		}
+		return total;
+	}
+
+	private long snapshot(long[] snap) {
+		long total = 0;
+		for (int i=0; i < BUCKETS; i++) {
+			snap[i] = counts.get(i);
+			total += snap[i];
+		}
+		return total;
+	}
+
+	private static long percentile(long[] snap, long total, double p, long m) {
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(p * total);
+		if (rank < 1) {
+			rank = 1;
+		}
+		long seen = 0;
+		for (int i=0; i < snap.length; i++) {
+			seen += snap[i];
+			if (seen >= rank) {
+				return Math.min(highestValue(i), m);
+			}
+		}
+		return m;
+	}
+
+	/**
+	 * Get a gauge, which reports the value at the given percentile of this 
+	 * histogram.
+	 * @param p	percentile in the range of 0..1. If &gt;= 1, the max. value
+	 * 		gets reported.
+	 * @return a new gauge.
+	 */
+	public HistoryStore.Gauge getGauge(final double p) {
+		return new HistoryStore.Gauge() {
+			@Override
+			public long getValue() {
+				return p >= 1 ? getMax() : getPercentile(p);
+			}
+		};
+	}
+
+	/**
+	 * Get a gauge, which reports the number of values recorded.
+	 * @return a new gauge.
+	 */
+	public HistoryStore.Gauge getCountGauge() {
+		return new HistoryStore.Gauge() {
+			@Override
+			public long getValue() {
+				return getCount();
+			}
+		};
+	}
+
+	/**
+	 * Get the count, the 50th, 90th, 99th and 99.9th percentile and the max.
+	 * value of this histogram as a row of a latency table.
+	 * @param name	the value for the <code>Name</code> column
+	 * @return <code>null</code> on error, the row otherwise.
+	 */
+	public CompositeData toCompositeData(String name) {
+		long[] snap = new long[BUCKETS];
+		long total = snapshot(snap);
+		long m = max.get();
+		Object[] vals = new Object[ROW_NAMES.length];
+		vals[0] = name;
+		vals[1] = Long.valueOf(total);
+		for (int i=0; i < PERCENTILES.length; i++) {
+			vals[i+2] = Long.valueOf(percentile(snap, total, PERCENTILES[i], m));
+		}
+		vals[vals.length-1] = Long.valueOf(total == 0 ? 0 : m);
+		try {
+			return new CompositeDataSupport(ROW_TYPE, ROW_NAMES, vals);
+		} catch (OpenDataException e) {
+			log.warn(e.getLocalizedMessage());
+			if (log.isDebugEnabled()) {
+				log.debug("toCompositeData", e);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Create a latency table for the given histograms.
+	 * @param names	the names of the histograms (table index)
+	 * @param histograms	histograms to report. <code>null</code> entries
+	 * 		are skipped.
+	 * @return a table with one row per histogram.
+	 */
+	public static TabularData toTabularData(String[] names,
+		LatencyHistogram[] histograms)
+	{
+		TabularData data = new TabularDataSupport(TABLE_TYPE);
+		for (int i=0; i < histograms.length; i++) {
+			if (histograms[i] == null) {
+				continue;
+			}
+			CompositeData cd = histograms[i].toCompositeData(names[i]);
+			if (cd != null) {
+				data.put(cd);
+			}
+		}
+		return data;
+	}
+}
@@ -0,0 +1,179 @@
+/**
+ * $Id$
+ *
+ * Copyright (c) 2005-2007 Jens Elkner.
+ * All Rights Reserved.
+ *
+ * This software is the proprietary information of Jens Elkner.
+ * Use is subject to license terms.
+ */
+package de.ovgu.cs.milter4j.jmx;
+
+import java.util.Arrays;
+
+import de.ovgu.cs.milter4j.cmd.Type;
+
+/**
+ * Time spent per command and per filter while handling the current message
+ * of a worker.
+ * <p>
+ * All arrays get allocated, when the filters of the worker are set, so
+ * tracking a message does not allocate any memory.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @see SlowMessageLog
+ * @author 	Jens Elkner
+ * @version	$Revision$
+ */
+public class MessageTiming {
+	private static final Type[] CMDS = Type.values();
+
+	private final long[] cmdNanos = new long[CMDS.length];
+	private final int[] cmdCount = new int[CMDS.length];
+	private String[] filterNames = new String[0];
+	private long[] filterNanos = new long[0];
+	private int[] filterCount = new int[0];
+	private boolean active;
+	private String queueId;
+	private long bytes;
+
+	/**
+	 * Create a new, inactive timing without any filters.
+	 */
+	public MessageTiming() {
+		// nothing to do
+	}
+
+	/**
+	 * Set the filters to track. Stops tracking the current message.
+	 * @param names	the names of the filters, the index of a name is the
+	 * 		index to use for {@link #filter(int, long)}.
+	 */
+	public void setFilters(String[] names) {
+		filterNames = names.clone();
+		filterNanos = new long[names.length];
+		filterCount = new int[names.length];
+		active = false;
+	}
+
+	/**
+	 * Start tracking a new message.
+	 */
+	public void start() {
+		Arrays.fill(cmdNanos, 0);
+		Arrays.fill(cmdCount, 0);
+		Arrays.fill(filterNanos, 0);
+		Arrays.fill(filterCount, 0);
+		queueId = null;
+		bytes = 0;
+		active = true;
+	}
+
+	/**
+	 * Stop tracking the current message.
+	 */
+	public void stop() {
+		active = false;
+	}
+
+	/**
+	 * Check, whether a message is being tracked.
+	 * @return <code>true</code> if started and not yet stopped.
+	 */
+	public boolean isActive() {
+		return active;
+	}
+
+	/**
+	 * Account the handling of a command.
+	 * @param cmd	the command handled
+	 * @param size	data size of the command packet
+	 * @param nanos	time taken in nanoseconds, including all filter calls
+	 */
+	public void command(Type cmd, int size, long nanos) {
+		if (!active) {
+			return;
+		}
+		int i = cmd.ordinal();
+		cmdNanos[i] += nanos;
+		cmdCount[i]++;
+		bytes += size;
+	}
+
+	/**
+	 * Account the invocation of a filter.
+	 * @param idx	index of the filter, ignored if out of range
+	 * @param nanos	time taken in nanoseconds
+	 */
+	public void filter(int idx, long nanos) {
+		if (!active || idx < 0 || idx >= filterNanos.length) {
+			return;
+		}
+		filterNanos[idx] += nanos;
+		filterCount[idx]++;
+	}
+
+	/**
+	 * Get the queue id of the message.
+	 * @return <code>null</code> if not yet known.
+	 */
+	public String getQueueId() {
+		return queueId;
+	}
+
+	/**
+	 * Set the queue id of the message.
+	 * @param queueId	the value of the <code>i</code> macro
+	 */
+	public void setQueueId(String queueId) {
+		this.queueId = queueId;
+	}
+
+	/**
+	 * Get the data size of all command packets accounted so far.
+	 * @return the number of bytes.
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Append the per-command and per-filter timings in the format
+	 * <code>stages=</code><var>cmd</var><code>:</code><var>ms</var><code>/</code>
+	 * <var>count</var><code>,... filters=</code><var>name</var><code>:</code>
+	 * <var>ms</var><code>/</code><var>count</var><code>,...</code>.
+	 * Commands and filters, which have not been invoked, are omitted.
+	 * @param sb	where to append the timings
+	 */
+	public void appendTo(StringBuilder sb) {
+		sb.append("stages=");
+		boolean first = true;
+		for (int i=0; i < CMDS.length; i++) {
+			if (cmdCount[i] == 0) {
+				continue;
+			}
+			if (!first) {
+				sb.append(',');
+			}
+			first = false;
+			sb.append(CMDS[i].name()).append(':');
+			SlowMessageLog.appendMillis(sb, cmdNanos[i]);
+			sb.append("ms/").append(cmdCount[i]);
+		}
+		sb.append(" filters=");
+		first = true;
+		for (int i=0; i < filterNames.length; i++) {
+			if (filterCount[i] == 0) {
+				continue;
+			}
+			if (!first) {
+				sb.append(',');
+			}
+			first = false;
+			sb.append(filterNames[i]).append(':');
+			SlowMessageLog.appendMillis(sb, filterNanos[i]);
+			sb.append("ms/").append(filterCount[i]);
+		}
+	}
+}
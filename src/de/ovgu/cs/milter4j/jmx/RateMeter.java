@@ -0,0 +1,222 @@
+/**
+ * $Id$
+ *
+ * Copyright (c) 2005-2007 Jens Elkner.
+ * All Rights Reserved.
+ *
+ * This software is the proprietary information of Jens Elkner.
+ * Use is subject to license terms.
+ */
+package de.ovgu.cs.milter4j.jmx;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exponentially weighted moving average rates of a monotonically increasing
+ * counter over the last 1, 5 and 15 minutes, like the UNIX load average.
+ * <p>
+ * The meter does not get updated on each event, but reads the counter it
+ * is attached to, whenever {@link #tick()} gets called, which should be
+ * done every {@value #TICK_SECONDS} seconds by a single timer thread. So the
+ * hot path of the counter stays untouched.
+ * <p>
+ * Reading rates is thread-safe.
+ *
+ * @author 	Jens Elkner
+ * @version	$Revision$
+ */
+public class RateMeter {
+	private static final Logger log = LoggerFactory.getLogger(RateMeter.class);
+
+	/** the intervall in seconds, in which the counter gets read */
+	public static final int TICK_SECONDS = 5;
+	private static final double[] ALPHA = {
+		1 - Math.exp(-TICK_SECONDS / 60.0),
+		1 - Math.exp(-TICK_SECONDS / 60.0 / 5),
+		1 - Math.exp(-TICK_SECONDS / 60.0 / 15)
+	};
+
+	private static final String[] ROW_NAMES = new String[] {
+		"Name", "Count", "MeanRate", "OneMinuteRate", "FiveMinuteRate",
+		"FifteenMinuteRate"
+	};
+	private static final String[] ROW_DESC = new String[] {
+		"What has been counted",
+		"Current value of the counter",
+		"Events per second since the meter has been created",
+		"Events per second, exponentially weighted over the last minute",
+		"Events per second, exponentially weighted over the last 5 minutes",
+		"Events per second, exponentially weighted over the last 15 minutes"
+	};
+	private static final OpenType<?>[] ROW_TYPES = new OpenType<?>[] {
+		SimpleType.STRING, SimpleType.LONG, SimpleType.DOUBLE,
+		SimpleType.DOUBLE, SimpleType.DOUBLE, SimpleType.DOUBLE
+	};
+	private static CompositeType ROW_TYPE;
+	private static TabularType TABLE_TYPE;
+
+	static {
+		try {
+			ROW_TYPE = new CompositeType("Rate", "Moving average rates",
+				ROW_NAMES, ROW_DESC, ROW_TYPES);
+			TABLE_TYPE = new TabularType("Rates",
+				"Moving average rates by name", ROW_TYPE,
+				new String[] { ROW_NAMES[0] });
+		} catch (OpenDataException e) {
+			log.warn(e.getLocalizedMessage());
+			if (log.isDebugEnabled()) {
+				log.debug("static", e);
+			}
+		}
+	}
+
+	private final HistoryStore.Gauge counter;
+	private final long startTime;
+	private final long startCount;
+	private long lastCount;
+	// raw bits of the rates in events per second, NaN until first tick
+	private final AtomicLongArray rates = new AtomicLongArray(ALPHA.length);
+
+	/**
+	 * Create a meter for the given counter.
+	 * @param counter	the counter to watch. Should only increase - if it
+	 * 		decreases (e.g. on reset), its value gets taken as the number of
+	 * 		events in the current intervall.
+	 */
+	public RateMeter(HistoryStore.Gauge counter) {
+		this.counter = counter;
+		startTime = System.nanoTime();
+		startCount = lastCount = counter.getValue();
+		for (int i=ALPHA.length-1; i >= 0; i--) {
+			rates.set(i, Double.doubleToRawLongBits(Double.NaN));
+		}
+	}
+
+	/**
+	 * Read the counter and update the rates with the events counted since 
+	 * the last tick. Must be called every {@value #TICK_SECONDS} seconds by
+	 * the same thread.
+	 */
+	public void tick() {
+		long count = counter.getValue();
+		long delta = count - lastCount;
+		if (delta < 0) {
+			delta = count < 0 ? 0 : count;
+		}
+		lastCount = count;
+		double instant = (double) delta / TICK_SECONDS;
+		for (int i=0; i < ALPHA.length; i++) {
+			double r = Double.longBitsToDouble(rates.get(i));
+			r = Double.isNaN(r) ? instant : r + ALPHA[i] * (instant - r);
+			rates.set(i, Double.doubleToRawLongBits(r));
+		}
+	}
+
+	private double getRate(int idx) {
+		double r = Double.longBitsToDouble(rates.get(idx));
+		return Double.isNaN(r) ? 0 : r;
+	}
+
+	/**
+	 * Get the current value of the counter.
+	 * @return the counter value.
+	 */
+	public long getCount() {
+		return counter.getValue();
+	}
+
+	/**
+	 * Get the mean rate since this meter has been created.
+	 * @return events per second.
+	 */
+	public double getMeanRate() {
+		long elapsed = System.nanoTime() - startTime;
+		if (elapsed <= 0) {
+			return 0;
+		}
+		long n = counter.getValue() - startCount;
+		return n <= 0 ? 0 : n * 1000000000.0 / elapsed;
+	}
+
+	/**
+	 * Get the exponentially weighted moving average rate of the last minute.
+	 * @return events per second.
+	 */
+	public double getOneMinuteRate() {
+		return getRate(0);
+	}
+
+	/**
+	 * Get the exponentially weighted moving average rate of the last 5
+	 * minutes.
+	 * @return events per second.
+	 */
+	public double getFiveMinuteRate() {
+		return getRate(1);
+	}
+
+	/**
+	 * Get the exponentially weighted moving average rate of the last 15
+	 * minutes.
+	 * @return events per second.
+	 */
+	public double getFifteenMinuteRate() {
+		return getRate(2);
+	}
+
+	/**
+	 * Get the count and the rates of this meter as a row of a rate table.
+	 * @param name	the value for the <code>Name</code> column
+	 * @return <code>null</code> on error, the row otherwise.
+	 */
+	public CompositeData toCompositeData(String name) {
+		Object[] vals = new Object[] { name, Long.valueOf(getCount()),
+			Double.valueOf(getMeanRate()), Double.valueOf(getOneMinuteRate()),
+			Double.valueOf(getFiveMinuteRate()),
+			Double.valueOf(getFifteenMinuteRate())
+		};
+		try {
+			return new CompositeDataSupport(ROW_TYPE, ROW_NAMES, vals);
+		} catch (OpenDataException e) {
+			log.warn(e.getLocalizedMessage());
+			if (log.isDebugEnabled()) {
+				log.debug("toCompositeData", e);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Create a rate table for the given meters.
+	 * @param names	the names of the meters (table index)
+	 * @param meters	meters to report. <code>null</code> entries are
+	 * 		skipped.
+	 * @return a table with one row per meter.
+	 */
+	public static TabularData toTabularData(String[] names, RateMeter[] meters) {
+		TabularData data = new TabularDataSupport(TABLE_TYPE);
+		for (int i=0; i < meters.length; i++) {
+			if (meters[i] == null) {
+				continue;
+			}
+			CompositeData cd = meters[i].toCompositeData(names[i]);
+			if (cd != null) {
+				data.put(cd);
+			}
+		}
+		return data;
+	}
+}
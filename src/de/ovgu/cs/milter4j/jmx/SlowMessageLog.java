@@ -0,0 +1,261 @@
+/**
+ * $Id$
+ *
+ * Copyright (c) 2005-2007 Jens Elkner.
+ * All Rights Reserved.
+ *
+ * This software is the proprietary information of Jens Elkner.
+ * Use is subject to license terms.
+ */
+package de.ovgu.cs.milter4j.jmx;
+
+import java.util.Date;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records messages, whose end-to-end latency exceeds a threshold.
+ * <p>
+ * Each slow message gets logged as a single line of <var>key</var>=
+ * <var>value</var> pairs with level INFO to the logger
+ * {@value #LOGGER_NAME}, e.g.:
+ * <pre>
+ * qid=4A1B2C3D peer=/10.0.0.1:4711 bytes=52114 verdict=CONTINUE
+ * total=5123.456ms stages=MAIL:0.120ms/1,RCPT:0.300ms/2,...,BODYEOB:5100.000ms/1
+ * filters=SpamFilter:5090.112ms/9,VirusFilter:12.003ms/9
+ * </pre>
+ * Furthermore the last records are kept in a ring buffer for inspection
+ * via JMX.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @see MessageTiming
+ * @author 	Jens Elkner
+ * @version	$Revision$
+ */
+public class SlowMessageLog {
+	private static final Logger log = LoggerFactory
+		.getLogger(SlowMessageLog.class);
+
+	/** name of the logger, slow messages get logged to */
+	public static final String LOGGER_NAME = "de.ovgu.cs.milter4j.SlowMessages";
+	private static final Logger slow = LoggerFactory.getLogger(LOGGER_NAME);
+
+	private static final String[] ROW_NAMES = new String[] {
+		"Seq", "Time", "QueueId", "Peer", "Bytes", "Total", "Verdict",
+		"Details"
+	};
+	private static final String[] ROW_DESC = new String[] {
+		"Sequence number of the record",
+		"Time, when the message has been finished",
+		"The value of the queue id macro 'i'",
+		"The address of the MTA",
+		"Number of bytes received for the message",
+		"End-to-end latency in microseconds",
+		"The final decision sent to the MTA",
+		"Time spent per command and per filter"
+	};
+	private static final OpenType<?>[] ROW_TYPES = new OpenType<?>[] {
+		SimpleType.LONG, SimpleType.DATE, SimpleType.STRING, SimpleType.STRING,
+		SimpleType.LONG, SimpleType.LONG, SimpleType.STRING, SimpleType.STRING
+	};
+	private static CompositeType ROW_TYPE;
+	private static TabularType TABLE_TYPE;
+
+	static {
+		try {
+			ROW_TYPE = new CompositeType("SlowMessage",
+				"A message, which exceeded the latency threshold", ROW_NAMES,
+				ROW_DESC, ROW_TYPES);
+			TABLE_TYPE = new TabularType("SlowMessages",
+				"The last messages, which exceeded the latency threshold",
+				ROW_TYPE, new String[] { ROW_NAMES[0] });
+		} catch (OpenDataException e) {
+			log.warn(e.getLocalizedMessage());
+			if (log.isDebugEnabled()) {
+				log.debug("static", e);
+			}
+		}
+	}
+
+	private static class Record {
+		long seq;
+		long time;
+		String queueId;
+		String peer;
+		long bytes;
+		long total;
+		String verdict;
+		String details;
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private volatile long threshold;
+	private Record[] ring = new Record[0];
+	private int head;
+	private long seq;
+
+	/**
+	 * Create a new, disabled log.
+	 */
+	public SlowMessageLog() {
+		// nothing to do
+	}
+
+	/**
+	 * Configure this log. Records kept so far get dropped, if the number of
+	 * records changes.
+	 * @param thresholdMillis	min. end-to-end latency of a message in
+	 * 		milliseconds to get recorded. <code>0</code> disables recording.
+	 * @param records	number of records to keep for JMX
+	 */
+	public void configure(long thresholdMillis, int records) {
+		if (records < 0) {
+			records = 0;
+		}
+		lock.lock();
+		try {
+			if (records != ring.length) {
+				ring = new Record[records];
+				head = 0;
+			}
+		} finally {
+			lock.unlock();
+		}
+		threshold = thresholdMillis <= 0 ? 0 : thresholdMillis * 1000000L;
+	}
+
+	/**
+	 * Check, whether messages should be tracked at all.
+	 * @return <code>true</code> if a threshold is set.
+	 */
+	public boolean isEnabled() {
+		return threshold > 0;
+	}
+
+	/**
+	 * Record the given message, if its latency exceeds the threshold.
+	 * @param timing	timings of the message
+	 * @param nanos		end-to-end latency of the message in nanoseconds
+	 * @param peer		address of the MTA
+	 * @param verdict	the final decision sent to the MTA
+	 * @return <code>true</code> if the message has been recorded.
+	 */
+	public boolean check(MessageTiming timing, long nanos, String peer,
+		String verdict)
+	{
+		long t = threshold;
+		if (t == 0 || nanos < t) {
+			return false;
+		}
+		Record r = new Record();
+		r.time = System.currentTimeMillis();
+		r.queueId = timing.getQueueId();
+		r.peer = peer;
+		r.bytes = timing.getBytes();
+		r.total = nanos / 1000;
+		r.verdict = verdict;
+		StringBuilder sb = new StringBuilder(256);
+		timing.appendTo(sb);
+		r.details = sb.toString();
+		sb.setLength(0);
+		sb.append("qid=").append(r.queueId == null ? "-" : r.queueId)
+			.append(" peer=").append(peer == null ? "-" : peer)
+			.append(" bytes=").append(r.bytes)
+			.append(" verdict=").append(verdict)
+			.append(" total=");
+		appendMillis(sb, nanos);
+		sb.append("ms ").append(r.details);
+		slow.info(sb.toString());
+		lock.lock();
+		try {
+			r.seq = ++seq;
+			if (ring.length > 0) {
+				ring[head] = r;
+				head = (head + 1) % ring.length;
+			}
+		} finally {
+			lock.unlock();
+		}
+		return true;
+	}
+
+	/**
+	 * Drop all records kept so far.
+	 */
+	public void clear() {
+		lock.lock();
+		try {
+			for (int i=ring.length-1; i >= 0; i--) {
+				ring[i] = null;
+			}
+			head = 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the records kept so far.
+	 * @return a table with one row per record, indexed by its sequence
+	 * 		number.
+	 */
+	public TabularData getRecords() {
+		Record[] list;
+		lock.lock();
+		try {
+			list = ring.clone();
+		} finally {
+			lock.unlock();
+		}
+		TabularData data = new TabularDataSupport(TABLE_TYPE);
+		for (Record r : list) {
+			if (r == null) {
+				continue;
+			}
+			Object[] vals = new Object[] { Long.valueOf(r.seq),
+				new Date(r.time), r.queueId == null ? "" : r.queueId,
+				r.peer == null ? "" : r.peer, Long.valueOf(r.bytes),
+				Long.valueOf(r.total), r.verdict, r.details
+			};
+			try {
+				data.put(new CompositeDataSupport(ROW_TYPE, ROW_NAMES, vals));
+			} catch (OpenDataException e) {
+				log.warn(e.getLocalizedMessage());
+				if (log.isDebugEnabled()) {
+					log.debug("getRecords", e);
+				}
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Append the given duration as milliseconds with 3 decimal places.
+	 * @param sb	where to append the duration
+	 * @param nanos	the duration in nanoseconds
+	 */
+	static void appendMillis(StringBuilder sb, long nanos) {
+		long us = nanos < 0 ? 0 : nanos / 1000;
+		sb.append(us / 1000).append('.');
+		long frac = us % 1000;
+		if (frac < 100) {
+			sb.append('0');
+		}
+		if (frac < 10) {
+			sb.append('0');
+		}
+		sb.append(frac);
+	}
+}
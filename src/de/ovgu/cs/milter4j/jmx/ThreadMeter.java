@@ -0,0 +1,102 @@
+/**
+ * $Id$
+ *
+ * Copyright (c) 2005-2007 Jens Elkner.
+ * All Rights Reserved.
+ *
+ * This software is the proprietary information of Jens Elkner.
+ * Use is subject to license terms.
+ */
+package de.ovgu.cs.milter4j.jmx;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Access to the CPU time and the number of bytes allocated by the current
+ * thread.
+ * <p>
+ * The allocation counter is a HotSpot extension
+ * ({@code com.sun.management.ThreadMXBean}). If the JVM does not support a
+ * counter or it is disabled, the corresponding method returns <code>-1</code>.
+ *
+ * @author 	Jens Elkner
+ * @version	$Revision$
+ */
+public class ThreadMeter {
+	private static final Logger log = LoggerFactory.getLogger(ThreadMeter.class);
+
+	private static final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+	private static final boolean cpuSupported;
+	private static final com.sun.management.ThreadMXBean allocBean;
+
+	static {
+		boolean cpu = false;
+		try {
+			cpu = bean.isCurrentThreadCpuTimeSupported();
+			if (cpu && !bean.isThreadCpuTimeEnabled()) {
+				bean.setThreadCpuTimeEnabled(true);
+			}
+		} catch (Exception e) {
+			cpu = false;
+			log.debug("static", e);
+		}
+		cpuSupported = cpu;
+		com.sun.management.ThreadMXBean ab = null;
+		try {
+			if (bean instanceof com.sun.management.ThreadMXBean) {
+				ab = (com.sun.management.ThreadMXBean) bean;
+				if (!ab.isThreadAllocatedMemorySupported()) {
+					ab = null;
+				} else if (!ab.isThreadAllocatedMemoryEnabled()) {
+					ab.setThreadAllocatedMemoryEnabled(true);
+				}
+			}
+		} catch (Throwable e) {
+			// e.g. NoClassDefFoundError on non-HotSpot VMs
+			ab = null;
+			log.debug("static", e);
+		}
+		allocBean = ab;
+		if (!cpuSupported || allocBean == null) {
+			log.info("CPU time " + (cpuSupported ? "" : "not ")
+				+ "supported, allocated bytes "
+				+ (allocBean != null ? "" : "not ") + "supported");
+		}
+	}
+
+	private ThreadMeter() {
+		// static methods only
+	}
+
+	/**
+	 * Check, whether any of the counters is available.
+	 * @return <code>false</code> if neither CPU time nor allocated bytes
+	 * 		can be measured.
+	 */
+	public static boolean isSupported() {
+		return cpuSupported || allocBean != null;
+	}
+
+	/**
+	 * Get the CPU time of the current thread.
+	 * @return <code>-1</code> if not supported, the CPU time in nanoseconds
+	 * 		otherwise.
+	 */
+	public static long getCpuTime() {
+		return cpuSupported ? bean.getCurrentThreadCpuTime() : -1;
+	}
+
+	/**
+	 * Get the number of bytes allocated by the current thread.
+	 * @return <code>-1</code> if not supported, the number of bytes otherwise.
+	 */
+	public static long getAllocatedBytes() {
+		return allocBean == null
+			? -1
+			: allocBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
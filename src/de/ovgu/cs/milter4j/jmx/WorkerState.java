@@ -0,0 +1,194 @@
+/**
+ * $Id$
+ *
+ * Copyright (c) 2005-2007 Jens Elkner.
+ * All Rights Reserved.
+ *
+ * This software is the proprietary information of Jens Elkner.
+ * Use is subject to license terms.
+ */
+package de.ovgu.cs.milter4j.jmx;
+
+import java.util.Comparator;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A snapshot of what a worker is currently doing.
+ * <p>
+ * The values are read one by one from the live worker, so a snapshot is
+ * not necessarily consistent, e.g. the command may have finished right after
+ * it has been read.
+ *
+ * @author 	Jens Elkner
+ * @version	$Revision$
+ */
+public class WorkerState {
+	private static final Logger log = LoggerFactory
+		.getLogger(WorkerState.class);
+
+	/** the worker has no MTA connection */
+	public static final String IDLE = "idle";
+	/** the worker waits for the next command of the MTA */
+	public static final String READING = "reading";
+	/** the worker handles a command, but no filter is running */
+	public static final String COMMAND = "command";
+	/** a filter handles the current command */
+	public static final String FILTER = "filter";
+
+	private static final String[] ROW_NAMES = new String[] {
+		"Name", "State", "Peer", "Command", "Filter", "StateTime",
+		"SessionAge", "Messages", "BytesReceived"
+	};
+	private static final String[] ROW_DESC = new String[] {
+		"The name of the worker",
+		"One of " + IDLE + ", " + READING + ", " + COMMAND + " or " + FILTER,
+		"The address of the MTA connected",
+		"The command currently handled",
+		"The filter currently running",
+		"Time spent in the current state in milliseconds",
+		"Time since the MTA connected in milliseconds",
+		"Number of messages (MAIL FROM commands) received on this connection",
+		"Number of bytes received on this connection"
+	};
+	private static final OpenType<?>[] ROW_TYPES = new OpenType<?>[] {
+		SimpleType.STRING, SimpleType.STRING, SimpleType.STRING,
+		SimpleType.STRING, SimpleType.STRING, SimpleType.LONG,
+		SimpleType.LONG, SimpleType.INTEGER, SimpleType.LONG
+	};
+	private static CompositeType ROW_TYPE;
+	private static TabularType TABLE_TYPE;
+
+	static {
+		try {
+			ROW_TYPE = new CompositeType("WorkerState",
+				"What a worker is currently doing", ROW_NAMES, ROW_DESC,
+				ROW_TYPES);
+			TABLE_TYPE = new TabularType("WorkerStates",
+				"What the workers are currently doing", ROW_TYPE,
+				new String[] { ROW_NAMES[0] });
+		} catch (OpenDataException e) {
+			log.warn(e.getLocalizedMessage());
+			if (log.isDebugEnabled()) {
+				log.debug("static", e);
+			}
+		}
+	}
+
+	/** orders states by session age, oldest first, idle workers last */
+	public static final Comparator<WorkerState> BY_AGE =
+		new Comparator<WorkerState>() {
+			@Override
+			public int compare(WorkerState o1, WorkerState o2) {
+				if (o1.isBusy() != o2.isBusy()) {
+					return o1.isBusy() ? -1 : 1;
+				}
+				return Long.compare(o2.sessionAge, o1.sessionAge);
+			}
+		};
+
+	private String name;
+	private String state;
+	private String peer;
+	private String command;
+	private String filter;
+	private long stateTime;
+	private long sessionAge;
+	private int messages;
+	private long bytes;
+
+	/**
+	 * Create a new snapshot.
+	 * @param name		name of the worker
+	 * @param state		{@link #IDLE}, {@link #READING}, {@link #COMMAND} or
+	 * 		{@link #FILTER}
+	 * @param peer		address of the MTA, <code>null</code> if idle
+	 * @param command	command currently handled, might be <code>null</code>
+	 * @param filter	filter currently running, might be <code>null</code>
+	 * @param stateTime	time spent in the current state in milliseconds
+	 * @param sessionAge	time since the MTA connected in milliseconds,
+	 * 		<code>0</code> if idle
+	 * @param messages	number of messages received on this connection
+	 * @param bytes		number of bytes received on this connection
+	 */
+	public WorkerState(String name, String state, String peer, String command,
+		String filter, long stateTime, long sessionAge, int messages,
+		long bytes)
+	{
+		this.name = name;
+		this.state = state;
+		this.peer = peer;
+		this.command = command;
+		this.filter = filter;
+		this.stateTime = stateTime;
+		this.sessionAge = sessionAge;
+		this.messages = messages;
+		this.bytes = bytes;
+	}
+
+	/**
+	 * Check, whether the worker has an MTA connection.
+	 * @return <code>true</code> if not idle.
+	 */
+	public boolean isBusy() {
+		return state != IDLE;
+	}
+
+	/**
+	 * Get the time since the MTA connected.
+	 * @return <code>0</code> if idle, the age in milliseconds otherwise.
+	 */
+	public long getSessionAge() {
+		return sessionAge;
+	}
+
+	/**
+	 * Convert this snapshot into a row of the worker state table.
+	 * @return <code>null</code> on error, the row otherwise.
+	 */
+	public CompositeData toCompositeData() {
+		Object[] vals = new Object[] { name, state,
+			peer == null ? "" : peer,
+			command == null ? "" : command,
+			filter == null ? "" : filter,
+			Long.valueOf(stateTime), Long.valueOf(sessionAge),
+			Integer.valueOf(messages), Long.valueOf(bytes)
+		};
+		try {
+			return new CompositeDataSupport(ROW_TYPE, ROW_NAMES, vals);
+		} catch (OpenDataException e) {
+			log.warn(e.getLocalizedMessage());
+			if (log.isDebugEnabled()) {
+				log.debug("toCompositeData", e);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Create a worker state table.
+	 * @param states	the snapshots to add
+	 * @return a table with one row per snapshot, indexed by worker name.
+	 */
+	public static TabularData toTabularData(WorkerState[] states) {
+		TabularData data = new TabularDataSupport(TABLE_TYPE);
+		for (WorkerState s : states) {
+			CompositeData cd = s.toCompositeData();
+			if (cd != null) {
+				data.put(cd);
+			}
+		}
+		return data;
+	}
+}
@@ -20,7 +20,8 @@ import de.ovgu.cs.milter4j.Modification;
  * created by earlier ones.
  * <p>
  * Since the message body may be very large, setting {@link Modification#CHGBODY}
- * may significantly affect filter performance.
+ * may significantly affect filter performance. To avoid holding the whole new
+ * body in memory, use a {@link ReplaceBodyStreamPacket} instead.
  * <p>
  * Requires {@link Modification#CHGBODY} negotiation.
  * 
@@ -0,0 +1,294 @@
+/**
+ * $Id$
+ *
+ * Copyright (c) 2005-2007 Jens Elkner.
+ * All Rights Reserved.
+ *
+ * This software is the proprietary information of Jens Elkner.
+ * Use is subject to license terms.
+ */
+package de.ovgu.cs.milter4j.reply;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import de.ovgu.cs.milter4j.Modification;
+
+/**
+ * Replaces the body of the current message with the content read from a
+ * stream, channel or file region.
+ * <p>
+ * In contrast to {@link ReplaceBodyPacket} the new body never needs to be
+ * held in memory: when sent, this packet emits as many
+ * {@link Type#REPLBODY} packets as necessary, each carrying at most
+ * {@link #MAX_CHUNK_SIZE} bytes, read from the source right before it gets
+ * written to the MTA. If the source is a region of a {@link FileChannel},
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)} gets used,
+ * so that the content may go directly from the file system cache to the
+ * socket.
+ * <p>
+ * Since the content gets consumed while sending, such a packet can be sent
+ * once, only. The source gets closed, when all data have been sent or
+ * {@link #close()} gets called (the managing worker does this for packets,
+ * which got queued but not sent, e.g. because the message was rejected).
+ * Because the MTA requires the complete packet, the channel passed to
+ * {@link #send(WritableByteChannel)} should be in blocking mode.
+ * <p>
+ * Filter order is important. Later filters will see the new body contents
+ * created by earlier ones.
+ * <p>
+ * Requires {@link Modification#CHGBODY} negotiation.
+ *
+ * @author 	Jens Elkner
+ * @version	$Revision$
+ * @see ReplaceBodyPacket
+ */
+public class ReplaceBodyStreamPacket
+	extends Packet
+	implements Closeable
+{
+	/** max. number of body bytes per packet sent to the MTA (the chunk size
+	 * used by libmilter as well) */
+	public static final int MAX_CHUNK_SIZE = 65535;
+	// max. number of transfers in a row, which may move no data at all
+	private static final int MAX_STALLS = 16;
+
+	private ReadableByteChannel src;
+	private FileChannel file;
+	private long start;
+	private long pos;
+	private long end;
+	private int chunkSize;
+	private ByteBuffer buf;
+	private boolean done;
+
+	/**
+	 * Create a packet, which sends all data available from the given stream.
+	 * @param in	where to read the new mail-safe body content from.
+	 */
+	public ReplaceBodyStreamPacket(InputStream in) {
+		this(Channels.newChannel(in));
+	}
+
+	/**
+	 * Create a packet, which sends all data available from the given channel.
+	 * @param in	where to read the new mail-safe body content from.
+	 */
+	public ReplaceBodyStreamPacket(ReadableByteChannel in) {
+		this(in, MAX_CHUNK_SIZE);
+	}
+
+	/**
+	 * Create a packet, which sends all data available from the given channel.
+	 * @param in	where to read the new mail-safe body content from.
+	 * @param chunkSize	max. number of bytes to send per {@link Type#REPLBODY}
+	 * 		packet. Values out of the range [1..{@value #MAX_CHUNK_SIZE}] are
+	 * 		replaced by {@value #MAX_CHUNK_SIZE}.
+	 */
+	public ReplaceBodyStreamPacket(ReadableByteChannel in, int chunkSize) {
+		super(Type.REPLBODY);
+		if (in == null) {
+			throw new IllegalArgumentException("null channel not allowed");
+		}
+		this.src = in;
+		setChunkSize(chunkSize);
+	}
+
+	/**
+	 * Create a packet, which sends the given region of a file.
+	 * @param in	where to read the new mail-safe body content from.
+	 * @param position	the file position of the first byte to send
+	 * @param count		the number of bytes to send
+	 * @throws IOException if the size of the file could not be determined
+	 */
+	public ReplaceBodyStreamPacket(FileChannel in, long position, long count)
+		throws IOException
+	{
+		super(Type.REPLBODY);
+		if (in == null) {
+			throw new IllegalArgumentException("null channel not allowed");
+		}
+		if (position < 0 || count < 0) {
+			throw new IllegalArgumentException("negative file region");
+		}
+		this.file = in;
+		this.start = position;
+		this.pos = position;
+		long size = in.size();
+		this.end = count > size - position ? size : position + count;
+		setChunkSize(MAX_CHUNK_SIZE);
+	}
+
+	private void setChunkSize(int size) {
+		chunkSize = size < 1 || size > MAX_CHUNK_SIZE ? MAX_CHUNK_SIZE : size;
+	}
+
+	/**
+	 * Read all remaining data of the source into memory. This defeats the
+	 * purpose of this packet and thus should be used for debugging, only.
+	 * @return {@inheritDoc}
+	 */
+	@Override
+	public byte[] getData() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(chunkSize);
+		ByteBuffer tmp = ByteBuffer.allocate(chunkSize);
+		if (file != null) {
+			long p = pos;
+			while (p < end) {
+				tmp.clear();
+				if (end - p < tmp.capacity()) {
+					tmp.limit((int) (end - p));
+				}
+				int count = file.read(tmp, p);
+				if (count < 0) {
+					break;
+				}
+				p += count;
+				bos.write(tmp.array(), 0, count);
+			}
+		} else if (src != null && src.isOpen()) {
+			int count;
+			while ((count = src.read(tmp)) != -1) {
+				bos.write(tmp.array(), 0, count);
+				tmp.clear();
+			}
+			done = true;
+		}
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Does nothing, since the data of this packet can be sent once, only.
+	 */
+	@Override
+	public void reset() {
+		// nothing to do
+	}
+
+	/**
+	 * Send all remaining body data as a sequence of {@link Type#REPLBODY}
+	 * packets and close the source afterwards. If there is no data at all,
+	 * a single empty packet gets sent (like an empty 
+	 * {@link ReplaceBodyPacket}), so that the MTA replaces the body with 
+	 * nothing instead of keeping it.
+	 *
+	 * @param ch	channel to use for sending. Should be a blocking channel.
+	 * @return always <code>true</code>
+	 * @throws IOException {@inheritDoc}
+	 */
+	@Override
+	public boolean send(WritableByteChannel ch) throws IOException {
+		if (done) {
+			return true;
+		}
+		try {
+			if (file != null) {
+				sendRegion(ch);
+			} else {
+				sendStream(ch);
+			}
+		} finally {
+			done = true;
+			close();
+		}
+		return true;
+	}
+
+	private void sendRegion(WritableByteChannel ch) throws IOException {
+		if (buf == null) {
+			buf = ByteBuffer.allocate(4 + 1);
+		}
+		boolean sent = false;
+		while (pos < end || !sent) {
+			int len = (int) (end - pos < chunkSize ? end - pos : chunkSize);
+			buf.clear();
+			buf.putInt(1 + len).put(getType().getCode()).flip();
+			write(ch, buf);
+			sent = true;
+			long stop = pos + len;
+			int stalls = 0;
+			while (pos < stop) {
+				long count = file.transferTo(pos, stop - pos, ch);
+				if (count <= 0) {
+					if (pos >= file.size()) {
+						throw new IOException(
+							"file truncated while sending body");
+					}
+					if (++stalls > MAX_STALLS) {
+						throw new IOException("unable to transfer body data");
+					}
+					continue;
+				}
+				stalls = 0;
+				pos += count;
+			}
+		}
+	}
+
+	private void sendStream(WritableByteChannel ch) throws IOException {
+		if (buf == null) {
+			buf = ByteBuffer.allocate(4 + 1 + chunkSize);
+		}
+		boolean eof = false;
+		boolean sent = false;
+		while (!eof) {
+			buf.clear();
+			buf.position(4 + 1);
+			while (buf.hasRemaining()) {
+				if (src.read(buf) == -1) {
+					eof = true;
+					break;
+				}
+			}
+			int len = buf.position() - (4 + 1);
+			if (len == 0 && sent) {
+				break;
+			}
+			buf.flip();
+			buf.putInt(0, 1 + len).put(4, getType().getCode());
+			write(ch, buf);
+			sent = true;
+		}
+	}
+
+	private static void write(WritableByteChannel ch, ByteBuffer b)
+		throws IOException
+	{
+		while (b.hasRemaining()) {
+			ch.write(b);
+		}
+	}
+
+	/**
+	 * Close the underlying source.
+	 */
+	@Override
+	public void close() {
+		try {
+			if (file != null) {
+				file.close();
+			} else {
+				src.close();
+			}
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return file == null
+			? super.toString() + " (stream)"
+			: super.toString() + " (" + (end - start) + " bytes)";
+	}
+}
@@ -19,6 +19,9 @@ import de.ovgu.cs.milter4j.util.Misc;
  * Directly set the SMTP error reply code. Only 4XX and 5XX replies are accepted.
  * This code will be used on subsequent error replies resulting from actions 
  * taken by this filter.
+ * <p>
+ * If the same reply gets sent over and over again, consider to use a
+ * {@link ReplyTemplate}, which validates and encodes the reply only once.
  * 
  * @author 	Jens Elkner
  * @version	$Revision$
@@ -34,11 +37,12 @@ public class ReplyPacket
 	private int reply;
 	private String xcode;
 	private String[] messages;
+	private byte[] data;
 
 	// From RFC 2034 Section 4 status-code ::= class "." subject "." detail
 	// class ::= "2" / "4" / "5" subject ::= 1*3digit detail ::= 1*3digit
 	// and class must match reply
-	private static String checkXcode(String code, int reply) {
+	static String checkXcode(String code, int reply) {
 		String tmp[] = code.split("\\.");
 		int res[] = new int[3];
 		try {
@@ -82,25 +86,48 @@ public class ReplyPacket
 					+ "' - see RFC 2034, Section 4");
 			}
 		}
-		if (messages != null) {
-			ArrayList<String> l = new ArrayList<String>(32);
-			for (int i=0; i < messages.length && i < MAX_MSGS; i++) {
-				String tmp = messages[i];
-				if (tmp != null) {
-					tmp = tmp.trim();
-					if (tmp.length() > 0) {
-						if (tmp.length() < MAX_LEN) {
-							l.add(tmp);
-						} else {
-							l.add(tmp.substring(0, MAX_LEN));
-						}
+		this.messages = normalize(messages);
+	}
+
+	/**
+	 * Create a packet with data already encoded by the given template.
+	 * @param t		the template, which produced the data
+	 * @param data	the encoded data section of the packet
+	 */
+	ReplyPacket(ReplyTemplate t, byte[] data) {
+		super(Type.REPLYCODE);
+		this.reply = t.getReply();
+		this.xcode = t.getXcode();
+		this.messages = t.getMessages();
+		this.data = data;
+	}
+
+	/**
+	 * Trim the given messages and drop empty ones, honoring {@link #MAX_MSGS} 
+	 * and {@link #MAX_LEN}.
+	 * @param messages	messages to normalize. Might be <code>null</code>.
+	 * @return <code>null</code> if no message is left, the normalized 
+	 * 		messages otherwise.
+	 */
+	static String[] normalize(String... messages) {
+		if (messages == null) {
+			return null;
+		}
+		ArrayList<String> l = new ArrayList<String>(32);
+		for (int i=0; i < messages.length && i < MAX_MSGS; i++) {
+			String tmp = messages[i];
+			if (tmp != null) {
+				tmp = tmp.trim();
+				if (tmp.length() > 0) {
+					if (tmp.length() < MAX_LEN) {
+						l.add(tmp);
+					} else {
+						l.add(tmp.substring(0, MAX_LEN));
 					}
 				}
 			}
-			if (l.size() > 0) {
-				this.messages = l.toArray(new String[l.size()]);
-			}
 		}
+		return l.size() > 0 ? l.toArray(new String[l.size()]) : null;
 	}
 
 	/**
@@ -108,6 +135,9 @@ public class ReplyPacket
 	 */
 	@Override
 	public byte[] getData() throws IOException {
+		if (data != null) {
+			return data;
+		}
 		ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
 		byte[] replyCode = Integer.toString(reply, 10).getBytes();
 		byte[] xCode = xcode == null ? Misc.ZERO_DATA : Misc.getBytes(xcode);
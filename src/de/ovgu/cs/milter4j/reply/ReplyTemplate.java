@@ -0,0 +1,267 @@
+/**
+ * $Id$
+ *
+ * Copyright (c) 2005-2007 Jens Elkner.
+ * All Rights Reserved.
+ *
+ * This software is the proprietary information of Jens Elkner.
+ * Use is subject to license terms.
+ */
+package de.ovgu.cs.milter4j.reply;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Map;
+
+import de.ovgu.cs.milter4j.util.Misc;
+
+/**
+ * A precompiled SMTP reply, which produces {@link ReplyPacket}s.
+ * <p>
+ * The reply code, the extended reply code and all message lines get validated
+ * and encoded once, when the template gets created. So filters, which send the
+ * same reply again and again (e.g. RBL-style rejects), should create the
+ * template once (e.g. in their {@link de.ovgu.cs.milter4j.MailFilter#reconfigure(String)}
+ * method) and just call {@link #getPacket(Map)} whenever the reply needs to be
+ * sent.
+ * <p>
+ * A message line may contain placeholders of the form <code>${name}</code>.
+ * When a packet gets created, the placeholder gets replaced by the value of
+ * the key <var>name</var> of the given map, or if there is no such key, by the
+ * value of the key <code>{</code><var>name</var><code>}</code>. So e.g.
+ * <code>${client_addr}</code> gets replaced by the value of the sendmail macro
+ * <code>{client_addr}</code> and <code>${i}</code> by the value of the macro
+ * <code>i</code>, if the filter simply passes its <code>allMacros</code>.
+ * Unknown placeholders are replaced by an empty string. Substituted values
+ * are made mail-safe by replacing none-printable characters and '%' with '_',
+ * and get truncated, if the line would exceed {@link ReplyPacket#MAX_LEN}.
+ * <p>
+ * Instances are immutable and thus may be shared by several threads.
+ *
+ * @author 	Jens Elkner
+ * @version	$Revision$
+ */
+public class ReplyTemplate {
+	private static final String START = "${";
+
+	private int reply;
+	private String xcode;
+	private String[] messages;
+	// encoded data, if the template has no placeholders
+	private byte[] data;
+	// otherwise: literals[0] key[0] literals[1] ... key[n-1] literals[n]
+	private byte[][] literals;
+	private String[] keys;
+	private String[] altKeys;
+	private int[] limits;
+	private int size;
+
+	/**
+	 * Create a new template.
+	 *
+	 * @param reply 	The three-digit (RFC 821/2821) SMTP reply code. Must be
+	 * 		a valid 4XX or 5XX reply code.
+	 * @param xcode 	The extended (RFC 1893/2034) reply code. If
+	 * 		<code>null</code>, no extended code is used. Otherwise, xcode must
+	 * 		conform to RFC 1893/2034.
+	 * @param messages 	single mail-safe lines of text incl. optional
+	 * 		placeholders. Same restrictions as for
+	 * 		{@link ReplyPacket#ReplyPacket(int, String, String...)} apply.
+	 * @throws IllegalArgumentException if <var>reply</var> or <var>xcode</var>
+	 * 		are invalid.
+	 */
+	public ReplyTemplate(int reply, String xcode, String... messages) {
+		if (reply < 400 || reply > 599) {
+			throw new IllegalArgumentException("reply code '" + reply
+				+ "' out of range");
+		}
+		this.reply = reply;
+		if (xcode != null) {
+			this.xcode = ReplyPacket.checkXcode(xcode, reply);
+			if (this.xcode == null) {
+				throw new IllegalArgumentException("invalid xcode '" + xcode
+					+ "' - see RFC 2034, Section 4");
+			}
+		}
+		this.messages = ReplyPacket.normalize(messages);
+		compile();
+	}
+
+	private void compile() {
+		byte[] replyCode = Integer.toString(reply, 10).getBytes();
+		byte[] xCode = xcode == null ? Misc.ZERO_DATA : Misc.getBytes(xcode);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
+		ArrayList<byte[]> lits = new ArrayList<byte[]>();
+		ArrayList<String> k = new ArrayList<String>();
+		ArrayList<Integer> l = new ArrayList<Integer>();
+		if (messages == null) {
+			bos.write(replyCode, 0, replyCode.length);
+			bos.write(' ');
+			bos.write(xCode, 0, xCode.length);
+		} else {
+			for (int i=0; i < messages.length; i++) {
+				bos.write(replyCode, 0, replyCode.length);
+				bos.write(i == messages.length-1 ? ' ' : '-');
+				bos.write(xCode, 0, xCode.length);
+				String msg = messages[i];
+				// first pass: count placeholders and literal length
+				int count = 0;
+				int literal = 0;
+				int pos = 0;
+				int start;
+				while ((start = msg.indexOf(START, pos)) != -1) {
+					int end = msg.indexOf('}', start + START.length());
+					if (end == -1) {
+						break;
+					}
+					literal += start - pos;
+					count++;
+					pos = end + 1;
+				}
+				literal += msg.length() - pos;
+				int limit = count == 0 ? 0 : (ReplyPacket.MAX_LEN - literal) / count;
+				// second pass: split
+				pos = 0;
+				while ((start = msg.indexOf(START, pos)) != -1) {
+					int end = msg.indexOf('}', start + START.length());
+					if (end == -1) {
+						break;
+					}
+					byte[] b = Misc.getBytes(msg.substring(pos, start));
+					bos.write(b, 0, b.length);
+					lits.add(bos.toByteArray());
+					bos.reset();
+					k.add(msg.substring(start + START.length(), end));
+					l.add(Integer.valueOf(limit < 0 ? 0 : limit));
+					pos = end + 1;
+				}
+				byte[] b = Misc.getBytes(msg.substring(pos));
+				bos.write(b, 0, b.length);
+				if (i < messages.length-1) {
+					bos.write('\r');
+					bos.write('\n');
+				}
+			}
+		}
+		bos.write(0);
+		if (k.isEmpty()) {
+			data = bos.toByteArray();
+			return;
+		}
+		lits.add(bos.toByteArray());
+		literals = lits.toArray(new byte[lits.size()][]);
+		keys = k.toArray(new String[k.size()]);
+		altKeys = new String[keys.length];
+		limits = new int[keys.length];
+		for (int i=0; i < keys.length; i++) {
+			altKeys[i] = '{' + keys[i] + '}';
+			limits[i] = l.get(i).intValue();
+		}
+		for (int i=0; i < literals.length; i++) {
+			size += literals[i].length;
+		}
+	}
+
+	/**
+	 * Get the SMTP reply code of this template.
+	 * @return a 4XX or 5XX code.
+	 */
+	public int getReply() {
+		return reply;
+	}
+
+	/**
+	 * Get the normalized extended reply code of this template.
+	 * @return <code>null</code> if not set.
+	 */
+	String getXcode() {
+		return xcode;
+	}
+
+	/**
+	 * Get the normalized message lines (placeholders not substituted).
+	 * @return <code>null</code> if there are no message lines.
+	 */
+	String[] getMessages() {
+		return messages;
+	}
+
+	/**
+	 * Check, whether this template contains any placeholders.
+	 * @return <code>true</code> if the message lines contain placeholders.
+	 */
+	public boolean hasPlaceholders() {
+		return keys != null;
+	}
+
+	/**
+	 * Convinience method for {@link #getPacket(Map)} with <code>null</code>
+	 * values.
+	 * @return a new packet.
+	 */
+	public ReplyPacket getPacket() {
+		return getPacket(null);
+	}
+
+	/**
+	 * Create a new reply packet. If this template has no placeholders, the
+	 * data section of the returned packet is shared with all other packets
+	 * created by this template.
+	 *
+	 * @param values	values for the placeholders in the message lines.
+	 * 		Might be <code>null</code>.
+	 * @return a new packet ready to send.
+	 */
+	public ReplyPacket getPacket(Map<String,String> values) {
+		if (keys == null) {
+			return new ReplyPacket(this, data);
+		}
+		byte[][] vals = new byte[keys.length][];
+		int len = size;
+		for (int i=0; i < keys.length; i++) {
+			String s = null;
+			if (values != null) {
+				s = values.get(keys[i]);
+				if (s == null) {
+					s = values.get(altKeys[i]);
+				}
+			}
+			vals[i] = encode(s, limits[i]);
+			len += vals[i].length;
+		}
+		byte[] res = new byte[len];
+		int pos = 0;
+		for (int i=0; i < keys.length; i++) {
+			System.arraycopy(literals[i], 0, res, pos, literals[i].length);
+			pos += literals[i].length;
+			System.arraycopy(vals[i], 0, res, pos, vals[i].length);
+			pos += vals[i].length;
+		}
+		System.arraycopy(literals[keys.length], 0, res, pos,
+			literals[keys.length].length);
+		return new ReplyPacket(this, res);
+	}
+
+	private static byte[] encode(String s, int limit) {
+		if (s == null || s.length() == 0 || limit == 0) {
+			return Misc.ZERO_DATA;
+		}
+		int len = s.length() < limit ? s.length() : limit;
+		byte[] res = new byte[len];
+		for (int i=len-1; i >= 0; i--) {
+			char c = s.charAt(i);
+			res[i] = c < 0x20 || c > 0x7e || c == '%' ? (byte) '_' : (byte) c;
+		}
+		return res;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + " '" + reply + " "
+			+ (xcode == null ? "" : xcode)
+			+ (messages == null ? "" : messages[0]) + "'";
+	}
+}
@@ -0,0 +1,240 @@
+/**
+ * $Id$
+ *
+ * Copyright (c) 2005-2007 Jens Elkner.
+ * All Rights Reserved.
+ *
+ * This software is the proprietary information of Jens Elkner.
+ * Use is subject to license terms.
+ */
+package de.ovgu.cs.milter4j.util;
+
+/**
+ * Turns the body chunks received from the MTA into line-aligned slices,
+ * i.e. slices, which always end with a line feed (except the last one of a
+ * message and the ones of lines longer than {@link #getMaxLineLength()}).
+ * <p>
+ * If possible, the slices refer directly to the chunks fed in (zero copy).
+ * Only the incomplete line at the end of a chunk gets copied into an internal
+ * carry buffer, which is reused for all messages. If a coalesce size is set,
+ * small chunks get collected in the carry buffer until at least that many
+ * bytes are available.
+ * <p>
+ * Usage: call {@link #feed(byte[], int, int)} for each chunk and
+ * {@link #flush()} at the end of the message, and fetch the slices produced
+ * via {@link #getData(int)}, {@link #getOffset(int)} and
+ * {@link #getLength(int)}. Slices are valid until the next call of
+ * <code>feed</code>, <code>flush</code> or {@link #reset()}.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author 	Jens Elkner
+ * @version	$Revision$
+ */
+public class BodyAligner {
+	/** lines longer than this get split, if no coalesce size is set */
+	public static final int DEFAULT_MAX_LINE_LENGTH = 64 * 1024;
+
+	private int coalesceSize;
+	private int maxLine;
+	private byte[] buf;
+	private int bufLen;
+	// number of bytes of buf already delivered
+	private int consumed;
+	private byte[][] data = new byte[2][];
+	private int[] offsets = new int[2];
+	private int[] lengths = new int[2];
+
+	/**
+	 * Create a new aligner.
+	 * @param coalesceSize	min. number of bytes to collect before a slice
+	 * 		gets produced. If &lt;= 0, the data are just line-aligned.
+	 */
+	public BodyAligner(int coalesceSize) {
+		this.coalesceSize = coalesceSize < 0 ? 0 : coalesceSize;
+		maxLine = Math.max(this.coalesceSize, DEFAULT_MAX_LINE_LENGTH);
+		buf = new byte[Math.min(this.coalesceSize + 1024, maxLine)];
+	}
+
+	/**
+	 * Get the coalesce size of this aligner.
+	 * @return <code>0</code> if slices are just line aligned.
+	 */
+	public int getCoalesceSize() {
+		return coalesceSize;
+	}
+
+	/**
+	 * Get the max. length of a line, which gets delivered as a single slice.
+	 * Longer lines get delivered in pieces.
+	 * @return a value &gt; 0.
+	 */
+	public int getMaxLineLength() {
+		return maxLine;
+	}
+
+	/**
+	 * Feed the next body chunk.
+	 * @param b		buffer containing the chunk
+	 * @param off	offset of the first byte of the chunk
+	 * @param len	length of the chunk
+	 * @return the number of slices ready to be delivered (0..2).
+	 */
+	public int feed(byte[] b, int off, int len) {
+		compact();
+		int n = 0;
+		int end = off + len;
+		if (bufLen == 0 && len >= coalesceSize) {
+			int last = lastIndexOfLF(b, off, end);
+			if (last == -1) {
+				if (len >= maxLine) {
+					return slice(0, b, off, len);
+				}
+				append(b, off, len);
+				return 0;
+			}
+			n = slice(0, b, off, last + 1 - off);
+			append(b, last + 1, end - last - 1);
+			return n;
+		}
+		if (coalesceSize == 0) {
+			int first = indexOfLF(b, off, end);
+			if (first == -1) {
+				append(b, off, len);
+				if (bufLen >= maxLine) {
+					consumed = bufLen;
+					return slice(0, buf, 0, bufLen);
+				}
+				return 0;
+			}
+			append(b, off, first + 1 - off);
+			n = slice(0, buf, 0, bufLen);
+			consumed = bufLen;
+			int last = lastIndexOfLF(b, first + 1, end);
+			if (last != -1) {
+				n = slice(n, b, first + 1, last - first);
+				first = last;
+			}
+			// the slice still refers to the old content of buf
+			append(b, first + 1, end - first - 1);
+			return n;
+		}
+		append(b, off, len);
+		if (bufLen >= coalesceSize) {
+			int last = lastIndexOfLF(buf, 0, bufLen);
+			if (last != -1) {
+				consumed = last + 1;
+			} else if (bufLen >= maxLine) {
+				consumed = bufLen;
+			} else {
+				return 0;
+			}
+			return slice(0, buf, 0, consumed);
+		}
+		return 0;
+	}
+
+	/**
+	 * Deliver all data still buffered (the end of the message has been
+	 * reached).
+	 * @return the number of slices ready to be delivered (0..1).
+	 */
+	public int flush() {
+		compact();
+		if (bufLen == 0) {
+			return 0;
+		}
+		consumed = bufLen;
+		return slice(0, buf, 0, bufLen);
+	}
+
+	/**
+	 * Drop all buffered data.
+	 */
+	public void reset() {
+		bufLen = 0;
+		consumed = 0;
+		data[0] = data[1] = null;
+		if (buf.length > maxLine + 1024) {
+			buf = new byte[Math.min(coalesceSize + 1024, maxLine)];
+		}
+	}
+
+	/**
+	 * Get the buffer of a slice.
+	 * @param i		index of the slice
+	 * @return the buffer, which contains the slice. Must not be modified.
+	 */
+	public byte[] getData(int i) {
+		return data[i];
+	}
+
+	/**
+	 * Get the offset of a slice.
+	 * @param i		index of the slice
+	 * @return the offset of the first byte of the slice in its buffer
+	 */
+	public int getOffset(int i) {
+		return offsets[i];
+	}
+
+	/**
+	 * Get the length of a slice.
+	 * @param i		index of the slice
+	 * @return the number of bytes of the slice
+	 */
+	public int getLength(int i) {
+		return lengths[i];
+	}
+
+	private int slice(int i, byte[] b, int off, int len) {
+		data[i] = b;
+		offsets[i] = off;
+		lengths[i] = len;
+		return i + 1;
+	}
+
+	private void compact() {
+		if (consumed == 0) {
+			return;
+		}
+		// slices handed out before are not valid anymore
+		bufLen -= consumed;
+		if (bufLen > 0) {
+			System.arraycopy(buf, consumed, buf, 0, bufLen);
+		}
+		consumed = 0;
+	}
+
+	private void append(byte[] b, int off, int len) {
+		if (len <= 0) {
+			return;
+		}
+		int need = bufLen + len;
+		if (need > buf.length) {
+			byte[] tmp = new byte[Math.max(buf.length << 1, need)];
+			System.arraycopy(buf, 0, tmp, 0, bufLen);
+			buf = tmp;
+		}
+		System.arraycopy(b, off, buf, bufLen, len);
+		bufLen += len;
+	}
+
+	private static int indexOfLF(byte[] b, int start, int end) {
+		for (int i=start; i < end; i++) {
+			if (b[i] == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int lastIndexOfLF(byte[] b, int start, int end) {
+		for (int i=end-1; i >= start; i--) {
+			if (b[i] == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
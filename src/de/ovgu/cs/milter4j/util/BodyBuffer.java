@@ -0,0 +1,616 @@
+/**
+ * $Id$
+ *
+ * Copyright (c) 2005-2007 Jens Elkner.
+ * All Rights Reserved.
+ *
+ * This software is the proprietary information of Jens Elkner.
+ * Use is subject to license terms.
+ */
+package de.ovgu.cs.milter4j.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.internet.SharedInputStream;
+import javax.mail.util.SharedFileInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A segmented buffer, which collects the body chunks of a mail without
+ * copying them around again and again.
+ * <p>
+ * Large chunks (e.g. the body packets sent by sendmail) get adopted as they
+ * are, i.e. become a segment of this buffer without being copied. Small
+ * chunks get copied into fixed-size segments of {@value #SEGMENT_SIZE} bytes,
+ * which are taken from a pool shared by all buffers and returned to it on
+ * {@link #clear()}. So growing the buffer never requires to copy data already
+ * collected and {@link #getInputStream()} provides a view of the whole
+ * content without any reassembly.
+ * <p>
+ * To keep the heap usage predictable, a buffer spills its content to a
+ * temporary file, as soon as it would exceed the configured per message
+ * threshold or the memory budget shared by all buffers would be exceeded
+ * (see {@link #configure(long, long, File)}). The content of a spilled buffer
+ * gets read via a read-only {@link java.nio.MappedByteBuffer}. If writing to
+ * the spill file fails, the buffer drops all further data and 
+ * {@link #getInputStream()} fails, so that nobody gets a truncated body.
+ * <p>
+ * Per contract, nobody is allowed to modify an adopted chunk after it has
+ * been appended. This class is not thread-safe.
+ *
+ * @author 	Jens Elkner
+ * @version	$Revision$
+ */
+public class BodyBuffer {
+	/** size of pooled segments in bytes */
+	public static final int SEGMENT_SIZE = 16 * 1024;
+	/** chunks with at least this number of bytes get adopted instead of
+	 * copied */
+	public static final int ADOPT_SIZE = SEGMENT_SIZE / 4;
+	/** max. number of segments kept in the pool */
+	public static final int POOL_SIZE = 1024;
+
+	/** default per message threshold in bytes, above which a body gets
+	 * spilled to disk */
+	public static final long DEFAULT_SPILL_SIZE = 4 * 1024 * 1024;
+	/** default number of bytes all buffers together may keep in memory */
+	public static final long DEFAULT_MEMORY_BUDGET = 64 * 1024 * 1024;
+
+	private static final Logger log = LoggerFactory.getLogger(BodyBuffer.class);
+	private static final ArrayBlockingQueue<byte[]> pool =
+		new ArrayBlockingQueue<byte[]>(POOL_SIZE);
+	private static final AtomicLong memoryUsed = new AtomicLong();
+	private static volatile long spillSize = DEFAULT_SPILL_SIZE;
+	private static volatile long memoryBudget = DEFAULT_MEMORY_BUDGET;
+	private static volatile File spoolDir;
+
+	private byte[][] segs;
+	private int[] lens;
+	private long[] offsets;
+	private boolean[] pooled;
+	private int count;
+	private long size;
+	private File spillFile;
+	private FileChannel spill;
+	private boolean noSpill;
+	private long reserved;
+	private IOException failure;
+
+	/**
+	 * Create a new, empty buffer.
+	 */
+	public BodyBuffer() {
+		segs = new byte[16][];
+		lens = new int[16];
+		offsets = new long[16];
+		pooled = new boolean[16];
+	}
+
+	/**
+	 * Set the parameters, which control, when buffers spill their content
+	 * to disk.
+	 * @param threshold		max. number of bytes a single buffer may keep in
+	 * 		memory. If &lt; 0, {@link #DEFAULT_SPILL_SIZE} gets used.
+	 * @param budget	max. number of bytes all buffers together may keep in
+	 * 		memory. If &lt; 0, {@link #DEFAULT_MEMORY_BUDGET} gets used.
+	 * @param dir	the directory where to create spill files. If
+	 * 		<code>null</code>, the default temporary-file directory gets used.
+	 */
+	public static void configure(long threshold, long budget, File dir) {
+		spillSize = threshold < 0 ? DEFAULT_SPILL_SIZE : threshold;
+		memoryBudget = budget < 0 ? DEFAULT_MEMORY_BUDGET : budget;
+		spoolDir = dir;
+	}
+
+	/**
+	 * Get the number of bytes currently held in memory by all buffers.
+	 * @return number of bytes.
+	 */
+	public static long getMemoryUsed() {
+		return memoryUsed.get();
+	}
+
+	private static byte[] getSegment() {
+		byte[] b = pool.poll();
+		return b == null ? new byte[SEGMENT_SIZE] : b;
+	}
+
+	private void addSegment(byte[] b, int len, boolean fromPool) {
+		if (count == segs.length) {
+			int n = count << 1;
+			segs = Arrays.copyOf(segs, n);
+			lens = Arrays.copyOf(lens, n);
+			offsets = Arrays.copyOf(offsets, n);
+			pooled = Arrays.copyOf(pooled, n);
+		}
+		segs[count] = b;
+		lens[count] = len;
+		offsets[count] = size;
+		pooled[count] = fromPool;
+		count++;
+		size += len;
+	}
+
+	/**
+	 * Append the given chunk. If its size is at least {@link #ADOPT_SIZE},
+	 * the chunk gets adopted, i.e. the caller must not modify it anymore.
+	 * @param chunk		chunk to append. Ignored if <code>null</code>.
+	 */
+	public void append(byte[] chunk) {
+		if (chunk == null || chunk.length == 0 || failure != null) {
+			return;
+		}
+		if (spill != null || !reserve(chunk.length)) {
+			write(chunk, 0, chunk.length);
+		} else if (chunk.length < ADOPT_SIZE) {
+			copy(chunk, 0, chunk.length);
+		} else {
+			addSegment(chunk, chunk.length, false);
+		}
+	}
+
+	/**
+	 * Append a copy of the given data.
+	 * @param b		source
+	 * @param off	offset of the first byte to copy
+	 * @param len	number of bytes to copy
+	 */
+	public void append(byte[] b, int off, int len) {
+		if (len <= 0 || failure != null) {
+			return;
+		}
+		if (spill != null || !reserve(len)) {
+			write(b, off, len);
+		} else {
+			copy(b, off, len);
+		}
+	}
+
+	/**
+	 * Check, whether the given number of bytes may be kept in memory and if
+	 * so, account them. Otherwise try to spill the buffer to disk.
+	 * @param len	number of bytes to add
+	 * @return <code>true</code> if the bytes should be kept in memory.
+	 */
+	private boolean reserve(long len) {
+		if (!noSpill && size + len > spillSize) {
+			if (spill()) {
+				return false;
+			}
+		}
+		if (reserved >= len) {
+			reserved -= len;
+			return true;
+		}
+		len -= reserved;
+		reserved = 0;
+		long used = memoryUsed.addAndGet(len);
+		if (noSpill || used <= memoryBudget) {
+			return true;
+		}
+		memoryUsed.addAndGet(-len);
+		if (spill()) {
+			return false;
+		}
+		memoryUsed.addAndGet(len);
+		return true;
+	}
+
+	/**
+	 * Prepare this buffer for a body of the given size (e.g. as announced by
+	 * the mail client via the ESMTP <code>SIZE=</code> parameter), i.e. 
+	 * decide up front, whether it should be kept in memory or on disk. If it 
+	 * fits into memory, the required memory gets reserved from the global 
+	 * budget. If the body finally turns out to be larger, the usual rules 
+	 * apply for the remaining data.
+	 * <p>
+	 * Has no effect, if data have already been appended.
+	 * 
+	 * @param expected	the expected size of the body in bytes
+	 */
+	public void prepare(long expected) {
+		if (expected <= 0 || size > 0 || spill != null) {
+			return;
+		}
+		if (expected <= spillSize) {
+			long used = memoryUsed.addAndGet(expected - reserved);
+			if (used <= memoryBudget) {
+				reserved = expected;
+				int n = (int) (expected / ADOPT_SIZE) + 1;
+				if (n > segs.length) {
+					segs = Arrays.copyOf(segs, n);
+					lens = Arrays.copyOf(lens, n);
+					offsets = Arrays.copyOf(offsets, n);
+					pooled = Arrays.copyOf(pooled, n);
+				}
+				return;
+			}
+			memoryUsed.addAndGet(reserved - expected);
+		}
+		spill();
+	}
+
+	/**
+	 * Move all data collected so far to a temporary file and release the
+	 * memory held.
+	 * @return <code>false</code> if spilling failed and thus data should be
+	 * 		kept in memory.
+	 */
+	private boolean spill() {
+		File f = null;
+		FileChannel fc = null;
+		try {
+			f = File.createTempFile("milter4j-body-", ".tmp", spoolDir);
+			fc = FileChannel.open(f.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+			for (int i=0; i < count; i++) {
+				ByteBuffer b = ByteBuffer.wrap(segs[i], 0, lens[i]);
+				while (b.hasRemaining()) {
+					fc.write(b);
+				}
+			}
+		} catch (IOException e) {
+			log.warn("Unable to spill mail body to disk - keeping it in memory: "
+				+ e.getLocalizedMessage());
+			if (log.isDebugEnabled()) {
+				log.debug("spill", e);
+			}
+			if (fc != null) {
+				try { fc.close(); } catch (IOException x) { /* ignore */ }
+			}
+			if (f != null) {
+				f.delete();
+			}
+			noSpill = true;
+			return false;
+		}
+		long len = size;
+		releaseSegments();
+		size = len;
+		spillFile = f;
+		spill = fc;
+		return true;
+	}
+
+	private void write(byte[] b, int off, int len) {
+		ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+		try {
+			while (buf.hasRemaining()) {
+				spill.write(buf);
+			}
+		} catch (IOException e) {
+			log.warn("Unable to write mail body to " + spillFile 
+				+ " - dropping the rest of it: " + e.getLocalizedMessage());
+			if (log.isDebugEnabled()) {
+				log.debug("write", e);
+			}
+			failure = e;
+		}
+		size += len - buf.remaining();
+	}
+
+	private void copy(byte[] b, int off, int len) {
+		while (len > 0) {
+			int last = count - 1;
+			if (last < 0 || !pooled[last] || lens[last] == SEGMENT_SIZE) {
+				addSegment(getSegment(), 0, true);
+				last++;
+			}
+			int n = SEGMENT_SIZE - lens[last];
+			if (n > len) {
+				n = len;
+			}
+			System.arraycopy(b, off, segs[last], lens[last], n);
+			lens[last] += n;
+			size += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Check, whether the content of this buffer has been moved to disk.
+	 * @return <code>true</code> if spilled to disk.
+	 */
+	public boolean isSpilled() {
+		return spill != null;
+	}
+
+	/**
+	 * Check, whether appending data failed, i.e. the content of this buffer
+	 * is incomplete.
+	 * @return <code>true</code> if data have been lost.
+	 */
+	public boolean isFailed() {
+		return failure != null;
+	}
+
+	/**
+	 * Get the number of bytes collected so far.
+	 * @return number of bytes in this buffer.
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Drop all data, return pooled segments to the pool and remove the spill
+	 * file, if any. Streams obtained before must not be used anymore.
+	 */
+	public void clear() {
+		releaseSegments();
+		if (spill != null) {
+			try { spill.close(); } catch (IOException e) { /* ignore */ }
+			spill = null;
+			if (!spillFile.delete()) {
+				log.warn("Unable to delete " + spillFile);
+			}
+			spillFile = null;
+		}
+		noSpill = false;
+		failure = null;
+		size = 0;
+	}
+
+	private void releaseSegments() {
+		long mem = 0;
+		for (int i=0; i < count; i++) {
+			if (pooled[i]) {
+				pool.offer(segs[i]);
+			}
+			mem += lens[i];
+			segs[i] = null;
+		}
+		memoryUsed.addAndGet(-mem - reserved);
+		reserved = 0;
+		count = 0;
+		size = 0;
+	}
+
+	/**
+	 * Get a stream, which reads the content of this buffer. The returned
+	 * stream is a {@link SharedInputStream}, so that mime parts may refer to
+	 * the content of this buffer without copying it.
+	 * <p>
+	 * The stream is valid until this buffer gets cleared. Appending data
+	 * after the stream was created is not reflected by the stream.
+	 *
+	 * @return a stream, which reads all bytes collected so far.
+	 * @throws IOException if the spill file could not be mapped into memory
+	 * 		or data have been lost (see {@link #isFailed()}).
+	 */
+	public InputStream getInputStream() throws IOException {
+		if (failure != null) {
+			throw new IOException("Incomplete mail body: writing to "
+				+ "the spill file failed", failure);
+		}
+		if (spill == null) {
+			return new Stream(0, size);
+		}
+		if (size > Integer.MAX_VALUE) {
+			return new SharedFileInputStream(spillFile);
+		}
+		return new MappedStream(spill.map(FileChannel.MapMode.READ_ONLY, 0, size));
+	}
+
+	private int segmentOf(long pos) {
+		int idx = Arrays.binarySearch(offsets, 0, count, pos);
+		if (idx < 0) {
+			idx = -idx - 2;
+		}
+		// skip empty segments
+		while (idx < count - 1 && pos >= offsets[idx] + lens[idx]) {
+			idx++;
+		}
+		return idx;
+	}
+
+	private class Stream
+		extends InputStream
+		implements SharedInputStream
+	{
+		private long start;
+		private long end;
+		private long pos;
+		private long mark;
+		private int seg;
+
+		Stream(long start, long end) {
+			this.start = start;
+			this.end = end;
+			this.pos = start;
+			this.mark = start;
+			this.seg = segmentOf(start);
+		}
+
+		private void seek() {
+			if (seg < 0 || seg >= count || pos < offsets[seg]
+				|| pos >= offsets[seg] + lens[seg])
+			{
+				seg = segmentOf(pos);
+			}
+		}
+
+		@Override
+		public int read() {
+			if (pos >= end) {
+				return -1;
+			}
+			seek();
+			int b = segs[seg][(int) (pos - offsets[seg])] & 0xff;
+			pos++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (pos >= end) {
+				return -1;
+			}
+			long max = end - pos;
+			if (len > max) {
+				len = (int) max;
+			}
+			int done = 0;
+			while (done < len) {
+				seek();
+				int o = (int) (pos - offsets[seg]);
+				int n = lens[seg] - o;
+				if (n > len - done) {
+					n = len - done;
+				}
+				System.arraycopy(segs[seg], o, b, off + done, n);
+				done += n;
+				pos += n;
+			}
+			return done;
+		}
+
+		@Override
+		public long skip(long n) {
+			if (n <= 0) {
+				return 0;
+			}
+			if (n > end - pos) {
+				n = end - pos;
+			}
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			long n = end - pos;
+			return n > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) n;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+
+		@Override
+		public synchronized void mark(int readlimit) {
+			mark = pos;
+		}
+
+		@Override
+		public synchronized void reset() throws IOException {
+			pos = mark;
+		}
+
+		@Override
+		public long getPosition() {
+			return pos - start;
+		}
+
+		@Override
+		public InputStream newStream(long from, long to) {
+			if (from < 0) {
+				throw new IllegalArgumentException("start < 0");
+			}
+			long e = to == -1 ? end : start + to;
+			long s = start + from;
+			return new Stream(s > e ? e : s, e > end ? end : e);
+		}
+	}
+
+	private static class MappedStream
+		extends InputStream
+		implements SharedInputStream
+	{
+		private ByteBuffer buf;
+		private int start;
+
+		MappedStream(ByteBuffer buf) {
+			this.buf = buf;
+			this.start = buf.position();
+		}
+
+		@Override
+		public int read() {
+			return buf.hasRemaining() ? buf.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!buf.hasRemaining()) {
+				return -1;
+			}
+			if (len > buf.remaining()) {
+				len = buf.remaining();
+			}
+			buf.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public long skip(long n) {
+			if (n <= 0) {
+				return 0;
+			}
+			if (n > buf.remaining()) {
+				n = buf.remaining();
+			}
+			buf.position(buf.position() + (int) n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return buf.remaining();
+		}
+
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+
+		@Override
+		public synchronized void mark(int readlimit) {
+			buf.mark();
+		}
+
+		@Override
+		public synchronized void reset() {
+			buf.reset();
+		}
+
+		@Override
+		public long getPosition() {
+			return buf.position() - start;
+		}
+
+		@Override
+		public InputStream newStream(long from, long to) {
+			if (from < 0) {
+				throw new IllegalArgumentException("start < 0");
+			}
+			int e = to == -1 ? buf.limit() : (int) (start + to);
+			if (e > buf.limit()) {
+				e = buf.limit();
+			}
+			int s = (int) (start + from);
+			ByteBuffer b = buf.duplicate();
+			b.limit(e);
+			b.position(s > e ? e : s);
+			return new MappedStream(b.slice());
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/**
+ * $Id$
+ *
+ * Copyright (c) 2005-2007 Jens Elkner.
+ * All Rights Reserved.
+ *
+ * This software is the proprietary information of Jens Elkner.
+ * Use is subject to license terms.
+ */
+package de.ovgu.cs.milter4j.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * A digest of the body of the current message, which a filter wants to get
+ * computed by the managing server.
+ * <p>
+ * A filter creates its digests once and returns them via
+ * {@link de.ovgu.cs.milter4j.MailFilter#getBodyDigests()}. The server
+ * updates them incrementally while the body chunks arrive, computing each
+ * distinct algorithm/canonicalization pair only once, no matter how many
+ * filters asked for it. When the end of the message has been reached, the
+ * result is available via {@link #getValue()}.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @see BodyDigester
+ * @author 	Jens Elkner
+ * @version	$Revision$
+ */
+public class BodyDigest {
+
+	/**
+	 * How the body gets canonicalized before it gets digested.
+	 */
+	public static enum Canonicalization {
+		/** the body as received */
+		NONE,
+		/** DKIM <code>simple</code> body canonicalization (RFC 6376, 3.4.3) */
+		SIMPLE,
+		/** DKIM <code>relaxed</code> body canonicalization (RFC 6376, 3.4.4) */
+		RELAXED
+	}
+
+	private String algorithm;
+	private Canonicalization canon;
+	private byte[] value;
+	private long length = -1;
+
+	/**
+	 * Create a digest of the body as received.
+	 * @param algorithm	name of the digest algorithm, e.g. <code>SHA-256</code>
+	 * @throws NoSuchAlgorithmException if the algorithm is not available
+	 * @see MessageDigest#getInstance(String)
+	 */
+	public BodyDigest(String algorithm) throws NoSuchAlgorithmException {
+		this(algorithm, Canonicalization.NONE);
+	}
+
+	/**
+	 * Create a digest of the canonicalized body.
+	 * @param algorithm	name of the digest algorithm, e.g. <code>SHA-256</code>
+	 * @param canon		canonicalization to apply. If <code>null</code>,
+	 * 		{@link Canonicalization#NONE} gets used.
+	 * @throws NoSuchAlgorithmException if the algorithm is not available
+	 * @see MessageDigest#getInstance(String)
+	 */
+	public BodyDigest(String algorithm, Canonicalization canon)
+		throws NoSuchAlgorithmException
+	{
+		// fail early
+		this.algorithm = MessageDigest.getInstance(algorithm).getAlgorithm();
+		this.canon = canon == null ? Canonicalization.NONE : canon;
+	}
+
+	/**
+	 * Get the name of the digest algorithm.
+	 * @return the algorithm name.
+	 */
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * Get the canonicalization applied to the body.
+	 * @return the canonicalization.
+	 */
+	public Canonicalization getCanonicalization() {
+		return canon;
+	}
+
+	/**
+	 * Get the key, which identifies digests computing the same value.
+	 * @return the key.
+	 */
+	String getKey() {
+		return algorithm.toUpperCase(Locale.ENGLISH) + '/' + canon;
+	}
+
+	/**
+	 * Get the digest of the body of the current message.
+	 * @return <code>null</code> if the end of the message has not been
+	 * 		reached yet, or the MTA has been told to skip the rest of the body.
+	 * 		Must not be modified.
+	 */
+	public byte[] getValue() {
+		return value;
+	}
+
+	/**
+	 * Get the number of bytes digested, i.e. the size of the canonicalized
+	 * body.
+	 * @return <code>-1</code> if no value is available.
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	void setValue(byte[] value, long length) {
+		this.value = value;
+		this.length = value == null ? -1 : length;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[" + algorithm + ", " + canon + "]";
+	}
+}
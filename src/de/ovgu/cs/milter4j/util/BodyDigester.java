@@ -0,0 +1,250 @@
+/**
+ * $Id$
+ *
+ * Copyright (c) 2005-2007 Jens Elkner.
+ * All Rights Reserved.
+ *
+ * This software is the proprietary information of Jens Elkner.
+ * Use is subject to license terms.
+ */
+package de.ovgu.cs.milter4j.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import de.ovgu.cs.milter4j.util.BodyDigest.Canonicalization;
+
+/**
+ * Computes the {@link BodyDigest}s registered by the filters of a
+ * {@link de.ovgu.cs.milter4j.Worker} incrementally, while the body chunks of
+ * a message arrive.
+ * <p>
+ * Digests with the same algorithm and canonicalization are computed only
+ * once and the result gets assigned to all of them. Canonicalized digests
+ * treat a bare line feed like a CRLF, since sendmail et al. pass the body
+ * with CRLF line endings, only.
+ * <p>
+ * Usage: {@link #register(BodyDigest)} all digests on reconfiguration, call
+ * {@link #update(byte[], int, int)} for each body chunk and {@link #finish()}
+ * at the end of the message. {@link #reset()} drops an unfinished message.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author 	Jens Elkner
+ * @version	$Revision$
+ */
+public class BodyDigester {
+	private LinkedHashMap<String,Engine> engines =
+		new LinkedHashMap<String,Engine>();
+	private Engine[] list = new Engine[0];
+	private boolean valid = true;
+
+	private static class Engine {
+		MessageDigest md;
+		Canonicalization canon;
+		ArrayList<BodyDigest> targets = new ArrayList<BodyDigest>(2);
+		long count;
+		// canonicalization state
+		byte[] out;
+		int outLen;
+		int pendingCRLF;
+		boolean cr;
+		boolean wsp;
+		boolean emitted;
+
+		Engine(MessageDigest md, Canonicalization canon) {
+			this.md = md;
+			this.canon = canon;
+			if (canon != Canonicalization.NONE) {
+				out = new byte[4096];
+			}
+		}
+
+		void update(byte[] b, int off, int len) {
+			if (canon == Canonicalization.NONE) {
+				md.update(b, off, len);
+				count += len;
+				return;
+			}
+			boolean relaxed = canon == Canonicalization.RELAXED;
+			int end = off + len;
+			for (int i=off; i < end; i++) {
+				byte c = b[i];
+				if (cr) {
+					cr = false;
+					if (c == '\n') {
+						eol();
+						continue;
+					}
+					content((byte) '\r');
+				}
+				if (c == '\r') {
+					cr = true;
+				} else if (c == '\n') {
+					eol();
+				} else if (relaxed && (c == ' ' || c == '\t')) {
+					wsp = true;
+				} else {
+					content(c);
+				}
+			}
+		}
+
+		// empty lines get emitted, when followed by content, only
+		private void eol() {
+			pendingCRLF++;
+			wsp = false;
+		}
+
+		private void content(byte c) {
+			for (; pendingCRLF > 0; pendingCRLF--) {
+				put((byte) '\r');
+				put((byte) '\n');
+			}
+			if (wsp) {
+				put((byte) ' ');
+				wsp = false;
+			}
+			put(c);
+			emitted = true;
+		}
+
+		private void put(byte c) {
+			if (outLen == out.length) {
+				flush();
+			}
+			out[outLen++] = c;
+		}
+
+		private void flush() {
+			md.update(out, 0, outLen);
+			count += outLen;
+			outLen = 0;
+		}
+
+		byte[] finish() {
+			if (canon != Canonicalization.NONE) {
+				if (cr) {
+					content((byte) '\r');
+				}
+				// trailing empty lines and whitespace get dropped
+				if (emitted || canon == Canonicalization.SIMPLE) {
+					pendingCRLF = 0;
+					wsp = false;
+					put((byte) '\r');
+					put((byte) '\n');
+				}
+				flush();
+			}
+			return md.digest();
+		}
+
+		void reset() {
+			md.reset();
+			count = 0;
+			outLen = 0;
+			pendingCRLF = 0;
+			cr = wsp = emitted = false;
+		}
+	}
+
+	/**
+	 * Create a new digester without any digests.
+	 */
+	public BodyDigester() {
+		// nothing to do
+	}
+
+	/**
+	 * Register the given digest.
+	 * @param digest	digest to compute for each message
+	 * @throws NoSuchAlgorithmException if the algorithm of the digest is not
+	 * 		available
+	 */
+	public void register(BodyDigest digest) throws NoSuchAlgorithmException {
+		String key = digest.getKey();
+		Engine e = engines.get(key);
+		if (e == null) {
+			e = new Engine(MessageDigest.getInstance(digest.getAlgorithm()),
+				digest.getCanonicalization());
+			engines.put(key, e);
+			list = engines.values().toArray(new Engine[engines.size()]);
+		}
+		if (!e.targets.contains(digest)) {
+			e.targets.add(digest);
+		}
+	}
+
+	/**
+	 * Check, whether any digests have been registered.
+	 * @return <code>true</code> if there is nothing to compute.
+	 */
+	public boolean isEmpty() {
+		return list.length == 0;
+	}
+
+	/**
+	 * Get the number of distinct digests computed per message.
+	 * @return the number of algorithm/canonicalization pairs registered.
+	 */
+	public int size() {
+		return list.length;
+	}
+
+	/**
+	 * Update all digests with the given body chunk.
+	 * @param b		buffer containing the chunk
+	 * @param off	offset of the first byte of the chunk
+	 * @param len	length of the chunk
+	 */
+	public void update(byte[] b, int off, int len) {
+		if (!valid) {
+			return;
+		}
+		for (int i=list.length-1; i >= 0; i--) {
+			list[i].update(b, off, len);
+		}
+	}
+
+	/**
+	 * Mark the digests of the current message as not computable, e.g.
+	 * because the MTA skips the rest of the body. {@link #finish()} assigns
+	 * <code>null</code> to all digests.
+	 */
+	public void invalidate() {
+		valid = false;
+	}
+
+	/**
+	 * Complete the digests of the current message and assign the results to
+	 * the registered digests. Afterwards the digester is ready for the next
+	 * message.
+	 */
+	public void finish() {
+		for (int i=list.length-1; i >= 0; i--) {
+			Engine e = list[i];
+			byte[] v = valid ? e.finish() : null;
+			for (BodyDigest d : e.targets) {
+				d.setValue(v, e.count);
+			}
+			e.reset();
+		}
+		valid = true;
+	}
+
+	/**
+	 * Drop the state and results of the current message.
+	 */
+	public void reset() {
+		for (int i=list.length-1; i >= 0; i--) {
+			Engine e = list[i];
+			e.reset();
+			for (BodyDigest d : e.targets) {
+				d.setValue(null, -1);
+			}
+		}
+		valid = true;
+	}
+}
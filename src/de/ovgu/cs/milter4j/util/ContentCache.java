@@ -0,0 +1,302 @@
+/**
+ * $Id$
+ *
+ * Copyright (c) 2005-2007 Jens Elkner.
+ * All Rights Reserved.
+ *
+ * This software is the proprietary information of Jens Elkner.
+ * Use is subject to license terms.
+ */
+package de.ovgu.cs.milter4j.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.IdentityHashMap;
+
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.ParseException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the decoded content of the parts of the current message, so that
+ * the transfer-decoding, the charset-decoding and the HTML-to-text
+ * extraction of a part is done at most once, no matter how many filters
+ * inspect it.
+ * <p>
+ * A cache is owned by a {@link de.ovgu.cs.milter4j.Worker}, which attaches it
+ * to the {@link Mail} passed to the filters and clears it, when the message
+ * has been processed. Filters usually access it indirectly via
+ * {@link MailPart#getDecodedContent()}, {@link MailPart#getText()} and
+ * {@link MailPart#getPlainText()}.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author 	Jens Elkner
+ * @version	$Revision$
+ */
+public class ContentCache {
+	private static final Logger log = LoggerFactory.getLogger(ContentCache.class);
+
+	private IdentityHashMap<MailPart,Entry> entries =
+		new IdentityHashMap<MailPart,Entry>();
+
+	private static class Entry {
+		byte[] decoded;
+		String text;
+		String plain;
+
+		Entry() {
+			// nothing to do
+		}
+	}
+
+	/**
+	 * Create a new, empty cache.
+	 */
+	public ContentCache() {
+		// nothing to do
+	}
+
+	private Entry getEntry(MailPart part) {
+		Entry e = entries.get(part);
+		if (e == null) {
+			e = new Entry();
+			entries.put(part, e);
+		}
+		return e;
+	}
+
+	/**
+	 * Get the transfer-decoded content of the given part.
+	 * @param part	part in question
+	 * @return the decoded content. Must not be modified.
+	 * @throws IOException if the content could not be read or decoded.
+	 */
+	public byte[] getDecoded(MailPart part) throws IOException {
+		Entry e = getEntry(part);
+		if (e.decoded == null) {
+			InputStream in = part.getDecodedStream();
+			try {
+				ByteArrayOutputStream bos = new ByteArrayOutputStream(
+					(int) Math.min(part.getSize(), Integer.MAX_VALUE - 8));
+				byte[] buf = new byte[4096];
+				int count;
+				while ((count = in.read(buf)) != -1) {
+					bos.write(buf, 0, count);
+				}
+				e.decoded = bos.toByteArray();
+			} finally {
+				in.close();
+			}
+		}
+		return e.decoded;
+	}
+
+	/**
+	 * Get the content of the given part as text, decoded using the charset
+	 * parameter of its content type. If the charset is missing or unknown,
+	 * ISO-8859-1 gets used.
+	 * @param part	part in question
+	 * @return the text content of the part.
+	 * @throws IOException if the content could not be read or decoded.
+	 */
+	public String getText(MailPart part) throws IOException {
+		Entry e = getEntry(part);
+		if (e.text == null) {
+			byte[] b = getDecoded(part);
+			String charset = null;
+			try {
+				charset = new ContentType(part.getContentType())
+					.getParameter("charset");
+			} catch (ParseException x) {
+				log.debug("Invalid content type '{}'", part.getContentType());
+			}
+			if (charset != null) {
+				try {
+					e.text = new String(b, MimeUtility.javaCharset(charset));
+				} catch (UnsupportedEncodingException x) {
+					log.debug("Unknown charset '{}'", charset);
+				}
+			}
+			if (e.text == null) {
+				e.text = new String(b, "ISO-8859-1");
+			}
+		}
+		return e.text;
+	}
+
+	/**
+	 * Get the text of the given part with all markup removed, if it is a
+	 * <code>text/html</code> part. Otherwise the same as
+	 * {@link #getText(MailPart)}.
+	 * @param part	part in question
+	 * @return the plain text content of the part.
+	 * @throws IOException if the content could not be read or decoded.
+	 */
+	public String getPlainText(MailPart part) throws IOException {
+		Entry e = getEntry(part);
+		if (e.plain == null) {
+			String text = getText(part);
+			e.plain = part.isMimeType("text/html") ? html2text(text) : text;
+		}
+		return e.plain;
+	}
+
+	/**
+	 * Drop all cached content.
+	 */
+	public void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Extract the text of the given HTML document: comments, tags and the
+	 * content of <code>script</code> and <code>style</code> elements get
+	 * removed, block level tags are replaced by a line break, the most common
+	 * character references get resolved and white space gets collapsed.
+	 *
+	 * @param html	document to convert
+	 * @return the text of the document.
+	 */
+	public static String html2text(String html) {
+		int len = html.length();
+		StringBuilder sb = new StringBuilder(len / 2);
+		boolean space = false;
+		int i = 0;
+		while (i < len) {
+			char c = html.charAt(i);
+			if (c == '<' && isTagOpen(html, i + 1)) {
+				if (html.startsWith("<!--", i)) {
+					int end = html.indexOf("-->", i + 4);
+					i = end == -1 ? len : end + 3;
+					continue;
+				}
+				int end = html.indexOf('>', i + 1);
+				if (end != -1) {
+					String tag = tagName(html, i + 1, end);
+					if (tag.equals("script") || tag.equals("style")) {
+						int close = indexOfIgnoreCase(html, "</" + tag, end + 1);
+						end = close == -1 ? len - 1 : html.indexOf('>', close);
+						if (end == -1) {
+							end = len - 1;
+						}
+					} else if (isBlock(tag)) {
+						trimSpace(sb);
+						if (sb.length() > 0 
+							&& sb.charAt(sb.length() - 1) != '\n') 
+						{
+							sb.append('\n');
+						}
+						space = false;
+					}
+					i = end + 1;
+					continue;
+				}
+				// not terminated, e.g. "a <b" - keep it as text
+			}
+			if (c == '&') {
+				int end = html.indexOf(';', i + 1);
+				if (end != -1 && end - i <= 10) {
+					int ref = entity(html, i + 1, end);
+					if (ref != -1) {
+						c = (char) ref;
+						i = end;
+					}
+				}
+			}
+			if (Character.isWhitespace(c) || c == '\u00a0') {
+				space = sb.length() > 0 && sb.charAt(sb.length() - 1) != '\n';
+			} else {
+				if (space) {
+					sb.append(' ');
+					space = false;
+				}
+				sb.append(c);
+			}
+			i++;
+		}
+		trimSpace(sb);
+		return sb.toString();
+	}
+
+	private static void trimSpace(StringBuilder sb) {
+		int l = sb.length();
+		while (l > 0 && sb.charAt(l - 1) == ' ') {
+			l--;
+		}
+		sb.setLength(l);
+	}
+
+	// as in HTML, a '<' not followed by a letter, '/', '!' or '?' is text
+	private static boolean isTagOpen(String s, int i) {
+		if (i >= s.length()) {
+			return false;
+		}
+		char c = s.charAt(i);
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') 
+			|| c == '/' || c == '!' || c == '?';
+	}
+
+	private static String tagName(String s, int start, int end) {
+		int i = start;
+		if (i < end && s.charAt(i) == '/') {
+			i++;
+		}
+		int from = i;
+		while (i < end && Character.isLetterOrDigit(s.charAt(i))) {
+			i++;
+		}
+		return s.substring(from, i).toLowerCase();
+	}
+
+	private static boolean isBlock(String tag) {
+		return tag.equals("br") || tag.equals("p") || tag.equals("div")
+			|| tag.equals("tr") || tag.equals("li") || tag.equals("table")
+			|| tag.equals("hr") || tag.equals("title")
+			|| (tag.length() == 2 && tag.charAt(0) == 'h'
+				&& Character.isDigit(tag.charAt(1)));
+	}
+
+	private static int indexOfIgnoreCase(String s, String what, int from) {
+		int max = s.length() - what.length();
+		for (int i=from; i <= max; i++) {
+			if (s.regionMatches(true, i, what, 0, what.length())) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int entity(String s, int start, int end) {
+		String name = s.substring(start, end);
+		if (name.length() > 1 && name.charAt(0) == '#') {
+			try {
+				int c = name.charAt(1) == 'x' || name.charAt(1) == 'X'
+					? Integer.parseInt(name.substring(2), 16)
+					: Integer.parseInt(name.substring(1), 10);
+				return c > 0 && c <= 0xffff ? c : -1;
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		}
+		if (name.equals("amp")) {
+			return '&';
+		} else if (name.equals("lt")) {
+			return '<';
+		} else if (name.equals("gt")) {
+			return '>';
+		} else if (name.equals("quot")) {
+			return '"';
+		} else if (name.equals("apos")) {
+			return '\'';
+		} else if (name.equals("nbsp")) {
+			return ' ';
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,253 @@
+/**
+ * $Id$
+ *
+ * Copyright (c) 2005-2007 Jens Elkner.
+ * All Rights Reserved.
+ *
+ * This software is the proprietary information of Jens Elkner.
+ * Use is subject to license terms.
+ */
+package de.ovgu.cs.milter4j.util;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+import javax.mail.Header;
+import javax.mail.internet.MimeUtility;
+
+/**
+ * Stores the headers of the current message as raw bytes.
+ * <p>
+ * The name and value of each header get copied from the received packet
+ * into a single byte array, and an entry with their offsets and lengths gets
+ * recorded. The {@link RawHeader}s returned convert the bytes into Strings
+ * on first access, only. Names of common headers are mapped to interned
+ * constants, so that they require no conversion at all.
+ * <p>
+ * An arena is meant to be reused for all messages handled by a
+ * {@link de.ovgu.cs.milter4j.Worker}: {@link #clear()} keeps the allocated
+ * buffers. Therefore headers obtained from an arena must not be used after
+ * the message has been processed.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author 	Jens Elkner
+ * @version	$Revision$
+ */
+public class HeaderArena {
+	private static final int INITIAL_SIZE = 8 * 1024;
+	/** arena buffers larger than this get dropped on {@link #clear()} */
+	private static final int MAX_KEEP = 256 * 1024;
+
+	// the bytes of HeaderList.COMMON_NAMES (which are interned literals)
+	private static final byte[][] COMMON_BYTES;
+	static {
+		COMMON_BYTES = new byte[HeaderList.COMMON_NAMES.length][];
+		for (int i=COMMON_BYTES.length-1; i >= 0; i--) {
+			COMMON_BYTES[i] = Misc.getBytes(HeaderList.COMMON_NAMES[i]);
+		}
+	}
+
+	private byte[] buf = new byte[INITIAL_SIZE];
+	private int len;
+	// name offset, name length, value offset, value length
+	private int[] entries = new int[4 * 64];
+	private int count;
+	private int generation;
+
+	/**
+	 * A header, whose name and value get converted from the bytes stored in
+	 * its arena on first access.
+	 */
+	public static class RawHeader
+		extends Header
+	{
+		private HeaderArena arena;
+		private int idx;
+		private int gen;
+
+		RawHeader(HeaderArena arena, int idx) {
+			super(null, null);
+			this.arena = arena;
+			this.idx = idx;
+			this.gen = arena.generation;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @throws IllegalStateException if the name has not been accessed
+		 * 		before and the arena has been cleared.
+		 */
+		@Override
+		public String getName() {
+			if (name == null) {
+				name = arena.getName(idx, gen);
+			}
+			return name;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @throws IllegalStateException if the value has not been accessed
+		 * 		before and the arena has been cleared.
+		 */
+		@Override
+		public String getValue() {
+			if (value == null) {
+				value = arena.getValue(idx, gen);
+			}
+			return value;
+		}
+
+		/**
+		 * Get the unfolded value of this header with all RFC 2047 encoded
+		 * words decoded.
+		 * @return the decoded value, or the unfolded raw value, if it
+		 * 		contains words encoded with an unsupported charset.
+		 */
+		public String getDecodedValue() {
+			String v = MimeUtility.unfold(getValue());
+			try {
+				return MimeUtility.decodeText(v);
+			} catch (UnsupportedEncodingException e) {
+				return v;
+			}
+		}
+	}
+
+	/**
+	 * Create a new, empty arena.
+	 */
+	public HeaderArena() {
+		// nothing to do
+	}
+
+	/**
+	 * Add the header contained in the given data of a
+	 * {@link de.ovgu.cs.milter4j.cmd.Type#HEADER} packet, i.e. a NUL
+	 * terminated name followed by a NUL terminated value. The position of
+	 * the given buffer is not changed.
+	 * @param data	the packet data
+	 * @return the new header.
+	 */
+	public RawHeader add(ByteBuffer data) {
+		int pos = data.position();
+		int end = data.limit();
+		int nameEnd = pos;
+		while (nameEnd < end && data.get(nameEnd) != 0) {
+			nameEnd++;
+		}
+		int valStart = nameEnd < end ? nameEnd + 1 : end;
+		int valEnd = valStart;
+		while (valEnd < end && data.get(valEnd) != 0) {
+			valEnd++;
+		}
+		int nameLen = nameEnd - pos;
+		int valLen = valEnd - valStart;
+		ensureCapacity(nameLen + valLen);
+		if (count * 4 == entries.length) {
+			int[] tmp = new int[entries.length << 1];
+			System.arraycopy(entries, 0, tmp, 0, entries.length);
+			entries = tmp;
+		}
+		int e = count * 4;
+		entries[e] = len;
+		entries[e+1] = nameLen;
+		copy(data, pos, nameLen);
+		entries[e+2] = len;
+		entries[e+3] = valLen;
+		copy(data, valStart, valLen);
+		return new RawHeader(this, count++);
+	}
+
+	private void ensureCapacity(int n) {
+		if (len + n > buf.length) {
+			byte[] tmp = new byte[Math.max(buf.length << 1, len + n)];
+			System.arraycopy(buf, 0, tmp, 0, len);
+			buf = tmp;
+		}
+	}
+
+	private void copy(ByteBuffer data, int pos, int n) {
+		if (data.hasArray()) {
+			System.arraycopy(data.array(), data.arrayOffset() + pos, buf, len, n);
+		} else {
+			ByteBuffer b = data.duplicate();
+			b.position(pos);
+			b.get(buf, len, n);
+		}
+		len += n;
+	}
+
+	/**
+	 * Get the number of headers stored.
+	 * @return the number of headers added since the last {@link #clear()}.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Get the number of bytes used by the stored headers.
+	 * @return the number of name and value bytes.
+	 */
+	public int getByteSize() {
+		return len;
+	}
+
+	/**
+	 * Drop all headers. Headers obtained before are not valid anymore.
+	 */
+	public void clear() {
+		len = 0;
+		count = 0;
+		generation++;
+		if (buf.length > MAX_KEEP) {
+			buf = new byte[INITIAL_SIZE];
+			entries = new int[4 * 64];
+		}
+	}
+
+	private void check(int gen) {
+		if (gen != generation) {
+			throw new IllegalStateException("header of a message already "
+				+ "processed accessed");
+		}
+	}
+
+	String getName(int idx, int gen) {
+		check(gen);
+		int off = entries[idx*4];
+		int n = entries[idx*4+1];
+		for (int i=COMMON_BYTES.length-1; i >= 0; i--) {
+			byte[] b = COMMON_BYTES[i];
+			if (b.length == n && equals(b, off)) {
+				return HeaderList.COMMON_NAMES[i];
+			}
+		}
+		return toString(off, n);
+	}
+
+	String getValue(int idx, int gen) {
+		check(gen);
+		return toString(entries[idx*4+2], entries[idx*4+3]);
+	}
+
+	private boolean equals(byte[] b, int off) {
+		for (int i=b.length-1; i >= 0; i--) {
+			if (buf[off+i] != b[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// per RFC 2822, 2.2.  ASCII chars only, 8bit gets mapped as ISO-8859-1
+	private String toString(int off, int n) {
+		char[] c = new char[n];
+		for (int i=n-1; i >= 0; i--) {
+			c[i] = (char) (buf[off+i] & 0xff);
+		}
+		return new String(c);
+	}
+}
@@ -0,0 +1,331 @@
+/**
+ * $Id$
+ *
+ * Copyright (c) 2005-2007 Jens Elkner.
+ * All Rights Reserved.
+ *
+ * This software is the proprietary information of Jens Elkner.
+ * Use is subject to license terms.
+ */
+package de.ovgu.cs.milter4j.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+import javax.mail.Header;
+
+/**
+ * A list of headers, which maintains a case-insensitive index from header
+ * names to their positions in the list.
+ * <p>
+ * The index gets updated incrementally, when headers get appended via
+ * {@link #add(Header)}, which is the way the managing server collects the
+ * headers of a message. Any other modification (including replacing a 
+ * header by one with another name via {@link #set(int, Header)}) just 
+ * invalidates the index, which gets rebuilt on the next lookup. Index
+ * keys of common header names are interned, so that looking them up
+ * requires no case conversion.
+ * <p>
+ * Besides lookups, the index provides the per-name ordinal of a header as
+ * required by {@link de.ovgu.cs.milter4j.reply.ChangeHeaderPacket}.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author 	Jens Elkner
+ * @version	$Revision$
+ */
+public class HeaderList
+	extends ArrayList<Header>
+{
+	private static final long serialVersionUID = 1L;
+
+	/** names of common headers, shared with {@link HeaderArena}. Must not
+	 * be modified. */
+	static final String[] COMMON_NAMES = { "Received", "Return-Path",
+		"From", "Sender", "Reply-To", "To", "Cc", "Bcc", "Subject", "Date",
+		"Message-ID", "In-Reply-To", "References", "MIME-Version",
+		"Content-Type", "Content-Transfer-Encoding", "Content-Disposition",
+		"DKIM-Signature", "DomainKey-Signature", "Authentication-Results",
+		"Received-SPF", "List-Id", "List-Unsubscribe", "Precedence",
+		"X-Mailer", "User-Agent", "Delivered-To", "X-Original-To",
+		"X-Spam-Status", "X-Spam-Flag", "X-Virus-Scanned", "Auto-Submitted"
+	};
+	private static final HashMap<String,String> KEYS;
+	static {
+		KEYS = new HashMap<String,String>(COMMON_NAMES.length * 4);
+		for (String name : COMMON_NAMES) {
+			String key = name.toLowerCase(Locale.ENGLISH).intern();
+			KEYS.put(name, key);
+			KEYS.put(key, key);
+			KEYS.put(name.toUpperCase(Locale.ENGLISH), key);
+		}
+	}
+
+	private static final int[] NONE = new int[0];
+	/** max. number of distinct names kept in the index, when cleared */
+	private static final int MAX_KEEP = 128;
+
+	private static class Positions {
+		int[] pos = new int[2];
+		int count;
+
+		Positions() {
+			// nothing to do
+		}
+	}
+
+	private transient HashMap<String,Positions> index;
+	// per-name ordinal (1-based) of each entry
+	private transient int[] ordinals;
+	private transient int indexed = -1;
+
+	/**
+	 * Create a new, empty list.
+	 */
+	public HeaderList() {
+		super();
+		index = new HashMap<String,Positions>();
+		ordinals = new int[16];
+		indexed = modCount;
+	}
+
+	/**
+	 * Create a list, which contains the given headers.
+	 * @param headers	headers to add. Might be <code>null</code>.
+	 */
+	public HeaderList(Collection<Header> headers) {
+		super(headers == null ? Collections.<Header>emptyList() : headers);
+	}
+
+	/**
+	 * Get the index key for the given header name.
+	 * @param name	header name
+	 * @return the lower case name, interned for common header names.
+	 */
+	public static String getKey(String name) {
+		String key = KEYS.get(name);
+		return key == null ? name.toLowerCase(Locale.ENGLISH) : key;
+	}
+
+	/**
+	 * Append the given header and add it to the index.
+	 * @param h	header to add
+	 * @return always <code>true</code>
+	 */
+	@Override
+	public boolean add(Header h) {
+		boolean sync = index != null && indexed == modCount;
+		super.add(h);
+		if (sync) {
+			index(size() - 1, h);
+			indexed = modCount;
+		}
+		return true;
+	}
+
+	/**
+	 * Convinience method to append a new header.
+	 * @param name	name of the header
+	 * @param value	value of the header
+	 */
+	public void add(String name, String value) {
+		add(new Header(name, value));
+	}
+
+	/**
+	 * Replace the header at the given position. Also used by 
+	 * {@link java.util.ListIterator#set(Object)}, which must not change the
+	 * modification count, so the index gets invalidated explicitly, if the
+	 * header name changes.
+	 * @param i	list index of the header to replace
+	 * @param h	the new header
+	 * @return the replaced header
+	 */
+	@Override
+	public Header set(int i, Header h) {
+		Header old = super.set(i, h);
+		if (index != null && indexed == modCount
+			&& !getKey(old.getName()).equals(getKey(h.getName()))) 
+		{
+			indexed = modCount - 1;
+		}
+		return old;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void clear() {
+		super.clear();
+		if (index != null) {
+			resetIndex();
+			indexed = modCount;
+		}
+	}
+
+	// keep the entries of names seen before, since they usually show up again
+	private void resetIndex() {
+		if (index.size() > MAX_KEEP) {
+			index.clear();
+			return;
+		}
+		for (Positions p : index.values()) {
+			p.count = 0;
+		}
+	}
+
+	private void index(int i, Header h) {
+		String key = getKey(h.getName());
+		Positions p = index.get(key);
+		if (p == null) {
+			p = new Positions();
+			index.put(key, p);
+		} else if (p.count == p.pos.length) {
+			int[] tmp = new int[p.count << 1];
+			System.arraycopy(p.pos, 0, tmp, 0, p.count);
+			p.pos = tmp;
+		}
+		p.pos[p.count++] = i;
+		if (i >= ordinals.length) {
+			int[] tmp = new int[Math.max(ordinals.length << 1, i + 1)];
+			System.arraycopy(ordinals, 0, tmp, 0, ordinals.length);
+			ordinals = tmp;
+		}
+		ordinals[i] = p.count;
+	}
+
+	private void ensureIndex() {
+		if (index == null) {
+			index = new HashMap<String,Positions>();
+			ordinals = new int[Math.max(16, size())];
+		} else if (indexed == modCount) {
+			return;
+		}
+		resetIndex();
+		for (int i=0; i < size(); i++) {
+			index(i, get(i));
+		}
+		indexed = modCount;
+	}
+
+	private Positions lookup(String name) {
+		ensureIndex();
+		Positions p = index.get(getKey(name));
+		return p == null || p.count == 0 ? null : p;
+	}
+
+	/**
+	 * Get the number of headers with the given name.
+	 * @param name	header name (case-insensitive)
+	 * @return the number of headers found.
+	 */
+	public int count(String name) {
+		Positions p = lookup(name);
+		return p == null ? 0 : p.count;
+	}
+
+	/**
+	 * Get the positions of all headers with the given name.
+	 * @param name	header name (case-insensitive)
+	 * @return a possibly empty array of list indexes in ascending order.
+	 */
+	public int[] getPositions(String name) {
+		Positions p = lookup(name);
+		if (p == null) {
+			return NONE;
+		}
+		int[] res = new int[p.count];
+		System.arraycopy(p.pos, 0, res, 0, p.count);
+		return res;
+	}
+
+	/**
+	 * Get the position of the given occurrence of a header.
+	 * @param name	header name (case-insensitive)
+	 * @param ordinal	1-based occurrence of the header
+	 * @return <code>-1</code> if there is no such header, its list index
+	 * 		otherwise.
+	 */
+	public int indexOf(String name, int ordinal) {
+		Positions p = lookup(name);
+		return p == null || ordinal < 1 || ordinal > p.count
+			? -1
+			: p.pos[ordinal-1];
+	}
+
+	/**
+	 * Get the per-name ordinal of the header at the given position, e.g. to
+	 * create a {@link de.ovgu.cs.milter4j.reply.ChangeHeaderPacket} for it.
+	 * @param position	list index of the header
+	 * @return the 1-based occurrence of the header among all headers with
+	 * 		the same name.
+	 * @throws IndexOutOfBoundsException if position is out of range
+	 */
+	public int getOrdinal(int position) {
+		if (position < 0 || position >= size()) {
+			throw new IndexOutOfBoundsException("Index: " + position
+				+ ", Size: " + size());
+		}
+		ensureIndex();
+		return ordinals[position];
+	}
+
+	/**
+	 * Get the value of the first header with the given name.
+	 * @param name	header name (case-insensitive)
+	 * @return <code>null</code> if there is no such header.
+	 */
+	public String getFirst(String name) {
+		Positions p = lookup(name);
+		return p == null ? null : get(p.pos[0]).getValue();
+	}
+
+	/**
+	 * Get the value of the last header with the given name.
+	 * @param name	header name (case-insensitive)
+	 * @return <code>null</code> if there is no such header.
+	 */
+	public String getLast(String name) {
+		Positions p = lookup(name);
+		return p == null ? null : get(p.pos[p.count-1]).getValue();
+	}
+
+	/**
+	 * Get the values of all headers with the given name in list order.
+	 * @param name	header name (case-insensitive)
+	 * @return a possibly empty list.
+	 */
+	public List<String> getValues(String name) {
+		Positions p = lookup(name);
+		if (p == null) {
+			return Collections.emptyList();
+		}
+		ArrayList<String> res = new ArrayList<String>(p.count);
+		for (int i=0; i < p.count; i++) {
+			res.add(get(p.pos[i]).getValue());
+		}
+		return res;
+	}
+
+	/**
+	 * Get all headers with the given name in list order.
+	 * @param name	header name (case-insensitive)
+	 * @return a possibly empty list.
+	 */
+	public List<Header> getHeaders(String name) {
+		Positions p = lookup(name);
+		if (p == null) {
+			return Collections.emptyList();
+		}
+		ArrayList<Header> res = new ArrayList<Header>(p.count);
+		for (int i=0; i < p.count; i++) {
+			res.add(get(p.pos[i]));
+		}
+		return res;
+	}
+}
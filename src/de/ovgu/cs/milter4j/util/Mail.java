@@ -9,20 +9,40 @@
  */
 package de.ovgu.cs.milter4j.util;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.List;
 
 import javax.mail.Header;
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.SharedInputStream;
+
+import de.ovgu.cs.milter4j.reply.Packet;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Wrapper around {@link MimeMessage}, which allows us to create it efficiently.
+ * <p>
+ * Filters, which just need to know the MIME structure of the mail or the
+ * content of a single part, should use {@link #getRootPart()} or
+ * {@link #getAllParts()} instead of the javax.mail API: the structure gets
+ * indexed in a single pass over the raw body, and parts are decoded
+ * on access only, without building javax.mail's object graph. Decoded 
+ * content of parts gets cached, so that it is decoded once, only, no matter 
+ * how many filters access it.
+ * <p>
+ * If created from a list of headers, the headers get copied into the 
+ * javax.mail representation not before any of the javax.mail header methods 
+ * gets called. {@link #getHeaderList()} provides direct access to them.
  * @author 	Jens Elkner
  * @version	$Revision$
  */
@@ -30,6 +50,11 @@ public class Mail
 	extends MimeMessage
 {
 	private static final Logger log = LoggerFactory.getLogger(Mail.class);
+	private List<Header> rawHeaders;
+	private MailPart root;
+	private ArrayList<MailPart> all;
+	private ContentCache cache;
+
 	/**
 	 * Create a new mail using the given content directly (no copy).
 	 * @param headers	headers to set
@@ -37,11 +62,50 @@ public class Mail
 	 */
 	public Mail(List<Header> headers, byte[] content) {
 		super((Session) null);
-		this.headers = new MailHeaders(headers);
+		this.rawHeaders = headers;
+		// created on demand
+		this.headers = null;
 		this.content = content;
 		this.modified = false;
 	}
 	
+	/**
+	 * Create a new mail, which reads its content directly from the given
+	 * buffer (no copy).
+	 * <p>
+	 * The mail is usable as long as the buffer doesn't get cleared, only.
+	 * @param headers	headers to set
+	 * @param body	raw RFC 822 compliant mail body
+	 * @throws IOException if the body could not be accessed
+	 */
+	public Mail(List<Header> headers, BodyBuffer body) throws IOException {
+		this(headers, body, null);
+	}
+
+	/**
+	 * Create a new mail, which reads its content directly from the given
+	 * buffer (no copy) and caches decoded content in the given cache.
+	 * <p>
+	 * The mail is usable as long as the buffer and the cache don't get 
+	 * cleared, only.
+	 * @param headers	headers to set
+	 * @param body	raw RFC 822 compliant mail body
+	 * @param cache	where to cache decoded content. If <code>null</code>,
+	 * 		a private cache gets created on demand.
+	 * @throws IOException if the body could not be accessed
+	 */
+	public Mail(List<Header> headers, BodyBuffer body, ContentCache cache) 
+		throws IOException 
+	{
+		super((Session) null);
+		this.rawHeaders = headers;
+		// created on demand
+		this.headers = null;
+		this.contentStream = body.getInputStream();
+		this.modified = false;
+		this.cache = cache;
+	}
+
 	/**
 	 * Construct a mail using a <code>null</code> session.
 	 * @param is	where to ready the raw message from
@@ -54,7 +118,7 @@ public class Mail
 	/**
 	 * Get the body of the Mail as a raw byte array.
 	 * <p>
-	 * If the mail was constructed using an input stream, this method creates
+	 * If the mail was not constructed using a byte array, this method creates
 	 * a copy of the body in memory, which might be critical wrt. resource
 	 * usage on the running system!
 	 *  
@@ -82,4 +146,306 @@ public class Mail
 		}
 		return bos.toByteArray();
 	}
+
+	/**
+	 * Get the MIME structure of this mail. The structure gets indexed on the
+	 * first call.
+	 * @return the part, which represents the mail itself.
+	 */
+	public MailPart getRootPart() {
+		if (root == null) {
+			index();
+		}
+		return root;
+	}
+
+	/**
+	 * Get all parts of this mail in the order they appear in the mail.
+	 * @return a list, which contains at least the {@link #getRootPart()}.
+	 */
+	public List<MailPart> getAllParts() {
+		if (root == null) {
+			index();
+		}
+		return Collections.unmodifiableList(all);
+	}
+
+	/**
+	 * Get the cache, which holds the decoded content of the parts of this
+	 * mail.
+	 * @return the cache passed on construction or a private one.
+	 */
+	public ContentCache getContentCache() {
+		if (cache == null) {
+			cache = new ContentCache();
+		}
+		return cache;
+	}
+
+	/**
+	 * Make sure, that the javax.mail representation of the headers exists.
+	 */
+	private void ensureHeaders() {
+		if (headers == null) {
+			headers = new MailHeaders(rawHeaders);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String[] getHeader(String name) throws MessagingException {
+		ensureHeaders();
+		return super.getHeader(name);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getHeader(String name, String delimiter) 
+		throws MessagingException 
+	{
+		ensureHeaders();
+		return super.getHeader(name, delimiter);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setHeader(String name, String value) throws MessagingException {
+		ensureHeaders();
+		super.setHeader(name, value);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void addHeader(String name, String value) throws MessagingException {
+		ensureHeaders();
+		super.addHeader(name, value);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void removeHeader(String name) throws MessagingException {
+		ensureHeaders();
+		super.removeHeader(name);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Enumeration<?> getAllHeaders() throws MessagingException {
+		ensureHeaders();
+		return super.getAllHeaders();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Enumeration<?> getMatchingHeaders(String[] names) 
+		throws MessagingException 
+	{
+		ensureHeaders();
+		return super.getMatchingHeaders(names);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Enumeration<?> getNonMatchingHeaders(String[] names) 
+		throws MessagingException 
+	{
+		ensureHeaders();
+		return super.getNonMatchingHeaders(names);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void addHeaderLine(String line) throws MessagingException {
+		ensureHeaders();
+		super.addHeaderLine(line);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Enumeration<?> getAllHeaderLines() throws MessagingException {
+		ensureHeaders();
+		return super.getAllHeaderLines();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Enumeration<?> getMatchingHeaderLines(String[] names) 
+		throws MessagingException 
+	{
+		ensureHeaders();
+		return super.getMatchingHeaderLines(names);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Enumeration<?> getNonMatchingHeaderLines(String[] names) 
+		throws MessagingException 
+	{
+		ensureHeaders();
+		return super.getNonMatchingHeaderLines(names);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected synchronized void updateHeaders() throws MessagingException {
+		ensureHeaders();
+		super.updateHeaders();
+	}
+
+	/**
+	 * Get the headers of this mail as passed on construction, i.e. without
+	 * the javax.mail overhead. The returned list provides indexed, 
+	 * case-insensitive lookups by header name.
+	 * <p>
+	 * NOTE: Changes made via the javax.mail API (e.g. 
+	 * {@link #setHeader(String, String)}) are not reflected.
+	 * 
+	 * @return the headers of this mail. Must not be modified.
+	 */
+	public HeaderList getHeaderList() {
+		if (rawHeaders instanceof HeaderList) {
+			return (HeaderList) rawHeaders;
+		}
+		HeaderList h = new HeaderList();
+		if (rawHeaders != null) {
+			h.addAll(rawHeaders);
+		} else {
+			try {
+				Enumeration<?> e = getAllHeaders();
+				while (e.hasMoreElements()) {
+					h.add((Header) e.nextElement());
+				}
+			} catch (MessagingException e) {
+				log.warn(e.getLocalizedMessage());
+				log.debug("getHeaderList", e);
+			}
+		}
+		rawHeaders = h;
+		return h;
+	}
+
+	private void index() {
+		all = new ArrayList<MailPart>();
+		List<Header> h = getHeaderList();
+		Indexer indexer = new Indexer();
+		MimeStreamParser parser = new MimeStreamParser(indexer);
+		indexer.parser = parser;
+		parser.start(h);
+		long size = 0;
+		InputStream in = null;
+		try {
+			in = getRawInputStream();
+			byte[] buf = new byte[8 * 1024];
+			int count;
+			while ((count = in.read(buf)) != -1) {
+				parser.feed(buf, 0, count);
+				size += count;
+			}
+		} catch (Exception e) {
+			log.warn(e.getLocalizedMessage());
+			log.debug("index", e);
+		} finally {
+			if (in != null) {
+				try { in.close(); } catch (IOException e) { /* ignore */ }
+			}
+		}
+		parser.finish();
+		root.setRange(0, size);
+	}
+
+	/**
+	 * Creates the part index from the parser events.
+	 */
+	private class Indexer implements MimeListener {
+		MimeStreamParser parser;
+		private MailPart current;
+
+		Indexer() {
+			// nothing to do
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public Packet startPart(int depth) {
+			current = new MailPart(Mail.this, current, depth);
+			all.add(current);
+			if (root == null) {
+				root = current;
+			}
+			return null;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public Packet header(int depth, String name, String value) {
+			current.addHeader(name, value);
+			return null;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public Packet content(int depth, byte[] data, int off, int len) {
+			current.addContent(parser.getOffset(), len);
+			return null;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public Packet endPart(int depth) {
+			current = current.getParent();
+			return null;
+		}
+	}
+
+	/**
+	 * Get a stream, which reads the given range of the raw body.
+	 * @param start	offset of the first byte
+	 * @param end	offset of the byte after the last byte
+	 * @return a new stream.
+	 * @throws IOException if the body is not accessible
+	 */
+	InputStream getRawStream(long start, long end) throws IOException {
+		if (contentStream instanceof SharedInputStream) {
+			return ((SharedInputStream) contentStream).newStream(start, end);
+		}
+		if (content != null) {
+			return new ByteArrayInputStream(content, (int) start,
+				(int) (end - start));
+		}
+		throw new IOException("mail body not available");
+	}
 }
@@ -0,0 +1,313 @@
+/**
+ * $Id$
+ *
+ * Copyright (c) 2005-2007 Jens Elkner.
+ * All Rights Reserved.
+ *
+ * This software is the proprietary information of Jens Elkner.
+ * Use is subject to license terms.
+ */
+package de.ovgu.cs.milter4j.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.mail.Header;
+import javax.mail.MessagingException;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.ParseException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An entry of the MIME structure index of a {@link Mail}.
+ * <p>
+ * A part just remembers its headers, and where its raw content is located
+ * within the body of the mail. Nothing gets decoded or copied until the
+ * content gets accessed via {@link #getRawStream()},
+ * {@link #getDecodedStream()} or {@link #getBodyPart()}. Decoded content and
+ * text obtained via {@link #getDecodedContent()}, {@link #getText()} and
+ * {@link #getPlainText()} are cached in the {@link ContentCache} of the mail
+ * and thus shared by all filters.
+ * <p>
+ * The content of the mail itself is the whole body. The content of any other
+ * multipart is the range from its first to its last sub part content byte,
+ * i.e. it does not contain preamble, first delimiter and epilogue.
+ *
+ * @see Mail#getRootPart()
+ * @author 	Jens Elkner
+ * @version	$Revision$
+ */
+public class MailPart {
+	private static final Logger log = LoggerFactory.getLogger(MailPart.class);
+
+	private Mail mail;
+	private MailPart parent;
+	private int depth;
+	private List<Header> headers;
+	private ArrayList<MailPart> parts;
+	private String contentType;
+	private String encoding;
+	private long start = -1;
+	private long end = -1;
+
+	MailPart(Mail mail, MailPart parent, int depth) {
+		this.mail = mail;
+		this.parent = parent;
+		this.depth = depth;
+		if (parent != null) {
+			if (parent.parts == null) {
+				parent.parts = new ArrayList<MailPart>(4);
+			}
+			parent.parts.add(this);
+		}
+	}
+
+	void addHeader(String name, String value) {
+		if (headers == null) {
+			headers = new ArrayList<Header>(4);
+		}
+		headers.add(new Header(name, value));
+		if (contentType == null && "Content-Type".equalsIgnoreCase(name)) {
+			contentType = value;
+		} else if (encoding == null
+			&& "Content-Transfer-Encoding".equalsIgnoreCase(name))
+		{
+			encoding = value.trim().toLowerCase();
+		}
+	}
+
+	void setRange(long start, long end) {
+		this.start = start;
+		this.end = end;
+	}
+
+	void addContent(long offset, int len) {
+		if (start == -1) {
+			start = offset;
+		}
+		end = offset + len;
+		if (parent != null) {
+			parent.addContent(offset, len);
+		}
+	}
+
+	/**
+	 * Get the nesting level of this part.
+	 * @return <code>0</code> for the mail itself, the depth of the parent + 1
+	 * 		otherwise.
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Get the multipart, which contains this part.
+	 * @return <code>null</code> for the mail itself.
+	 */
+	public MailPart getParent() {
+		return parent;
+	}
+
+	/**
+	 * Get the sub parts of this part.
+	 * @return a possibly empty list.
+	 */
+	public List<MailPart> getParts() {
+		if (parts == null) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(parts);
+	}
+
+	/**
+	 * Check, whether this part is a multipart with a valid boundary.
+	 * @return <code>true</code> if sub parts have been found.
+	 */
+	public boolean isMultipart() {
+		return parts != null;
+	}
+
+	/**
+	 * Get the headers of this part.
+	 * @return a possibly empty list.
+	 */
+	public List<Header> getHeaders() {
+		if (headers == null) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(headers);
+	}
+
+	/**
+	 * Get the value of the first header with the given name.
+	 * @param name	name of the header (case-insensitive)
+	 * @return <code>null</code> if there is no such header.
+	 */
+	public String getHeader(String name) {
+		if (headers != null) {
+			for (Header h : headers) {
+				if (h.getName().equalsIgnoreCase(name)) {
+					return h.getValue();
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get the value of the Content-Type header of this part.
+	 * @return the default <code>text/plain; charset=us-ascii</code>, if
+	 * 		there is no such header.
+	 */
+	public String getContentType() {
+		return contentType == null
+			? "text/plain; charset=us-ascii"
+			: contentType;
+	}
+
+	/**
+	 * Check, whether this part is of the given MIME type.
+	 * @param mimeType	type to check, e.g. <code>image/*</code>
+	 * @return <code>true</code> if the type of this part matches.
+	 */
+	public boolean isMimeType(String mimeType) {
+		try {
+			return new ContentType(getContentType()).match(mimeType);
+		} catch (ParseException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Get the normalized (lower case) value of the Content-Transfer-Encoding
+	 * header of this part.
+	 * @return <code>null</code> if there is no such header.
+	 */
+	public String getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * Get the offset of the content of this part relative to the start of the
+	 * mail body.
+	 * @return <code>-1</code> if the part has no content.
+	 */
+	public long getOffset() {
+		return start;
+	}
+
+	/**
+	 * Get the size of the raw content of this part.
+	 * @return the number of content bytes.
+	 */
+	public long getSize() {
+		return start == -1 ? 0 : end - start;
+	}
+
+	/**
+	 * Get the raw (not decoded) content of this part. The returned stream
+	 * shares the data of the mail, i.e. no data gets copied.
+	 * @return a new stream.
+	 * @throws IOException if the body of the mail is not accessible.
+	 */
+	public InputStream getRawStream() throws IOException {
+		return mail.getRawStream(start == -1 ? 0 : start, start == -1 ? 0 : end);
+	}
+
+	/**
+	 * Get the transfer-decoded content of this part. Decoding happens while
+	 * reading from the returned stream.
+	 * @return a new stream.
+	 * @throws IOException if the body of the mail is not accessible or the
+	 * 		encoding is unknown.
+	 */
+	public InputStream getDecodedStream() throws IOException {
+		InputStream in = getRawStream();
+		if (encoding == null) {
+			return in;
+		}
+		try {
+			return MimeUtility.decode(in, encoding);
+		} catch (MessagingException e) {
+			throw new IOException(e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Get the transfer-decoded content of this part. The content gets decoded
+	 * once per message, all further calls (from any filter) return the same 
+	 * array.
+	 * @return the decoded content. Must not be modified.
+	 * @throws IOException if the content could not be read or decoded.
+	 * @see ContentCache#getDecoded(MailPart)
+	 */
+	public byte[] getDecodedContent() throws IOException {
+		return mail.getContentCache().getDecoded(this);
+	}
+
+	/**
+	 * Get the charset-decoded text of this part (decoded once per message).
+	 * @return the text content of this part.
+	 * @throws IOException if the content could not be read or decoded.
+	 * @see ContentCache#getText(MailPart)
+	 */
+	public String getText() throws IOException {
+		return mail.getContentCache().getText(this);
+	}
+
+	/**
+	 * Get the text of this part without any HTML markup (extracted once per
+	 * message).
+	 * @return the plain text content of this part.
+	 * @throws IOException if the content could not be read or decoded.
+	 * @see ContentCache#getPlainText(MailPart)
+	 */
+	public String getPlainText() throws IOException {
+		return mail.getContentCache().getPlainText(this);
+	}
+
+	/**
+	 * Get the javax.mail view of this part. The content gets copied into
+	 * memory (the decoding is still done by javax.mail on access).
+	 * @return a new body part.
+	 * @throws MessagingException if the part could not be created.
+	 */
+	public MimeBodyPart getBodyPart() throws MessagingException {
+		InternetHeaders ih = new MailHeaders(headers);
+		try {
+			return new MimeBodyPart(ih, toBytes(getRawStream()));
+		} catch (IOException e) {
+			log.debug("getBodyPart", e);
+			throw new MessagingException(e.getLocalizedMessage(), e);
+		}
+	}
+
+	private byte[] toBytes(InputStream in) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(
+			(int) Math.min(getSize(), Integer.MAX_VALUE - 8));
+		byte[] buf = new byte[4096];
+		int count;
+		while ((count = in.read(buf)) != -1) {
+			bos.write(buf, 0, count);
+		}
+		return bos.toByteArray();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[" + depth + ", "
+			+ getContentType() + ", " + getSize() + " bytes]";
+	}
+}
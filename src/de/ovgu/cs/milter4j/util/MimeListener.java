@@ -0,0 +1,73 @@
+/**
+ * $Id$
+ *
+ * Copyright (c) 2005-2007 Jens Elkner.
+ * All Rights Reserved.
+ *
+ * This software is the proprietary information of Jens Elkner.
+ * Use is subject to license terms.
+ */
+package de.ovgu.cs.milter4j.util;
+
+import de.ovgu.cs.milter4j.reply.Packet;
+
+/**
+ * Receives the events produced by a {@link MimeStreamParser} while the body
+ * of a mail gets streamed from the MTA.
+ * <p>
+ * The message itself is the part with depth <code>0</code>. The parts of a
+ * multipart have the depth of the multipart + 1. For each part the
+ * sequence of events is always: one {@link #startPart(int)}, zero or more
+ * {@link #header(int, String, String)}, zero or more
+ * {@link #content(int, byte[], int, int)} (leaf parts only) or the events of
+ * its sub parts (multiparts only), one {@link #endPart(int)}.
+ * <p>
+ * Each method may return a packet, which gets handled by the managing server
+ * the same way as a packet returned by
+ * {@link de.ovgu.cs.milter4j.MailFilter#doBody(byte[], java.util.HashMap)}.
+ * Once a listener returned a packet other than <code>null</code> or a
+ * {@link de.ovgu.cs.milter4j.reply.ContinuePacket}, it does not receive
+ * any further events for the current message.
+ *
+ * @see de.ovgu.cs.milter4j.MailFilter#getMimeListener()
+ * @author 	Jens Elkner
+ * @version	$Revision$
+ */
+public interface MimeListener {
+
+	/**
+	 * A new part starts.
+	 * @param depth	the nesting level of the part
+	 * @return <code>null</code> to continue, the answer to send otherwise.
+	 */
+	public Packet startPart(int depth);
+
+	/**
+	 * A header of the current part has been read. For the message (depth
+	 * <code>0</code>) these are the headers sent via the header commands.
+	 * @param depth	the nesting level of the part
+	 * @param name	the header name
+	 * @param value	the unfolded, not decoded value of the header
+	 * @return <code>null</code> to continue, the answer to send otherwise.
+	 */
+	public Packet header(int depth, String name, String value);
+
+	/**
+	 * A piece of the raw (not transfer-decoded) content of the current leaf
+	 * part has been read. The data are only valid during the call and must
+	 * not be modified.
+	 * @param depth	the nesting level of the part
+	 * @param data	buffer containing the content
+	 * @param off	offset of the first content byte in <var>data</var>
+	 * @param len	number of content bytes
+	 * @return <code>null</code> to continue, the answer to send otherwise.
+	 */
+	public Packet content(int depth, byte[] data, int off, int len);
+
+	/**
+	 * The current part ends.
+	 * @param depth	the nesting level of the part
+	 * @return <code>null</code> to continue, the answer to send otherwise.
+	 */
+	public Packet endPart(int depth);
+}
@@ -0,0 +1,434 @@
+/**
+ * $Id$
+ *
+ * Copyright (c) 2005-2007 Jens Elkner.
+ * All Rights Reserved.
+ *
+ * This software is the proprietary information of Jens Elkner.
+ * Use is subject to license terms.
+ */
+package de.ovgu.cs.milter4j.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.Header;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.ParseException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An incremental MIME parser, which gets fed with the body chunks as they
+ * arrive from the MTA and reports the structure of the message to a
+ * {@link MimeListener}.
+ * <p>
+ * The parser never buffers content: content of leaf parts gets passed to the
+ * listener as slices of the fed chunks. Only header lines of sub parts and
+ * lines, which might be a boundary delimiter, get copied into a small line
+ * buffer, which is reused for all messages. The line break right before a
+ * boundary delimiter belongs to the delimiter (RFC 2046, Section 5.1.1) and
+ * thus is not reported as content. Preamble and epilogue of multiparts are
+ * skipped. Parts of type <code>message/rfc822</code> are treated as leaf
+ * parts.
+ * <p>
+ * Usage: {@link #start(List)} with the headers of the message,
+ * {@link #feed(byte[], int, int)} for each body chunk, {@link #finish()} at
+ * the end of the message. Afterwards the parser may be used for the next
+ * message. {@link #reset()} drops the state of an aborted message.
+ * <p>
+ * Instances are not thread safe.
+ *
+ * @author 	Jens Elkner
+ * @version	$Revision$
+ */
+public class MimeStreamParser {
+	private static final Logger log = LoggerFactory
+		.getLogger(MimeStreamParser.class);
+
+	/** max. length of a line, which still gets checked for being a boundary
+	 * delimiter (boundary: 70 chars, see RFC 2046, Section 5.1.1) */
+	private static final int MAX_DELIMITER_LEN = 2 + 70 + 2 + 64;
+	/** max. number of bytes kept of a header line of a sub part */
+	private static final int MAX_HEADER_LEN = 64 * 1024;
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	private static final int HEADERS = 0;
+	private static final int CONTENT = 1;
+	private static final int SKIP = 2;
+
+	private MimeListener listener;
+	private boolean started;
+	private int state;
+	// the boundary of each open part, null for leaf parts
+	private ArrayList<byte[]> parts = new ArrayList<byte[]>();
+	private byte[] line = new byte[256];
+	private int lineLen;
+	// the current line has been classified as content/to be skipped
+	private boolean inLine;
+	// the held back line break (or a part of it) as a slice of CRLF
+	private int pendingOff;
+	private int pendingLen;
+	private long pendingPos;
+	// number of body bytes fed so far
+	private long fed;
+	// body offset of the first byte in the line buffer
+	private long linePos;
+	// body offset of the data passed with the current content event
+	private long offset;
+	private String hdrName;
+	private StringBuilder hdrValue = new StringBuilder();
+	private String contentType;
+
+	/**
+	 * Create a new parser.
+	 * @param listener	where to report parse events to
+	 */
+	public MimeStreamParser(MimeListener listener) {
+		if (listener == null) {
+			throw new IllegalArgumentException("null listener not allowed");
+		}
+		this.listener = listener;
+	}
+
+	/**
+	 * Check, whether a message is currently parsed.
+	 * @return <code>true</code> if {@link #start(List)} has been called but
+	 * 		not yet {@link #finish()} or {@link #reset()}.
+	 */
+	public boolean isStarted() {
+		return started;
+	}
+
+	/**
+	 * Get the offset of the content passed with the current
+	 * {@link MimeListener#content(int, byte[], int, int)} event relative to
+	 * the start of the body.
+	 * @return the body offset of the first byte of the content event.
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Start parsing a new message.
+	 * @param headers	the headers of the message.
+	 */
+	public void start(List<Header> headers) {
+		reset();
+		started = true;
+		parts.add(null);
+		listener.startPart(0);
+		if (headers != null) {
+			for (Header h : headers) {
+				header(h.getName(), h.getValue());
+			}
+		}
+		endHeaders();
+	}
+
+	/**
+	 * Parse the next chunk of the message body.
+	 * @param b		buffer containing the chunk
+	 * @param off	offset of the first byte of the chunk
+	 * @param len	length of the chunk
+	 */
+	public void feed(byte[] b, int off, int len) {
+		if (!started) {
+			return;
+		}
+		int end = off + len;
+		int pos = off;
+		long base = fed - off;
+		fed += len;
+		while (pos < end) {
+			if (inLine) {
+				int stop = indexOfLF(b, pos, end);
+				if (stop < end) {
+					stop++;
+					inLine = false;
+				}
+				if (state == CONTENT) {
+					content(b, pos, stop, base + pos);
+				}
+				pos = stop;
+				continue;
+			}
+			if (lineLen == 0 && state != HEADERS && b[pos] != '-') {
+				// can't be a delimiter
+				inLine = true;
+				continue;
+			}
+			int stop = indexOfLF(b, pos, end);
+			boolean complete = stop < end;
+			if (complete) {
+				stop++;
+			}
+			if (lineLen == 0) {
+				linePos = base + pos;
+			}
+			append(b, pos, stop);
+			pos = stop;
+			if (complete) {
+				line();
+			} else if (state != HEADERS && lineLen > MAX_DELIMITER_LEN) {
+				if (state == CONTENT) {
+					content(line, 0, lineLen, linePos);
+				}
+				lineLen = 0;
+				inLine = true;
+			}
+		}
+	}
+
+	/**
+	 * Finish parsing the current message, i.e. report the end of all parts
+	 * still open.
+	 */
+	public void finish() {
+		if (!started) {
+			return;
+		}
+		if (lineLen > 0) {
+			line();
+		}
+		if (pendingLen > 0 && state == CONTENT) {
+			offset = pendingPos;
+			listener.content(parts.size() - 1, CRLF, pendingOff, pendingLen);
+		}
+		pendingLen = 0;
+		if (state == HEADERS) {
+			endHeaders();
+		}
+		closeParts(0);
+		reset();
+	}
+
+	/**
+	 * Drop all state of the current message.
+	 */
+	public void reset() {
+		started = false;
+		parts.clear();
+		lineLen = 0;
+		inLine = false;
+		pendingLen = 0;
+		fed = 0;
+		hdrName = null;
+		hdrValue.setLength(0);
+		contentType = null;
+		state = HEADERS;
+		if (line.length > 4 * 1024) {
+			line = new byte[256];
+		}
+	}
+
+	private static int indexOfLF(byte[] b, int start, int end) {
+		for (int i=start; i < end; i++) {
+			if (b[i] == '\n') {
+				return i;
+			}
+		}
+		return end;
+	}
+
+	private void append(byte[] b, int start, int end) {
+		int len = end - start;
+		if (state == HEADERS && lineLen + len > MAX_HEADER_LEN) {
+			len = MAX_HEADER_LEN - lineLen;
+			if (len <= 0) {
+				return;
+			}
+		}
+		if (lineLen + len > line.length) {
+			byte[] tmp = new byte[Math.max(line.length << 1, lineLen + len)];
+			System.arraycopy(line, 0, tmp, 0, lineLen);
+			line = tmp;
+		}
+		System.arraycopy(b, start, line, lineLen, len);
+		lineLen += len;
+	}
+
+	/**
+	 * Report content, but hold back a trailing line break, since it belongs
+	 * to the next delimiter, if there is one.
+	 */
+	private void content(byte[] b, int start, int end, long pos) {
+		int depth = parts.size() - 1;
+		if (start == end) {
+			return;
+		}
+		int holdOff = 0;
+		int holdLen = 0;
+		if (b[end-1] == '\n') {
+			if (end - 1 > start && b[end-2] == '\r') {
+				holdLen = 2;
+				end -= 2;
+			} else if (end - 1 == start && pendingLen == 1 && pendingOff == 0) {
+				// CR and LF arrived in different chunks
+				pendingLen = 2;
+				return;
+			} else {
+				holdOff = 1;
+				holdLen = 1;
+				end--;
+			}
+		} else if (b[end-1] == '\r') {
+			holdLen = 1;
+			end--;
+		}
+		if (pendingLen > 0) {
+			offset = pendingPos;
+			listener.content(depth, CRLF, pendingOff, pendingLen);
+		}
+		if (end > start) {
+			offset = pos;
+			listener.content(depth, b, start, end - start);
+		}
+		pendingOff = holdOff;
+		pendingLen = holdLen;
+		pendingPos = pos + end - start;
+	}
+
+	// handle the complete line in the line buffer
+	private void line() {
+		int len = lineLen;
+		if (len > 0 && line[len-1] == '\n') {
+			len--;
+		}
+		if (len > 0 && line[len-1] == '\r') {
+			len--;
+		}
+		if (len > 2 && line[0] == '-' && line[1] == '-' && delimiter(len)) {
+			lineLen = 0;
+			return;
+		}
+		if (state == HEADERS) {
+			if (len == 0) {
+				endHeaders();
+			} else if (line[0] == ' ' || line[0] == '\t') {
+				if (hdrName != null) {
+					hdrValue.append(toString(0, len));
+				}
+			} else {
+				flushHeader();
+				int colon = 0;
+				while (colon < len && line[colon] != ':') {
+					colon++;
+				}
+				if (colon < len) {
+					hdrName = toString(0, colon).trim();
+					int start = colon + 1;
+					while (start < len && (line[start] == ' ' || line[start] == '\t')) {
+						start++;
+					}
+					hdrValue.append(toString(start, len));
+				}
+			}
+		} else if (state == CONTENT) {
+			content(line, 0, lineLen, linePos);
+		}
+		lineLen = 0;
+	}
+
+	private String toString(int start, int end) {
+		char[] c = new char[end - start];
+		for (int i=c.length-1; i >= 0; i--) {
+			c[i] = (char) (line[start + i] & 0xff);
+		}
+		return new String(c);
+	}
+
+	/**
+	 * Check, whether the line buffer contains a delimiter of an open multipart
+	 * and if so, handle it.
+	 * @param len	length of the line without line break
+	 * @return <code>true</code> if the line was a delimiter.
+	 */
+	private boolean delimiter(int len) {
+		for (int k=parts.size()-1; k >= 0; k--) {
+			byte[] boundary = parts.get(k);
+			if (boundary == null || len < 2 + boundary.length) {
+				continue;
+			}
+			int i = 0;
+			while (i < boundary.length && line[2+i] == boundary[i]) {
+				i++;
+			}
+			if (i < boundary.length) {
+				continue;
+			}
+			i += 2;
+			boolean close = false;
+			if (i + 1 < len && line[i] == '-' && line[i+1] == '-') {
+				close = true;
+				i += 2;
+			}
+			while (i < len && (line[i] == ' ' || line[i] == '\t')) {
+				i++;
+			}
+			if (i < len) {
+				continue;
+			}
+			// the line break before the delimiter is part of the delimiter
+			pendingLen = 0;
+			inLine = false;
+			if (state == HEADERS) {
+				endHeaders();
+			}
+			closeParts(k + 1);
+			if (close) {
+				parts.set(k, null);
+				state = SKIP;
+			} else {
+				parts.add(null);
+				listener.startPart(k + 1);
+				state = HEADERS;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	private void closeParts(int keep) {
+		for (int i=parts.size()-1; i >= keep; i--) {
+			parts.remove(i);
+			listener.endPart(i);
+		}
+	}
+
+	private void flushHeader() {
+		if (hdrName != null) {
+			header(hdrName, hdrValue.toString());
+		}
+		hdrName = null;
+		hdrValue.setLength(0);
+	}
+
+	private void header(String name, String value) {
+		if ("Content-Type".equalsIgnoreCase(name)) {
+			contentType = value;
+		}
+		listener.header(parts.size() - 1, name, value);
+	}
+
+	private void endHeaders() {
+		flushHeader();
+		state = CONTENT;
+		if (contentType != null) {
+			try {
+				ContentType ct = new ContentType(contentType);
+				String b = ct.getParameter("boundary");
+				if (ct.match("multipart/*") && b != null && b.length() > 0) {
+					parts.set(parts.size() - 1, Misc.getBytes(b));
+					state = SKIP;
+				}
+			} catch (ParseException e) {
+				log.debug("Invalid content type '{}' - treated as text",
+					contentType);
+			}
+		}
+		contentType = null;
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ * $Id$
+ *
+ * Copyright (c) 2005-2007 Jens Elkner.
+ * All Rights Reserved.
+ *
+ * This software is the proprietary information of Jens Elkner.
+ * Use is subject to license terms.
+ */
+package de.ovgu.cs.milter4j.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import junit.framework.TestCase;
+
+import de.ovgu.cs.milter4j.util.BodyDigest.Canonicalization;
+
+/**
+ * Checks the DKIM body canonicalizations of the {@link BodyDigester} against
+ * the examples of RFC 6376, 3.4.5 and the well known hashes of an empty
+ * body.
+ *
+ * @author 	Jens Elkner
+ * @version	$Revision$
+ */
+public class BodyDigesterTest extends TestCase {
+	// RFC 6376, 3.4.5
+	private static final String EXAMPLE = " C \r\nD \t E\r\n\r\n\r\n";
+	// SHA-256 of " C \r\nD \t E\r\n"
+	private static final String EXAMPLE_SIMPLE =
+		"NOeivbQlDH9TmNKJUw7D53wZfsk8YMZ/hTuVVwTgi8s=";
+	// SHA-256 of " C\r\nD E\r\n"
+	private static final String EXAMPLE_RELAXED =
+		"unak6JHq0wL+Q1HP7dW1tjBx9FLA6DffoZ0qrLwbbpo=";
+	// SHA-256 of "\r\n" resp. ""
+	private static final String EMPTY_SIMPLE =
+		"frcCV1k9oG9oKj3dpUqdJg1PxRT2RSN/XKdLCPjaYaY=";
+	private static final String EMPTY_RELAXED =
+		"47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU=";
+
+	private BodyDigester digester;
+	private BodyDigest simple;
+	private BodyDigest relaxed;
+
+	@Override
+	protected void setUp() throws Exception {
+		digester = new BodyDigester();
+		simple = new BodyDigest("SHA-256", Canonicalization.SIMPLE);
+		relaxed = new BodyDigest("SHA-256", Canonicalization.RELAXED);
+		digester.register(simple);
+		digester.register(relaxed);
+	}
+
+	private void digest(String body, boolean bytewise) {
+		byte[] b = body.getBytes(StandardCharsets.US_ASCII);
+		if (bytewise) {
+			for (int i=0; i < b.length; i++) {
+				digester.update(b, i, 1);
+			}
+		} else {
+			digester.update(b, 0, b.length);
+		}
+		digester.finish();
+	}
+
+	private static String base64(BodyDigest d) {
+		return d.getValue() == null
+			? null
+			: Base64.getEncoder().encodeToString(d.getValue());
+	}
+
+	/**
+	 * The canonicalization example of RFC 6376, 3.4.5.
+	 */
+	public void testExample() {
+		digest(EXAMPLE, false);
+		assertEquals(EXAMPLE_SIMPLE, base64(simple));
+		assertEquals(EXAMPLE_RELAXED, base64(relaxed));
+		assertEquals(9, relaxed.getLength());
+	}
+
+	/**
+	 * The same example split into single byte chunks, i.e. CRLFs and
+	 * whitespace runs cross chunk boundaries.
+	 */
+	public void testExampleBytewise() {
+		digest(EXAMPLE, true);
+		assertEquals(EXAMPLE_SIMPLE, base64(simple));
+		assertEquals(EXAMPLE_RELAXED, base64(relaxed));
+	}
+
+	/**
+	 * An empty body is a single CRLF for simple and empty for relaxed
+	 * canonicalization (RFC 6376, 3.4.3 and erratum 3192).
+	 */
+	public void testEmpty() {
+		digest("", false);
+		assertEquals(EMPTY_SIMPLE, base64(simple));
+		assertEquals(EMPTY_RELAXED, base64(relaxed));
+		digest("\r\n\r\n", false);
+		assertEquals(EMPTY_SIMPLE, base64(simple));
+		assertEquals(EMPTY_RELAXED, base64(relaxed));
+	}
+
+	/**
+	 * An invalidated message must not affect the next one.
+	 */
+	public void testInvalidateNextMessage() {
+		digester.update(new byte[] { 'x' }, 0, 1);
+		digester.invalidate();
+		digester.finish();
+		assertNull(simple.getValue());
+		assertNull(relaxed.getValue());
+		digest(EXAMPLE, false);
+		assertEquals(EXAMPLE_SIMPLE, base64(simple));
+		assertEquals(EXAMPLE_RELAXED, base64(relaxed));
+	}
+}